@@ -0,0 +1,87 @@
+package org.jchern.accesslog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.jchern.http.HttpMethod;
+import org.jchern.http.HttpRequest;
+import org.jchern.http.HttpResponse;
+import org.jchern.http.RequestHeaders;
+import org.jchern.http.ResponseCode;
+
+import junit.framework.TestCase;
+
+public class AccessLogTests extends TestCase {
+
+	private static final int SEGMENT_BYTES = 4096;
+	private static final byte[] LOCALHOST = { 127, 0, 0, 1 };
+
+	private File dir;
+
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("access-log").toFile();
+	}
+
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	public void testReadsBackWhatWasRecorded() throws IOException {
+		final AccessLog log = new AccessLog(dir, SEGMENT_BYTES);
+		final HttpRequest request = new HttpRequest(HttpMethod.GET, "HTTP/1.1", "/dir/page.html", new RequestHeaders());
+		final HttpResponse response = new HttpResponse(ResponseCode.SUCCESS_200, "text/html", 1234, 0, true);
+		log.record(LOCALHOST, request, response, 1234, true, 1000L, System.nanoTime());
+		log.record(null, null, new HttpResponse(ResponseCode.ERROR_400), 0, false, 2000L, System.nanoTime());
+		log.close();
+
+		final AccessLogReader reader = new AccessLogReader(AccessLogReader.listSegments(dir)[0]);
+		final AccessRecord first = reader.next();
+		assertEquals(1000L, first.startMs);
+		assertTrue(first.latencyNs >= 0);
+		assertEquals("127.0.0.1", first.remoteAddress);
+		assertEquals(HttpMethod.GET, first.method);
+		assertEquals("/dir/page.html", first.url);
+		assertEquals(200, first.status);
+		assertEquals(1234, first.bytesSent);
+		assertEquals("text/html", first.contentType);
+		assertTrue(first.cacheHit);
+
+		final AccessRecord unparsed = reader.next();
+		assertEquals(400, unparsed.status);
+		assertNull(unparsed.method);
+		assertEquals("", unparsed.url);
+		assertEquals("", unparsed.remoteAddress);
+		assertFalse(unparsed.cacheHit);
+
+		assertNull(reader.next());
+	}
+
+	public void testRotatesSegments() throws IOException {
+		AccessLog log = new AccessLog(dir, SEGMENT_BYTES);
+		final HttpResponse response = new HttpResponse(ResponseCode.SUCCESS_200, "text/plain", 10, 0, true);
+		for (int i = 0; i < 200; i++) {
+			final HttpRequest request = new HttpRequest(HttpMethod.GET, "HTTP/1.1", "/file" + (i % 4), new RequestHeaders());
+			log.record(LOCALHOST, request, response, 10, false, i, System.nanoTime());
+		}
+		log.close();
+		assertTrue(AccessLogReader.listSegments(dir).length > 1);
+
+		// A restarted server carries on in a new segment
+		final int segments = AccessLogReader.listSegments(dir).length;
+		log = new AccessLog(dir, SEGMENT_BYTES);
+		log.record(LOCALHOST, null, new HttpResponse(ResponseCode.ERROR_400), 0, false, 200, System.nanoTime());
+		log.close();
+		assertEquals(segments + 1, AccessLogReader.listSegments(dir).length);
+
+		final Map<String, AccessLogTool.Totals> byUrl = AccessLogTool.totalsBy(dir, false);
+		assertEquals(5, byUrl.size());
+		assertEquals(50, byUrl.get("/file3").count);
+		assertEquals(500, byUrl.get("/file3").bytes);
+		assertEquals(1, byUrl.get("").count);
+	}
+}
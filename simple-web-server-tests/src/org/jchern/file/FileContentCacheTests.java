@@ -0,0 +1,126 @@
+package org.jchern.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class FileContentCacheTests extends TestCase {
+
+	private File tempDir;
+
+	public void setUp() throws IOException {
+		tempDir = File.createTempFile("content-cache", "");
+		tempDir.delete();
+		tempDir.mkdir();
+	}
+
+	public void tearDown() {
+		for (File f : tempDir.listFiles()) {
+			f.delete();
+		}
+		tempDir.delete();
+	}
+
+	public void testHitAfterMiss() throws IOException {
+		final FileContentCache cache = new FileContentCache(1024, 1024);
+		final File file = writeFile("a.txt", "hello");
+
+		assertEquals("hello", contentsOf(cache.getContent(file, file.length(), file.lastModified())));
+		assertEquals("hello", contentsOf(cache.getContent(file, file.length(), file.lastModified())));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(5, cache.getUsedBytes());
+	}
+
+	public void testEachCallerGetsItsOwnPosition() throws IOException {
+		final FileContentCache cache = new FileContentCache(1024, 1024);
+		final File file = writeFile("a.txt", "hello");
+
+		final ByteBuffer first = cache.getContent(file, file.length(), file.lastModified());
+		first.get(new byte[3]);
+		assertEquals("hello", contentsOf(cache.getContent(file, file.length(), file.lastModified())));
+	}
+
+	public void testChangedFileIsReread() throws IOException {
+		final FileContentCache cache = new FileContentCache(1024, 1024);
+		final File file = writeFile("a.txt", "hello");
+		cache.getContent(file, file.length(), file.lastModified());
+
+		writeFile("a.txt", "goodbye");
+		assertEquals("goodbye", contentsOf(cache.getContent(file, file.length(), file.lastModified())));
+		assertEquals(0, cache.getHits());
+		assertEquals(7, cache.getUsedBytes());
+	}
+
+	public void testLargeFileNotCached() throws IOException {
+		final FileContentCache cache = new FileContentCache(1024, 4);
+		final File file = writeFile("a.txt", "hello");
+
+		assertNull(cache.getContent(file, file.length(), file.lastModified()));
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getMisses()); // not a miss: it could never have been a hit
+	}
+
+	public void testOneOffRequestDoesNotEvict() throws IOException {
+		final FileContentCache cache = new FileContentCache(10, 10);
+		final File a = writeFile("a.txt", "aaaaa");
+		final File b = writeFile("b.txt", "bbbbb");
+		final File c = writeFile("c.txt", "ccccc");
+		cache.getContent(a, a.length(), a.lastModified());
+		cache.getContent(b, b.length(), b.lastModified());
+
+		// c has been requested no more often than a, the least recently used file
+		assertNull(cache.getContent(c, c.length(), c.lastModified()));
+		assertEquals(0, cache.getEvictions());
+		assertEquals(10, cache.getUsedBytes());
+	}
+
+	public void testPopularFileEvictsLeastRecentlyUsed() throws IOException {
+		final FileContentCache cache = new FileContentCache(10, 10);
+		final File a = writeFile("a.txt", "aaaaa");
+		final File b = writeFile("b.txt", "bbbbb");
+		final File c = writeFile("c.txt", "ccccc");
+		cache.getContent(a, a.length(), a.lastModified());
+		cache.getContent(b, b.length(), b.lastModified());
+
+		cache.getContent(c, c.length(), c.lastModified());
+		assertEquals("ccccc", contentsOf(cache.getContent(c, c.length(), c.lastModified())));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(10, cache.getUsedBytes());
+
+		// a was evicted, b is still there
+		final long hits = cache.getHits();
+		cache.getContent(b, b.length(), b.lastModified());
+		assertEquals(hits + 1, cache.getHits());
+	}
+
+	public void testInvalidate() throws IOException {
+		final FileContentCache cache = new FileContentCache(1024, 1024);
+		final File file = writeFile("a.txt", "hello");
+		cache.getContent(file, file.length(), file.lastModified());
+
+		cache.invalidate(file);
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	private File writeFile(final String name, final String contents) throws IOException {
+		final File file = new File(tempDir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String contentsOf(final ByteBuffer buffer) throws IOException {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, "US-ASCII");
+	}
+}
@@ -0,0 +1,86 @@
+package org.jchern.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+public class GzipCacheTests extends TestCase {
+
+	private static final byte[] TEXT = repeat("All work and no play makes Jack a dull boy.\n", 100);
+
+	private File file;
+	private GzipCache cache;
+
+	public void setUp() throws IOException {
+		file = File.createTempFile("gzip-cache", ".txt");
+		Files.write(file.toPath(), TEXT);
+		cache = new GzipCache(1024 * 1024, 100, 64 * 1024);
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+
+	public void testCompressesOnceUntilChanged() throws IOException {
+		final long modified = file.lastModified();
+		final ByteBuffer first = cache.getGzipped(file, file.length(), modified);
+		assertTrue(first.remaining() < TEXT.length / 10);
+		assertTrue(Arrays.equals(TEXT, gunzip(first)));
+		final long used = cache.getUsedBytes();
+
+		// Remembered: the same bytes again, without reading the file
+		assertTrue(file.delete());
+		assertTrue(Arrays.equals(TEXT, gunzip(cache.getGzipped(file, TEXT.length, modified))));
+		assertEquals(used, cache.getUsedBytes());
+
+		// A different version is compressed again
+		Files.write(file.toPath(), repeat("changed\n", 100));
+		assertEquals(800, gunzip(cache.getGzipped(file, 800, modified + 1)).length);
+	}
+
+	public void testGeneratedContent() throws IOException {
+		final File dir = new File("/some/dir");
+		assertTrue(Arrays.equals(TEXT, gunzip(cache.getGzipped(dir, "\"v1\"", new ByteArrayInputStream(TEXT), TEXT.length))));
+		cache.invalidate(new File(dir, "new-file"));
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	public void testSkipsWhatIsNotWorthCompressing() {
+		assertFalse(cache.isCandidate(99));
+		assertFalse(cache.isCandidate(64 * 1024 + 1));
+		assertTrue(cache.isGeneratedCandidate(64 * 1024 + 1));
+
+		final byte[] random = new byte[1000];
+		new Random(42).nextBytes(random);
+		assertNull(cache.getGzipped(new File("random"), "\"r\"", new ByteArrayInputStream(random), random.length));
+	}
+
+	private static byte[] gunzip(final ByteBuffer gzipped) throws IOException {
+		final byte[] bytes = new byte[gzipped.remaining()];
+		gzipped.get(bytes);
+		final InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return ByteStreams.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] repeat(final String s, final int times) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(s);
+		}
+		return sb.toString().getBytes();
+	}
+}
@@ -1,6 +1,8 @@
 package org.jchern.file;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 
 import org.jchern.file.StaticFiles.FileInfo;
 
@@ -58,6 +60,94 @@ public class StaticFilesTests extends TestCase {
 		assertFalse(dirInfo.hasIndexFile());
 	}
 	
+	public void testAttributesMatchFile() {
+		final FileInfo info = fileRoot.getInfoForUrl("/dir1/index.html");
+		assertTrue(info.isFile());
+		assertEquals(info.getPath().length(), info.getLength());
+		assertEquals(info.getPath().lastModified(), info.getLastModified());
+	}
+
+	public void testNonexistentFile() {
+		final FileInfo info = fileRoot.getInfoForUrl("/dir1/not-there.html");
+		assertFalse(info.found());
+		assertEquals(0, info.getLength());
+	}
+
+	public void testCachedInfoUntilInvalidated() {
+		final StaticFiles cachingRoot = new StaticFiles(here, 60000);
+		final FileInfo first = cachingRoot.getInfoForUrl("/dir1/index.html");
+		assertSame(first, cachingRoot.getInfoForUrl("/dir1/index.html"));
+
+		cachingRoot.invalidate(first.getPath());
+		assertNotSame(first, cachingRoot.getInfoForUrl("/dir1/index.html"));
+	}
+
+	public void testInvalidatingFileInvalidatesItsDir() {
+		final StaticFiles cachingRoot = new StaticFiles(here, 60000);
+		final FileInfo dir = cachingRoot.getInfoForUrl("/dir1");
+
+		cachingRoot.invalidate(dir.getIndexFile().getPath());
+		assertNotSame(dir, cachingRoot.getInfoForUrl("/dir1"));
+	}
+
+	public void testInvalidatingTreeInvalidatesEverythingBeneath() {
+		final StaticFiles cachingRoot = new StaticFiles(here, 60000);
+		final FileInfo file = cachingRoot.getInfoForUrl("/dir1/index.html");
+		final FileInfo missing = cachingRoot.getInfoForUrl("/dir1/not-there.html");
+		final FileInfo other = cachingRoot.getInfoForUrl("/dir2/index.htm");
+
+		cachingRoot.invalidateTree(new File(here, "dir1"));
+		assertNotSame(file, cachingRoot.getInfoForUrl("/dir1/index.html"));
+		assertNotSame(missing, cachingRoot.getInfoForUrl("/dir1/not-there.html"));
+		assertSame(other, cachingRoot.getInfoForUrl("/dir2/index.htm"));
+	}
+
+	public void testInvalidatingOtherNameForSameFile() {
+		final StaticFiles cachingRoot = new StaticFiles(here, 60000);
+		final FileInfo first = cachingRoot.getInfoForUrl("/dir1/index.html");
+
+		cachingRoot.invalidate(new File(here, "dir2/../dir1/./index.html"));
+		assertNotSame(first, cachingRoot.getInfoForUrl("/dir1/index.html"));
+	}
+
+	public void testOtherUrlForSameFileKeepsItsOwnName() {
+		final StaticFiles cachingRoot = new StaticFiles(here, 60000);
+		assertEquals("/dir1", cachingRoot.getInfoForUrl("/dir1").getOriginalUrl());
+		assertEquals("/dir1/", cachingRoot.getInfoForUrl("/dir1/").getOriginalUrl());
+	}
+
+	public void testFindsPrecompressedCopies() throws IOException {
+		final File dir = Files.createTempDirectory("static-files").toFile();
+		try {
+			final File css = writeFile(new File(dir, "style.css"), 10000);
+			final File gz = writeFile(new File(dir, "style.css.gz"), 10000);
+			final File br = writeFile(new File(dir, "style.css.br"), 5000); // older than the file, so out of date
+
+			final StaticFiles sidecarRoot = new StaticFiles(dir, 60000, true);
+			final FileInfo info = sidecarRoot.getInfoForUrl("/style.css");
+			assertTrue(info.hasPrecompressed());
+			assertEquals(gz.getName(), info.getPrecompressed(ContentCoding.GZIP).getPath().getName());
+			assertNull(info.getPrecompressed(ContentCoding.BROTLI));
+
+			// A changed sidecar invalidates the file it's a copy of
+			br.setLastModified(20000000L);
+			sidecarRoot.invalidate(br);
+			assertNotNull(sidecarRoot.getInfoForUrl("/style.css").getPrecompressed(ContentCoding.BROTLI));
+
+			// ...and sidecars aren't looked for unless asked
+			assertFalse(new StaticFiles(dir).getInfoForUrl("/style.css").hasPrecompressed());
+			assertTrue(css.delete() && gz.delete() && br.delete());
+		} finally {
+			dir.delete();
+		}
+	}
+
+	private static File writeFile(final File file, final long modifiedSeconds) throws IOException {
+		Files.write(file.toPath(), file.getName().getBytes());
+		file.setLastModified(modifiedSeconds * 1000);
+		return file;
+	}
+
 	private void verifyIndexFileInDir(final String requestedDir, final String expectedFile) {
 		final FileInfo dirInfo = fileRoot.getInfoForUrl(requestedDir);
 		assertTrue(dirInfo.isDir());
@@ -0,0 +1,61 @@
+package org.jchern.http;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ByteRangeTests extends TestCase {
+
+	public void testSingleRanges() {
+		verifyRanges("bytes=0-499", 1000, "0-499");
+		verifyRanges("bytes=500-", 1000, "500-999");
+		verifyRanges("bytes=-300", 1000, "700-999");
+		verifyIgnored("Bytes = 900-2000", 1000); // whitespace isn't allowed before '='
+		verifyRanges("bytes=900-2000", 1000, "900-999"); // clipped to the end of the content
+		verifyRanges("bytes=-2000", 1000, "0-999");
+	}
+
+	public void testMultipleRanges() {
+		verifyRanges("bytes=0-0, -1", 1000, "0-0", "999-999");
+		verifyRanges("bytes=500-600,,100-200", 1000, "500-600", "100-200");
+		// The unsatisfiable one is dropped
+		verifyRanges("bytes=0-9,5000-6000", 1000, "0-9");
+	}
+
+	public void testUnsatisfiable() {
+		verifyRanges("bytes=1000-", 1000);
+		verifyRanges("bytes=-0", 1000);
+		verifyRanges("bytes=0-10", 0);
+	}
+
+	public void testIgnored() {
+		verifyIgnored("items=0-10", 1000);
+		verifyIgnored("bytes=", 1000);
+		verifyIgnored("bytes=10-5", 1000);
+		verifyIgnored("bytes=a-5", 1000);
+		verifyIgnored("bytes=5-a", 1000);
+		verifyIgnored("bytes=5", 1000);
+
+		final StringBuilder tooMany = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+			tooMany.append(",").append(i).append("-").append(i);
+		}
+		verifyIgnored(tooMany.toString(), 1000);
+	}
+
+	private static void verifyIgnored(final String field, final long length) {
+		assertNull(field, ByteRange.parse(field, length));
+	}
+
+	/**
+	 * @param expected the ranges as "first-last"
+	 */
+	private static void verifyRanges(final String field, final long length, final String... expected) {
+		final List<ByteRange> ranges = ByteRange.parse(field, length);
+		assertNotNull(field, ranges);
+		assertEquals(field, expected.length, ranges.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(field, expected[i], ranges.get(i).toString());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package org.jchern.http;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests how requests evaluate their conditional fields.
+ */
+public class HttpRequestTests extends TestCase {
+
+	private static final String ETAG = "\"1f-200-13fd0a8c7b0\"";
+	private static final long MODIFIED = 1373594156000L; // Fri, 12 Jul 2013 01:55:56 GMT
+
+	public void testUnconditional() {
+		assertFalse(requestWith().isNotModified(ETAG, MODIFIED));
+	}
+
+	public void testIfNoneMatch() {
+		assertTrue(requestWith("If-None-Match", ETAG).isNotModified(ETAG, MODIFIED));
+		assertTrue(requestWith("If-None-Match", "\"other\", W/" + ETAG).isNotModified(ETAG, MODIFIED));
+		assertTrue(requestWith("If-None-Match", "*").isNotModified(ETAG, MODIFIED));
+		assertFalse(requestWith("If-None-Match", "\"other\"").isNotModified(ETAG, MODIFIED));
+	}
+
+	public void testIfNoneMatchTakesPrecedence() {
+		// The date alone would say not modified, but the tag doesn't match
+		final HttpRequest request = requestWith("If-None-Match", "\"other\"", "If-Modified-Since", "Fri, 12 Jul 2013 01:55:56 GMT");
+		assertFalse(request.isNotModified(ETAG, MODIFIED));
+	}
+
+	public void testIfModifiedSince() {
+		assertTrue(requestWith("If-Modified-Since", "Fri, 12 Jul 2013 01:55:56 GMT").isNotModified(ETAG, MODIFIED + 999));
+		assertTrue(requestWith("If-Modified-Since", "Friday, 12-Jul-13 01:55:56 GMT").isNotModified(ETAG, MODIFIED));
+		assertTrue(requestWith("If-Modified-Since", "Fri Jul 12 01:55:56 2013").isNotModified(ETAG, MODIFIED));
+		assertFalse(requestWith("If-Modified-Since", "Fri, 12 Jul 2013 01:55:55 GMT").isNotModified(ETAG, MODIFIED));
+		assertFalse(requestWith("If-Modified-Since", "yesterday").isNotModified(ETAG, MODIFIED));
+	}
+
+	public void testAcceptsEncoding() {
+		assertFalse(requestWith().acceptsEncoding("gzip"));
+		assertTrue(requestWith("Accept-Encoding", "deflate, GZIP").acceptsEncoding("gzip"));
+		assertFalse(requestWith("Accept-Encoding", "deflate, gzip;q=0").acceptsEncoding("gzip"));
+		assertTrue(requestWith("Accept-Encoding", "br;q=0.5, *").acceptsEncoding("gzip"));
+		assertFalse(requestWith("Accept-Encoding", "gzip;q=0, *").acceptsEncoding("gzip"));
+		assertFalse(requestWith("Accept-Encoding", "identity").acceptsEncoding("gzip"));
+	}
+
+	private static HttpRequest requestWith(final String... fields) {
+		final RequestHeaders headers = new RequestHeaders();
+		for (int i = 0; i < fields.length; i += 2) {
+			headers.add(fields[i], fields[i + 1]);
+		}
+		return new HttpRequest(HttpMethod.GET, "1.1", "/", headers);
+	}
+}
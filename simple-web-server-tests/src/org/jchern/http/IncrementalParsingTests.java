@@ -0,0 +1,180 @@
+package org.jchern.http;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests HttpRequestParser.parseNext, which parses request heads straight from a byte buffer,
+ * as they arrive in pieces.
+ */
+public class IncrementalParsingTests extends TestCase {
+
+	private HttpRequestParser parser;
+	private ByteBuffer buffer;
+
+	public void setUp() {
+		parser = new HttpRequestParser();
+		buffer = ByteBuffer.allocate(HttpRequestParser.MAX_HEAD_LENGTH);
+	}
+
+	public void testCompleteRequest() {
+		final HttpRequest request = receive("GET /url1/url2.txt HTTP/1.1\r\nHost: example.com\r\n\r\n");
+		assertEquals(HttpMethod.GET, request.getMethod());
+		assertEquals("/url1/url2.txt", request.getUrl());
+		assertEquals("1.1", request.getVersion());
+		assertEquals("example.com", request.getHeaderField("host"));
+		assertEquals(0, buffer.position());
+	}
+
+	public void testOneByteAtATime() {
+		final String input = "\r\nHEAD \t/url  HTTP/1.0 \nConnection: keep-alive\n\n";
+		for (int i = 0; i < input.length() - 1; i++) {
+			assertNull(receive(input.substring(i, i + 1)));
+		}
+		final HttpRequest request = receive(input.substring(input.length() - 1));
+		assertEquals(HttpMethod.HEAD, request.getMethod());
+		assertEquals("/url", request.getUrl());
+		assertEquals("1.0", request.getVersion());
+		assertTrue(request.isKeepAlive());
+	}
+
+	public void testPipelinedRequests() {
+		final HttpRequest first = receive("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\nGET /c");
+		assertEquals("/a", first.getUrl());
+		assertEquals("/b", receive("").getUrl());
+		assertNull(receive(""));
+		assertEquals("/c", receive(" HTTP/1.1\r\n\r\n").getUrl());
+	}
+
+	public void testContinuedAndRepeatedFields() {
+		final HttpRequest request = receive("GET / HTTP/1.1\r\nAccept: text/html,\r\n  text/plain\r\naccept: */*\r\n\r\n");
+		assertEquals("text/html, text/plain, */*", request.getHeaderField("Accept"));
+	}
+
+	public void testMalformedRequestLine() {
+		verifyRejected("GET /url\r\n\r\n");
+		verifyRejected("GET /url ZZZ/1.0\r\n\r\n");
+		verifyRejected(" GET /url HTTP/1.1\r\n\r\n");
+	}
+
+	public void testMalformedField() {
+		verifyRejected("GET / HTTP/1.1\r\n  continued\r\n\r\n");
+		verifyRejected("GET / HTTP/1.1\r\nNo Colon Here\r\n\r\n");
+	}
+
+	public void testRequestLineTooLong() {
+		final StringBuilder url = new StringBuilder("/");
+		while (url.length() < HttpRequestParser.MAX_REQUEST_LENGTH) {
+			url.append("1234567890");
+		}
+		// Rejected as soon as it's too long, without waiting for the line to end
+		verifyRejected("GET " + url);
+	}
+
+	public void testLineEndings() {
+		for (String eol : new String[] { "\r\n", "\r", "\n" }) {
+			setUp();
+			final HttpRequest request = receive("GET /url HTTP/1.1" + eol + "Host: x" + eol + eol + "MORE");
+			assertEquals("/url", request.getUrl());
+			assertEquals("x", request.getHeaderField("Host"));
+			assertEquals("MORE", remaining());
+		}
+	}
+
+	public void testRequestLineExactlyLengthLimit() {
+		final String line = requestLineOfLength(HttpRequestParser.MAX_REQUEST_LENGTH);
+		assertNotNull(receive(line + "\r\n"));
+	}
+
+	public void testRequestLineExceedsLengthLimitWithCRLF() {
+		// The line ending counts against the limit too
+		verifyRejected(requestLineOfLength(HttpRequestParser.MAX_REQUEST_LENGTH + 1) + "\r\n");
+	}
+
+	public void testRequestLineFollowedByLongFields() {
+		// Header fields after the request line don't count against the request line's limit
+		final StringBuilder value = new StringBuilder();
+		while (value.length() < HttpRequestParser.MAX_REQUEST_LENGTH) {
+			value.append("1234567890");
+		}
+		final String line = requestLineOfLength(HttpRequestParser.MAX_REQUEST_LENGTH);
+		final HttpRequest request = receive(line + "X-Long: " + value + "\r\n\r\n");
+		assertEquals(value.toString(), request.getHeaderField("X-Long"));
+	}
+
+	public void testWithoutLineEnding() {
+		// Not an error: the rest of the line may still arrive
+		assertNull(receive("GET /url HTTP/1.1"));
+		assertEquals("GET /url HTTP/1.1", remaining());
+	}
+
+	public void testEndOfHead() {
+		verifyEndOfHead("GET /url HTTP/1.1\r\nHost: x\r\n\r\n", 30);
+		verifyEndOfHead("GET /url HTTP/1.1\nHost: x\n\n", 27);
+		verifyEndOfHead("GET /url HTTP/1.1\r\rMORE", 19);
+		verifyEndOfHead("\r\n\r\nGET /url HTTP/1.0\r\n\r\n", 25);
+	}
+
+	public void testIncompleteHead() {
+		verifyEndOfHead("", -1);
+		verifyEndOfHead("\r\n\r\n", -1);
+		verifyEndOfHead("GET /url HTTP/1.1\r\nHost: x\r\n", -1);
+		// Can't tell whether the CR will be followed by a LF, so no empty line yet
+		verifyEndOfHead("GET /url HTTP/1.1\r", -1);
+	}
+
+	/**
+	 * @param expected how much of the input the request's head takes up, or -1 if it's incomplete
+	 */
+	private void verifyEndOfHead(final String input, final int expected) {
+		setUp();
+		final HttpRequest request = receive(input);
+		if (expected == -1) {
+			assertNull(input, request);
+			assertEquals(input, input.length(), buffer.position()); // nothing consumed
+		} else {
+			assertNotNull(input, request);
+			assertEquals(input, input.substring(expected), remaining());
+		}
+	}
+
+	/**
+	 * A request line of exactly the given length, including its CRLF.
+	 */
+	private static String requestLineOfLength(final int length) {
+		final String suffix = " HTTP/1.1\r\n";
+		final StringBuilder url = new StringBuilder("GET /");
+		while (url.length() < length - suffix.length()) {
+			url.append('x');
+		}
+		return url + suffix;
+	}
+
+	/**
+	 * What's left in the buffer after parsing (compacted, so it's everything before the position).
+	 */
+	private String remaining() {
+		return new String(buffer.array(), 0, buffer.position());
+	}
+
+	private HttpRequest receive(final String input) {
+		buffer.put(input.getBytes());
+		buffer.flip();
+		try {
+			return parser.parseNext(buffer);
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	private void verifyRejected(final String input) {
+		setUp();
+		try {
+			receive(input);
+			fail("Expected an exception for: " + input);
+		} catch (ParsingException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.jchern.http;
+
+import junit.framework.TestCase;
+
+public class RequestHeadersTests extends TestCase {
+
+	public void testLookupIgnoresCase() {
+		final RequestHeaders headers = new RequestHeaders();
+		headers.add("CONNECTION", "close");
+		headers.add("HOST", "example.com");
+		headers.add("x-Custom", "value");
+
+		assertEquals("close", headers.get(KnownHeader.CONNECTION));
+		assertEquals("example.com", headers.get("host"));
+		assertEquals("value", headers.get("X-CUSTOM"));
+		assertNull(headers.get(KnownHeader.RANGE));
+		assertNull(headers.get("X-Custom2"));
+	}
+
+	public void testRepeatedFieldsAreCombinedInOrder() {
+		final RequestHeaders headers = new RequestHeaders();
+		headers.add("If-None-Match", "\"a\"");
+		headers.add("Host", "example.com");
+		headers.add("if-none-match", "\"b\"");
+
+		assertEquals("\"a\", \"b\"", headers.get(KnownHeader.IF_NONE_MATCH));
+		assertEquals(3, headers.size());
+		assertEquals("if-none-match", headers.getName(2));
+		assertEquals("\"b\"", headers.getValue(2));
+	}
+
+	public void testContinuedValue() {
+		final byte[] bytes = "Accept: text/html,  text/plain".getBytes();
+		final RequestHeaders headers = new RequestHeaders(1, 4);
+		headers.add(bytes, 0, 6, 8, 18);
+		assertEquals("text/html,", headers.get("Accept"));
+
+		headers.continueValue(bytes, 20, bytes.length);
+		assertEquals("text/html, text/plain", headers.get("Accept"));
+	}
+
+	public void testGrowsBeyondExpectedSize() {
+		final RequestHeaders headers = new RequestHeaders(1, 1);
+		for (int i = 0; i < 50; i++) {
+			headers.add("Field" + i, "Value" + i);
+		}
+		assertEquals(50, headers.size());
+		assertEquals("Value0", headers.get("field0"));
+		assertEquals("Value49", headers.get("FIELD49"));
+	}
+}
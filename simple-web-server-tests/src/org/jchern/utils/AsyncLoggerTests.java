@@ -0,0 +1,99 @@
+package org.jchern.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jchern.utils.AsyncLogger.WhenFull;
+import org.jchern.utils.ILogger.LogLevel;
+
+import junit.framework.TestCase;
+
+public class AsyncLoggerTests extends TestCase {
+
+	private static final Pattern DROPPED = Pattern.compile("\\((\\d+) log messages dropped\\)");
+
+	private File file;
+
+	public void setUp() throws IOException {
+		file = File.createTempFile("async-logger", ".log");
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+
+	public void testWritesEverythingInOrder() throws Exception {
+		final AsyncLogger logger = new AsyncLogger(LogLevel.INFO, file, 16, WhenFull.BLOCK);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						logger.info(thread + ":" + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		logger.close();
+
+		final List<String> lines = readLines();
+		assertEquals(4000, lines.size());
+		final int[] next = new int[threads.length];
+		for (String line : lines) {
+			final String[] parts = line.substring(line.lastIndexOf(' ') + 1).split(":");
+			final int thread = Integer.parseInt(parts[0]);
+			assertEquals(next[thread]++, Integer.parseInt(parts[1])); // each thread's records stay in order
+		}
+	}
+
+	public void testChecksLevel() throws IOException {
+		final AsyncLogger logger = new AsyncLogger(LogLevel.WARN, file, 16, WhenFull.BLOCK);
+		assertFalse(logger.isEnabled(LogLevel.INFO));
+		logger.info("skipped");
+		logger.error("kept");
+		logger.setLogLevel(LogLevel.DEBUG);
+		assertTrue(logger.isEnabled(LogLevel.DEBUG));
+		logger.debug("kept too");
+		logger.close();
+
+		final List<String> lines = readLines();
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).endsWith(": kept"));
+		assertTrue(lines.get(1).endsWith(": kept too"));
+	}
+
+	public void testCountsDropped() throws IOException {
+		final AsyncLogger logger = new AsyncLogger(LogLevel.INFO, file, 4, WhenFull.DROP);
+		for (int i = 0; i < 10000; i++) {
+			logger.info("record " + i);
+		}
+		logger.close();
+
+		// Every record is either written, or counted among the dropped
+		int written = 0, dropped = 0;
+		for (String line : readLines()) {
+			final Matcher m = DROPPED.matcher(line);
+			if (m.find()) {
+				dropped += Integer.parseInt(m.group(1));
+			} else {
+				written++;
+			}
+		}
+		assertEquals(10000, written + dropped);
+	}
+
+	private List<String> readLines() throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+	}
+}
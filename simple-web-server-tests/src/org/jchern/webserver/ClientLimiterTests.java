@@ -0,0 +1,53 @@
+package org.jchern.webserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import junit.framework.TestCase;
+
+public class ClientLimiterTests extends TestCase {
+
+	private InetAddress first;
+	private InetAddress second;
+
+	public void setUp() throws UnknownHostException {
+		first = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		second = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+	}
+
+	public void testLimitsConnectionsPerClient() {
+		final ClientLimiter limiter = new ClientLimiter(2, 0);
+		assertTrue(limiter.tryConnect(first));
+		assertTrue(limiter.tryConnect(first));
+		assertFalse(limiter.tryConnect(first));
+		assertTrue(limiter.tryConnect(second)); // others aren't affected
+
+		limiter.release(first);
+		assertTrue(limiter.tryConnect(first));
+	}
+
+	public void testLimitsRequestsPerClient() throws InterruptedException {
+		final ClientLimiter limiter = new ClientLimiter(0, 10);
+		assertTrue(limiter.tryConnect(first));
+		for (int i = 1; i < 10; i++) {
+			assertTrue(limiter.tryRequest(first)); // a second's worth at once
+		}
+		assertFalse(limiter.tryRequest(first));
+		assertFalse(limiter.tryConnect(first)); // a new connection's first request counts too
+		assertTrue(limiter.tryConnect(second));
+
+		Thread.sleep(250); // refills at 10 per second
+		assertTrue(limiter.tryRequest(first));
+	}
+
+	public void testForgetsIdleClients() throws InterruptedException {
+		final ClientLimiter limiter = new ClientLimiter(4, 100);
+		assertTrue(limiter.tryConnect(first));
+		assertTrue(limiter.tryConnect(second));
+		limiter.release(second);
+
+		Thread.sleep(1100); // past the sweep interval, with buckets full again
+		assertTrue(limiter.tryConnect(first)); // sweeps
+		assertEquals(1, limiter.size()); // only the client with connections open is kept
+	}
+}
@@ -0,0 +1,84 @@
+package org.jchern.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends raw (pipelined) requests to a running server, and looks at what comes back on the connection.
+ */
+public class KeepAliveTests extends TestCase {
+
+	private static final String ROOT = "./res/test";
+	private static final int PORT = 18291;
+
+	// The body of the first request looks like a second request: it must not be answered as one.
+	private static final String SMUGGLED = "GET /dir1/index.html HTTP/1.1\r\nContent-Length: 30\r\n\r\n"
+			+ "GET /secret HTTP/1.1\r\nX: y\r\n\r\n";
+
+	public void testBodyIsNotParsedAsNextRequest_Selector() throws IOException {
+		assertEquals(1, countResponses(ServerConfig.Engine.SELECTOR, PORT, SMUGGLED));
+	}
+
+	public void testBodyIsNotParsedAsNextRequest_Blocking() throws IOException {
+		assertEquals(1, countResponses(ServerConfig.Engine.BLOCKING, PORT + 1, SMUGGLED));
+	}
+
+	public void testChunkedBodyIsNotParsedAsNextRequest() throws IOException {
+		final String chunked = "GET /dir1/index.html HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "GET /secret HTTP/1.1\r\n\r\n";
+		assertEquals(1, countResponses(ServerConfig.Engine.SELECTOR, PORT + 2, chunked));
+	}
+
+	public void testPipelinedRequestsWithoutBodiesAreAllAnswered() throws IOException {
+		final String pipelined = "GET /dir1/index.html HTTP/1.1\r\nContent-Length: 0\r\n\r\n"
+				+ "GET /dir1/index.html HTTP/1.1\r\nConnection: close\r\n\r\n";
+		assertEquals(2, countResponses(ServerConfig.Engine.SELECTOR, PORT + 3, pipelined));
+	}
+
+	/**
+	 * Sends the input all at once, and reads until the server closes the connection.
+	 */
+	private static int countResponses(final ServerConfig.Engine engine, final int port, final String input)
+			throws IOException {
+		final ServerConfig config = new ServerConfig();
+		config.setEngine(engine);
+		config.setWatchFiles(false);
+		final HttpFileServer server = new HttpFileServer(port, ROOT, config);
+		server.start();
+		try {
+			final Socket socket = new Socket("127.0.0.1", port);
+			try {
+				socket.setSoTimeout(5000);
+				final OutputStream out = socket.getOutputStream();
+				out.write(input.getBytes("US-ASCII"));
+				out.flush();
+
+				final InputStream in = socket.getInputStream();
+				final ByteArrayOutputStream received = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					received.write(buffer, 0, read);
+				}
+				return count(received.toString("US-ASCII"), "HTTP/1.1 ");
+			} finally {
+				socket.close();
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static int count(final String s, final String of) {
+		int count = 0;
+		for (int i = s.indexOf(of); i >= 0; i = s.indexOf(of, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+}
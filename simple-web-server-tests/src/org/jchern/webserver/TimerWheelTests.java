@@ -0,0 +1,62 @@
+package org.jchern.webserver;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTests extends TestCase {
+
+	private static final long TICK_MS = 10;
+
+	/**
+	 * Records when it's checked, and asks to be checked again after the given intervals, in turn.
+	 */
+	private static class Recorder implements TimerWheel.ITimer {
+		final List<Long> checkedAt = Lists.newArrayList();
+		final long[] intervals;
+
+		Recorder(final long... intervals) {
+			this.intervals = intervals;
+		}
+
+		@Override
+		public long check(final long nowMs) {
+			checkedAt.add(nowMs);
+			final int n = checkedAt.size() - 1;
+			return (n < intervals.length) ? nowMs + intervals[n] : 0;
+		}
+	}
+
+	public void testChecksTimersWhenDue() {
+		final TimerWheel wheel = new TimerWheel(TICK_MS, 8);
+		final long start = System.currentTimeMillis();
+		final Recorder timer = new Recorder(35);
+		wheel.schedule(timer, start + 25);
+
+		for (long now = start; now < start + 200; now += 5) {
+			wheel.advance(now);
+		}
+		assertEquals(2, timer.checkedAt.size()); // then forgotten
+		final long first = timer.checkedAt.get(0);
+		assertTrue(first >= start + 25 && first <= start + 25 + TICK_MS);
+		final long second = timer.checkedAt.get(1);
+		assertTrue(second >= first + 35 && second <= first + 35 + TICK_MS);
+	}
+
+	public void testKeepsTimersDueAfterMoreThanATurn() {
+		final TimerWheel wheel = new TimerWheel(TICK_MS, 8); // a turn is 80ms
+		final long start = System.currentTimeMillis();
+		final Recorder timer = new Recorder();
+		wheel.schedule(timer, start + 250);
+
+		for (long now = start; now < start + 245; now += 5) {
+			wheel.advance(now);
+		}
+		assertTrue(timer.checkedAt.isEmpty());
+
+		wheel.advance(start + 400); // even if advanced late, past several turns at once
+		assertEquals(1, timer.checkedAt.size());
+	}
+}
@@ -0,0 +1,206 @@
+package org.jchern.accesslog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jchern.http.HttpRequest;
+import org.jchern.http.HttpResponse;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Records every response sent, for later analysis (see AccessLogTool), as compact binary records
+ * appended to memory-mapped segment files. Logging a response costs an atomic add, to claim room for its record
+ * in the current segment, and a few stores into the mapping: no Strings, no locks, and no system calls.
+ * The OS writes the mapped pages out to the files in its own time, even those of full segments;
+ * only close() waits, for those of the current segment.
+ *
+ * Segments are files of a fixed size, named in sequence (access-00000001.log, ...), each starting with a short header.
+ * When the current segment has no room for a record, the next one is created and mapped (the only system calls,
+ * once per segment, on whichever thread found it full);
+ * existing segments are never written to again, so each run of the server continues after the last one.
+ *
+ * Record layout (big-endian), at offsets from the start of the record:
+ *  0  short  length of the whole record; 0 where no (complete) record follows
+ *  2  short  status code
+ *  4  byte   request method, as HttpMethod ordinal + 1; 0 if the request couldn't be parsed
+ *  5  byte   flags: FLAG_CACHE_HIT
+ *  6  byte   length of the remote address (4 or 16, or 0 if unknown)
+ *  7  byte   length of the content type (0 if no content)
+ *  8  long   time the request was received, in ms since the epoch
+ * 16  long   time taken to respond, in ns: from having the request to having written the whole response
+ * 24  long   content bytes sent, or -1 if not known up front (chunked)
+ * 32  short  length of the URL (truncated to MAX_URL_LENGTH)
+ * 34         remote address, content type and URL bytes (ISO-8859-1), in that order
+ * The length is written last, so a record that's still being written reads as the end of the segment.
+ *
+ * Threadsafe: shared by all connections.
+ * @author Jeff Chern
+ */
+public class AccessLog {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	/*package*/ static final int MAGIC = 0x57414c31; // "WAL1"
+	/*package*/ static final int SEGMENT_HEADER_LENGTH = 8; // MAGIC, then the segment size
+	/*package*/ static final int RECORD_HEADER_LENGTH = 34;
+	/*package*/ static final int MAX_URL_LENGTH = 1024;
+	/*package*/ static final int MAX_CONTENT_TYPE_LENGTH = 255;
+	/*package*/ static final int FLAG_CACHE_HIT = 1;
+	/*package*/ static final String SEGMENT_PREFIX = "access-";
+	/*package*/ static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * One mapped segment file, and how much of it has been claimed.
+	 */
+	private static class Segment {
+		final int number;
+		final MappedByteBuffer buffer;
+		final AtomicInteger claimed = new AtomicInteger(SEGMENT_HEADER_LENGTH);
+
+		Segment(final int number, final MappedByteBuffer buffer) {
+			this.number = number;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return where the claimed room starts, or -1 if this segment doesn't have that much room left
+		 */
+		int claim(final int length) {
+			final int at = claimed.getAndAdd(length);
+			return (at + length <= buffer.capacity()) ? at : -1;
+		}
+	}
+
+	private final File dir;
+	private final int segmentBytes;
+	private volatile Segment current; // null once closed, or if a segment couldn't be created
+
+	/**
+	 * @param dir where the segment files are kept; created if needed
+	 * @param segmentBytes size of each segment file
+	 */
+	public AccessLog(final File dir, final int segmentBytes) throws IOException {
+		if (segmentBytes < SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + 16 + MAX_CONTENT_TYPE_LENGTH + MAX_URL_LENGTH) {
+			throw new IllegalArgumentException("Access log segments must fit the longest record: " + segmentBytes);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create access log directory " + dir);
+		}
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+
+		final File[] existing = AccessLogReader.listSegments(dir);
+		final int last = (existing.length == 0) ? 0 : segmentNumber(existing[existing.length - 1]);
+		this.current = openSegment(last + 1);
+	}
+
+	/**
+	 * Records a response that has been completely sent.
+	 * @param remoteAddress the client's raw IP address (as from InetAddress.getAddress()), or null if unknown
+	 * @param request null if the request couldn't be parsed
+	 * @param bytesSent content bytes sent, or -1 if not known up front
+	 * @param cacheHit whether the content was sent from memory, rather than read from disk or generated
+	 * @param startMs when the request was received, in ms since the epoch
+	 * @param startNs when the request was received, as System.nanoTime()
+	 */
+	public void record(final byte[] remoteAddress, final HttpRequest request, final HttpResponse response, final long bytesSent,
+			final boolean cacheHit, final long startMs, final long startNs) {
+		final long latencyNs = System.nanoTime() - startNs;
+		final String url = (request == null) ? "" : request.getUrl();
+		final String contentType = (response.getContentType() == null) ? "" : response.getContentType();
+		final int addressLength = (remoteAddress == null) ? 0 : remoteAddress.length;
+		final int typeLength = Math.min(contentType.length(), MAX_CONTENT_TYPE_LENGTH);
+		final int urlLength = Math.min(url.length(), MAX_URL_LENGTH);
+		final int length = RECORD_HEADER_LENGTH + addressLength + typeLength + urlLength;
+
+		Segment segment;
+		int at;
+		while (true) {
+			segment = current;
+			if (segment == null) return;
+			at = segment.claim(length);
+			if (at >= 0) break;
+			nextSegment(segment);
+		}
+
+		// Absolute puts only: other threads are writing their own records into the same buffer.
+		final MappedByteBuffer out = segment.buffer;
+		out.putShort(at + 2, (short) response.getStatus().getNumber());
+		out.put(at + 4, (byte) ((request == null) ? 0 : request.getMethod().ordinal() + 1));
+		out.put(at + 5, (byte) (cacheHit ? FLAG_CACHE_HIT : 0));
+		out.put(at + 6, (byte) addressLength);
+		out.put(at + 7, (byte) typeLength);
+		out.putLong(at + 8, startMs);
+		out.putLong(at + 16, latencyNs);
+		out.putLong(at + 24, bytesSent);
+		out.putShort(at + 32, (short) urlLength);
+
+		int pos = at + RECORD_HEADER_LENGTH;
+		for (int i = 0; i < addressLength; i++) {
+			out.put(pos++, remoteAddress[i]);
+		}
+		pos = putChars(out, pos, contentType, typeLength);
+		putChars(out, pos, url, urlLength);
+		out.putShort(at, (short) length); // last: the record is complete
+	}
+
+	/**
+	 * Stops recording, and writes out what has been recorded so far.
+	 */
+	public synchronized void close() {
+		final Segment segment = current;
+		current = null;
+		if (segment != null) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Replaces the full segment with a new one, unless another thread already has.
+	 */
+	private synchronized void nextSegment(final Segment full) {
+		if (current != full) return;
+		try {
+			current = openSegment(full.number + 1);
+		} catch (IOException e) {
+			logger.error("AccessLog: Can't create the next segment, no longer recording.");
+			logger.error(e);
+			current = null;
+		}
+		// Not forced here: that would make a request thread wait for the disk. The mapping outlives the reference.
+	}
+
+	private Segment openSegment(final int number) throws IOException {
+		final File file = new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+		final MappedByteBuffer buffer;
+		// The mapping stays valid after the channel is closed.
+		final FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		} finally {
+			channel.close();
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, segmentBytes);
+		return new Segment(number, buffer);
+	}
+
+	/*package*/ static int segmentNumber(final File segment) {
+		final String name = segment.getName();
+		return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static int putChars(final MappedByteBuffer out, int pos, final String s, final int length) {
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			out.put(pos++, (c <= 0xFF) ? (byte) c : (byte) '?');
+		}
+		return pos;
+	}
+}
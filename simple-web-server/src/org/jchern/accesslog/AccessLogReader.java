@@ -0,0 +1,117 @@
+package org.jchern.accesslog;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.jchern.http.HttpMethod;
+
+/**
+ * Reads back the records of one access log segment, in the order they were claimed.
+ * Stops at the first record that isn't complete (e.g. still being written, or lost in a crash).
+ *
+ * NOT threadsafe.
+ * @author Jeff Chern
+ */
+public class AccessLogReader {
+
+	private final ByteBuffer buffer;
+	private int pos = AccessLog.SEGMENT_HEADER_LENGTH;
+
+	public AccessLogReader(final File segment) throws IOException {
+		final FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		if (buffer.capacity() < AccessLog.SEGMENT_HEADER_LENGTH || buffer.getInt(0) != AccessLog.MAGIC) {
+			throw new IOException("Not an access log segment: " + segment);
+		}
+	}
+
+	/**
+	 * @return the next record, or null if there are no more
+	 */
+	public AccessRecord next() {
+		if (pos + AccessLog.RECORD_HEADER_LENGTH > buffer.capacity()) return null;
+		final int length = buffer.getShort(pos) & 0xFFFF;
+		if (length == 0) return null;
+
+		final int addressLength = buffer.get(pos + 6) & 0xFF;
+		final int typeLength = buffer.get(pos + 7) & 0xFF;
+		final int urlLength = buffer.getShort(pos + 32) & 0xFFFF;
+		final int methodNumber = buffer.get(pos + 4) & 0xFF;
+
+		int at = pos + AccessLog.RECORD_HEADER_LENGTH;
+		final String address = readAddress(at, addressLength);
+		at += addressLength;
+		final String contentType = readChars(at, typeLength);
+		at += typeLength;
+		final String url = readChars(at, urlLength);
+
+		final AccessRecord record = new AccessRecord(
+				buffer.getLong(pos + 8),
+				buffer.getLong(pos + 16),
+				address,
+				(methodNumber == 0) ? null : HttpMethod.values()[methodNumber - 1],
+				url,
+				buffer.getShort(pos + 2),
+				buffer.getLong(pos + 24),
+				contentType,
+				(buffer.get(pos + 5) & AccessLog.FLAG_CACHE_HIT) != 0);
+		pos += length;
+		return record;
+	}
+
+	/**
+	 * @return the segment files in the directory, oldest first
+	 */
+	public static File[] listSegments(final File dir) {
+		final File[] segments = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(AccessLog.SEGMENT_PREFIX) && name.endsWith(AccessLog.SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				return Integer.compare(AccessLog.segmentNumber(a), AccessLog.segmentNumber(b));
+			}
+		});
+		return segments;
+	}
+
+	private String readAddress(final int at, final int length) {
+		if (length == 0) return "";
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(at + i);
+		}
+		try {
+			return InetAddress.getByAddress(bytes).getHostAddress();
+		} catch (UnknownHostException e) {
+			return "?"; // not a valid address length
+		}
+	}
+
+	private String readChars(final int at, final int length) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(at + i);
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+}
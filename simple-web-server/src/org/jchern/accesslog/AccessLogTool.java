@@ -0,0 +1,191 @@
+package org.jchern.accesslog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Summarizes an access log from the command line, e.g. for capacity planning.
+ *
+ * Reports:
+ *  urls [N]  - the N (default 10) most requested URLs, with their bytes sent
+ *  latency   - response times (p50, p99, max) for each status code
+ *  types     - bytes sent for each content type, and how many came from memory
+ * @author Jeff Chern
+ */
+public class AccessLogTool {
+
+	private static final int DEFAULT_TOP_URLS = 10;
+
+	/**
+	 * Totals for one group of records (one URL, or one content type...).
+	 */
+	/*package*/ static class Totals {
+		long count = 0;
+		long bytes = 0;
+		long cacheHits = 0;
+
+		void add(final AccessRecord record) {
+			count++;
+			bytes += Math.max(0, record.bytesSent);
+			if (record.cacheHit) cacheHits++;
+		}
+	}
+
+	/**
+	 * The response times of one group of records.
+	 */
+	/*package*/ static class Latencies {
+		private long[] values = new long[64];
+		private int count = 0;
+		private boolean sorted = true;
+
+		void add(final long latencyNs) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = latencyNs;
+			sorted = false;
+		}
+
+		int count() {
+			return count;
+		}
+
+		/**
+		 * @param percent 0 to 100
+		 * @return the nearest-rank percentile
+		 */
+		long percentile(final double percent) {
+			if (!sorted) {
+				Arrays.sort(values, 0, count);
+				sorted = true;
+			}
+			final int rank = (int) Math.ceil(percent / 100 * count);
+			return values[Math.max(0, Math.min(count - 1, rank - 1))];
+		}
+	}
+
+	/**
+	 * Arguments required:
+	 * 1. access log dir
+	 * 2. report (urls, latency or types)
+	 * Optional:
+	 * 3. how many URLs (for urls)
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			printUsage();
+			return;
+		}
+		final File dir = new File(args[0]);
+		final String report = args[1];
+		if (!dir.isDirectory()) {
+			System.err.println("No access log directory: " + dir);
+			return;
+		}
+		try {
+			if (report.equals("urls")) {
+				final int top = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_TOP_URLS;
+				printTopUrls(totalsBy(dir, false), top, System.out);
+			} else if (report.equals("latency")) {
+				printLatencies(latenciesByStatus(dir), System.out);
+			} else if (report.equals("types")) {
+				printTotals(totalsBy(dir, true), System.out);
+			} else {
+				printUsage();
+			}
+		} catch (NumberFormatException e) {
+			printUsage();
+		} catch (IOException e) {
+			System.err.println("Can't read access log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param byContentType whether to group by content type, rather than URL
+	 */
+	/*package*/ static Map<String, Totals> totalsBy(final File dir, final boolean byContentType) throws IOException {
+		final Map<String, Totals> totals = Maps.newHashMap();
+		for (File segment : AccessLogReader.listSegments(dir)) {
+			final AccessLogReader reader = new AccessLogReader(segment);
+			AccessRecord record;
+			while ((record = reader.next()) != null) {
+				final String key = byContentType ? record.contentType : record.url;
+				Totals t = totals.get(key);
+				if (t == null) {
+					t = new Totals();
+					totals.put(key, t);
+				}
+				t.add(record);
+			}
+		}
+		return totals;
+	}
+
+	/*package*/ static Map<Integer, Latencies> latenciesByStatus(final File dir) throws IOException {
+		final Map<Integer, Latencies> latencies = Maps.newTreeMap();
+		for (File segment : AccessLogReader.listSegments(dir)) {
+			final AccessLogReader reader = new AccessLogReader(segment);
+			AccessRecord record;
+			while ((record = reader.next()) != null) {
+				Latencies l = latencies.get(record.status);
+				if (l == null) {
+					l = new Latencies();
+					latencies.put(record.status, l);
+				}
+				l.add(record.latencyNs);
+			}
+		}
+		return latencies;
+	}
+
+	private static void printTopUrls(final Map<String, Totals> byUrl, final int top, final PrintStream out) {
+		final List<Map.Entry<String, Totals>> entries = sortedByCount(byUrl);
+		out.println(String.format("%10s %14s  %s", "requests", "bytes", "url"));
+		for (Map.Entry<String, Totals> e : entries.subList(0, Math.min(top, entries.size()))) {
+			out.println(String.format("%10d %14d  %s", e.getValue().count, e.getValue().bytes, e.getKey()));
+		}
+	}
+
+	private static void printTotals(final Map<String, Totals> byType, final PrintStream out) {
+		out.println(String.format("%10s %14s %10s  %s", "requests", "bytes", "from mem", "content type"));
+		for (Map.Entry<String, Totals> e : sortedByCount(byType)) {
+			final Totals t = e.getValue();
+			out.println(String.format("%10d %14d %10d  %s", t.count, t.bytes, t.cacheHits,
+					e.getKey().isEmpty() ? "(none)" : e.getKey()));
+		}
+	}
+
+	private static void printLatencies(final Map<Integer, Latencies> byStatus, final PrintStream out) {
+		out.println(String.format("%6s %10s %10s %10s %10s", "status", "requests", "p50 ms", "p99 ms", "max ms"));
+		for (Map.Entry<Integer, Latencies> e : byStatus.entrySet()) {
+			final Latencies l = e.getValue();
+			out.println(String.format("%6d %10d %10.3f %10.3f %10.3f", e.getKey(), l.count(),
+					l.percentile(50) / 1e6, l.percentile(99) / 1e6, l.percentile(100) / 1e6));
+		}
+	}
+
+	private static List<Map.Entry<String, Totals>> sortedByCount(final Map<String, Totals> totals) {
+		final List<Map.Entry<String, Totals>> entries = Lists.newArrayList(totals.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Totals>>() {
+			@Override
+			public int compare(final Map.Entry<String, Totals> a, final Map.Entry<String, Totals> b) {
+				return Long.compare(b.getValue().count, a.getValue().count);
+			}
+		});
+		return entries;
+	}
+
+	private static void printUsage() {
+		System.out.println("Usage:   java  org.jchern.accesslog.AccessLogTool  <access log dir>  urls [N] | latency | types");
+	}
+}
@@ -0,0 +1,33 @@
+package org.jchern.accesslog;
+
+import org.jchern.http.HttpMethod;
+
+/**
+ * One response, as read back from an access log.
+ * @author Jeff Chern
+ */
+public class AccessRecord {
+
+	public final long startMs; // when the request was received
+	public final long latencyNs; // from having the request to having written the whole response
+	public final String remoteAddress; // e.g. "127.0.0.1", or "" if unknown
+	public final HttpMethod method; // null if the request couldn't be parsed
+	public final String url; // "" if the request couldn't be parsed
+	public final int status;
+	public final long bytesSent; // content bytes, or -1 if not known up front
+	public final String contentType; // "" if there was no content
+	public final boolean cacheHit; // content sent from memory
+
+	public AccessRecord(final long startMs, final long latencyNs, final String remoteAddress, final HttpMethod method,
+			final String url, final int status, final long bytesSent, final String contentType, final boolean cacheHit) {
+		this.startMs = startMs;
+		this.latencyNs = latencyNs;
+		this.remoteAddress = remoteAddress;
+		this.method = method;
+		this.url = url;
+		this.status = status;
+		this.bytesSent = bytesSent;
+		this.contentType = contentType;
+		this.cacheHit = cacheHit;
+	}
+}
@@ -0,0 +1,41 @@
+package org.jchern.file;
+
+import java.io.File;
+
+/**
+ * Content codings a file may also be stored in, as a precompressed "sidecar" file next to it
+ * (e.g. style.css.br and style.css.gz, next to style.css). In order of preference, smallest first.
+ * @author Jeff Chern
+ */
+public enum ContentCoding {
+	BROTLI("br", ".br"),
+	GZIP("gzip", ".gz");
+
+	public final String token; // as named in Accept-Encoding and Content-Encoding fields
+	public final String extension; // of the sidecar file
+
+	private ContentCoding(final String token, final String extension) {
+		this.token = token;
+		this.extension = extension;
+	}
+
+	/**
+	 * @return the sidecar file of the given file, in this coding
+	 */
+	public File sidecarOf(final File file) {
+		return new File(file.getPath() + extension);
+	}
+
+	/**
+	 * @return the file a sidecar file is a coding of, or null if it isn't named like a sidecar
+	 */
+	public static File originalOf(final File sidecar) {
+		final String path = sidecar.getPath();
+		for (ContentCoding coding : values()) {
+			if (path.endsWith(coding.extension) && path.length() > coding.extension.length()) {
+				return new File(path.substring(0, path.length() - coding.extension.length()));
+			}
+		}
+		return null;
+	}
+}
@@ -4,8 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
 import org.jchern.utils.ILogger;
 import org.jchern.utils.SingleLogger;
@@ -13,6 +15,8 @@ import org.jchern.utils.SingleLogger;
 /**
  * A mapping of file extensions to Internet MIME content-types,
  * loaded from a text file.
+ * Each line is an extension and its type, separated by tabs, optionally followed by "compress"
+ * if content of that type is worth gzipping on the fly.
  * @author Jeff Chern
  *
  */
@@ -25,10 +29,12 @@ public class ContentTypes {
 	public static final String DEFAULT_TYPE_FILE = "mime-type-default.txt";
 	public static final String DEFAULT_FALLBACK_TYPE = "application/octet-stream"; // if the default file is missing
 	public static final String DEFAULT_HTML_TYPE = "text/html";
+	private static final String COMPRESS_FLAG = "compress";
 
 	// Mapping of file extensions to reported types
 	private static Map<String, String> types;
 	private static String defaultType;
+	private static Set<String> compressibleTypes;
 
 	public static String getMimeTypeForExtension(String ext) {
 		ext = ext.toLowerCase();
@@ -39,6 +45,16 @@ public class ContentTypes {
 		}
 	}
 
+	/**
+	 * Whether content of the given type (parameters such as "; charset=UTF-8" are ignored) is worth gzipping,
+	 * as flagged in the MIME types file.
+	 */
+	public static boolean isCompressible(final String contentType) {
+		final int semicolon = contentType.indexOf(';');
+		final String type = (semicolon < 0) ? contentType : contentType.substring(0, semicolon);
+		return compressibleTypes.contains(type.trim().toLowerCase());
+	}
+
 	public static synchronized void init() {
 		if (types == null) {
 			initDefaultType();
@@ -64,15 +80,19 @@ public class ContentTypes {
 	private static void initMappedTypes() {
 		// Load file extensions to type mapping
 		types = new HashMap<String, String>();
+		compressibleTypes = new HashSet<String>();
 		try {
 			final Scanner src = new Scanner(new BufferedReader(new FileReader(MIME_TYPES_FILE)));
 			while (src.hasNextLine()) {
 				final String line = src.nextLine();
 				final String[] split = line.split("\t+");
-				if (split.length != 2) {
+				if (split.length < 2 || split.length > 3 || (split.length == 3 && !split[2].trim().equals(COMPRESS_FLAG))) {
 					logger.warn("Error parsing MIME type definition: " + line);
 				} else {
 					types.put(split[0].toLowerCase(), split[1]);
+					if (split.length == 3) {
+						compressibleTypes.add(split[1].toLowerCase());
+					}
 				}
 			}
 			src.close();
@@ -0,0 +1,290 @@
+package org.jchern.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jchern.utils.ILogger;
+import org.jchern.utils.SingleLogger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps the contents of small, frequently requested files in memory (off the Java heap, in direct buffers),
+ * so they can be served without opening or reading the file again.
+ *
+ * Bounded by a total memory budget. When a new file doesn't fit, the least recently used files are evicted,
+ * but only if the new file has been requested more often than them lately (TinyLFU admission):
+ * a burst of one-off requests can't flush out the files that are popular all the time.
+ *
+ * Entries remember the length and modified time of the file they were read from,
+ * and are dropped as soon as a request sees different ones.
+ *
+ * Hits don't lock: they look the file up in a concurrent map, and record the read in a ReadBuffer.
+ * The reads are replayed into the frequency sketch and the recency order (which do need the lock)
+ * only when a miss takes the lock anyway, to decide on admission and eviction.
+ *
+ * Threadsafe: shared by all connections.
+ * @author Jeff Chern
+ */
+public class FileContentCache implements IFileCache {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	// Used to size the frequency sketch: we only need to tell apart about as many files as could fit in the budget.
+	private static final long TYPICAL_FILE_SIZE = 4096;
+
+	private static class Entry {
+		final ByteBuffer content; // read-only
+		final long length;
+		final long lastModified;
+
+		Entry(final ByteBuffer content, final long length, final long lastModified) {
+			this.content = content;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final long maxBytes;
+	private final long maxFileSize;
+
+	// For lookups; changed only with the lock held, along with recency.
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ReadBuffer<String> reads = new ReadBuffer<String>();
+
+	// Guarded by this. In access order, so the first entry is the least recently used.
+	private final LinkedHashMap<String, Entry> recency = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private final List<String> drained = Lists.newArrayList();
+	private long usedBytes = 0;
+	private long evictions = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maxBytes total size of all cached files
+	 * @param maxFileSize files larger than this are never cached
+	 */
+	public FileContentCache(final long maxBytes, final long maxFileSize) {
+		this.maxBytes = maxBytes;
+		this.maxFileSize = Math.min(maxFileSize, maxBytes);
+		this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / TYPICAL_FILE_SIZE));
+	}
+
+	/**
+	 * Returns the contents of the file, from memory if possible.
+	 * On a miss, the file is read and cached, if it's small enough and popular enough to deserve it.
+	 * @param file
+	 * @param length the file's current length
+	 * @param lastModified the file's current modified time
+	 * @return a buffer of the file's contents (positioned at the start, and owned by the caller), or null if the file isn't cached
+	 */
+	public ByteBuffer getContent(final File file, final long length, final long lastModified) {
+		if (length > maxFileSize) {
+			return null; // never cached: not counted, and no need for the lock
+		}
+		final String key = FileKeys.keyOf(file);
+
+		final Entry cached = entries.get(key);
+		if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+			hits.increment();
+			reads.offer(key);
+			return cached.content.duplicate();
+		}
+
+		synchronized (this) {
+			drainReads();
+			sketch.increment(key.hashCode());
+
+			final Entry entry = recency.get(key);
+			if (entry != null) {
+				if (entry.length == length && entry.lastModified == lastModified) {
+					hits.increment(); // another thread cached it meanwhile
+					return entry.content.duplicate();
+				}
+				remove(key); // the file changed since it was cached
+			}
+			misses.increment();
+
+			if (!shouldAdmit(key, length)) {
+				return null;
+			}
+		}
+
+		// Read outside the lock, so other threads' hits don't wait on the disk.
+		final ByteBuffer content = readFile(file, length);
+		if (content == null) {
+			return null;
+		}
+
+		synchronized (this) {
+			remove(key); // in case another thread cached it meanwhile
+			makeRoom(length);
+			final Entry entry = new Entry(content, length, lastModified);
+			recency.put(key, entry);
+			entries.put(key, entry);
+			usedBytes += length;
+		}
+		return content.duplicate();
+	}
+
+	/**
+	 * Drops the cached contents of the given file, if any.
+	 */
+	@Override
+	public synchronized void invalidate(final File file) {
+		remove(FileKeys.keyOf(file));
+	}
+
+	/**
+	 * Drops the cached contents of the given path, and of every file beneath it.
+	 */
+	@Override
+	public synchronized void invalidateTree(final File dir) {
+		final String dirKey = FileKeys.keyOf(dir);
+		final Iterator<Map.Entry<String, Entry>> it = recency.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Entry> entry = it.next();
+			if (FileKeys.isUnder(entry.getKey(), dirKey)) {
+				entries.remove(entry.getKey());
+				usedBytes -= entry.getValue().length;
+				it.remove();
+			}
+		}
+		remove(dirKey);
+	}
+
+	/**
+	 * Drops everything.
+	 */
+	@Override
+	public synchronized void clear() {
+		recency.clear();
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("FileContentCache: %d files, %d/%d bytes, %d hits, %d misses, %d evictions",
+				entries.size(), usedBytes, maxBytes, hits.sum(), misses.sum(), evictions);
+	}
+
+	/**
+	 * Replays the hits recorded since last time: counts them, and moves their files to the most recently used end.
+	 */
+	private void drainReads() {
+		reads.drainTo(drained);
+		for (int i = 0; i < drained.size(); i++) {
+			final String key = drained.get(i);
+			sketch.increment(key.hashCode());
+			recency.get(key); // moves it to the end, if it is still cached
+		}
+		drained.clear();
+	}
+
+	/**
+	 * Whether a file of the given length should be cached: either it fits,
+	 * or it's more popular than every least-recently-used file that would have to be evicted to make it fit.
+	 */
+	private boolean shouldAdmit(final String key, final long length) {
+		final int candidateFrequency = sketch.frequency(key.hashCode());
+
+		long freed = maxBytes - usedBytes;
+		final Iterator<Map.Entry<String, Entry>> lru = recency.entrySet().iterator();
+		while (freed < length && lru.hasNext()) {
+			final Map.Entry<String, Entry> victim = lru.next();
+			if (sketch.frequency(victim.getKey().hashCode()) >= candidateFrequency) {
+				return false;
+			}
+			freed += victim.getValue().length;
+		}
+		return freed >= length;
+	}
+
+	/**
+	 * Evicts least recently used files until there's room for the given length.
+	 */
+	private void makeRoom(final long length) {
+		final List<String> victims = Lists.newArrayList();
+		long freed = maxBytes - usedBytes;
+		for (Map.Entry<String, Entry> victim : recency.entrySet()) {
+			if (freed >= length) break;
+			victims.add(victim.getKey());
+			freed += victim.getValue().length;
+		}
+		for (String victim : victims) {
+			remove(victim);
+			evictions++;
+		}
+	}
+
+	private void remove(final String key) {
+		entries.remove(key);
+		final Entry removed = recency.remove(key);
+		if (removed != null) {
+			usedBytes -= removed.length;
+		}
+	}
+
+	/**
+	 * Reads the whole file into a new direct buffer.
+	 * @return the read-only buffer, or null if the file couldn't be read, or its length changed
+	 */
+	private static ByteBuffer readFile(final File file, final long length) {
+		FileChannel in = null;
+		try {
+			in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			final ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+			while (content.hasRemaining() && in.read(content) != -1) {
+				// keep reading
+			}
+			if (content.hasRemaining() || in.size() != length) {
+				return null; // file changed while reading it
+			}
+			content.flip();
+			return content.asReadOnlyBuffer();
+		} catch (IOException e) {
+			logger.error(e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// silence...
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.jchern.file;
+
+import java.io.File;
+import java.nio.file.InvalidPathException;
+
+/**
+ * How every IFileCache names the files it remembers: by absolute path, without any "." or ".." parts,
+ * so that the file watcher's paths and the paths that requested URLs resolve to find the same entries.
+ * @author Jeff Chern
+ */
+public class FileKeys {
+
+	private static final String DOT_SEGMENT = File.separator + "."; // starts a "." or ".." part (or a dot-file's name)
+
+	private FileKeys() {
+	}
+
+	/**
+	 * The key for the file. Cheap for paths that are already absolute and normalized (e.g. those under StaticFiles'
+	 * root): only other paths are normalized.
+	 */
+	public static String keyOf(final File file) {
+		final String path = file.getPath();
+		if (file.isAbsolute() && !path.contains(DOT_SEGMENT)) {
+			return path;
+		}
+		try {
+			return file.getAbsoluteFile().toPath().normalize().toString();
+		} catch (InvalidPathException e) {
+			return file.getAbsolutePath(); // e.g. a URL containing a NUL char: can't be on disk anyway
+		}
+	}
+
+	/**
+	 * The key of the file's directory, or null if it has none.
+	 */
+	public static String parentOf(final String key) {
+		final int separator = key.lastIndexOf(File.separatorChar);
+		return (separator > 0) ? key.substring(0, separator) : null;
+	}
+
+	/**
+	 * Whether the key names something beneath the given directory (not the directory itself).
+	 */
+	public static boolean isUnder(final String key, final String dirKey) {
+		return key.length() > dirKey.length() + 1 && key.startsWith(dirKey)
+				&& key.charAt(dirKey.length()) == File.separatorChar;
+	}
+}
@@ -0,0 +1,210 @@
+package org.jchern.file;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jchern.strings.Strings;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
+import org.jchern.utils.SingleLogger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Watches the whole served directory tree for changes, from a background thread,
+ * and tells the caches to forget each file as soon as it's created, modified or deleted.
+ * When a directory is deleted, moved or added, they forget everything beneath it too;
+ * a deleted plain file costs each cache only a lookup.
+ * With this running, caches can keep what they know for a long time, without serving stale files after a deploy.
+ *
+ * If the OS loses track of events (an overflow, e.g. when a deploy changes a lot of files at once),
+ * every cache is cleared and the tree is registered again from scratch.
+ * @author Jeff Chern
+ */
+public class FileWatcher {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	private final Path root;
+	private final List<IFileCache> caches;
+	private final Map<WatchKey, Path> watchedDirs = Maps.newHashMap(); // only touched by the watch thread, once started
+	// Every directory registered and not yet seen deleted, so a deleted path can be told to have been one.
+	private final Set<Path> registeredDirs = Sets.newHashSet();
+
+	private WatchService watchService;
+	private Thread watchThread;
+
+	/**
+	 * @param root the directory tree to watch
+	 * @param caches the caches to tell about changes
+	 */
+	public FileWatcher(final File root, final List<IFileCache> caches) {
+		this.root = root.toPath();
+		this.caches = Lists.newArrayList(caches);
+	}
+
+	/**
+	 * Registers the whole tree, then starts watching it on a background thread, and returns.
+	 * @throws IOException if the tree can't be watched
+	 */
+	public synchronized void start() throws IOException {
+		if (watchService != null) return; // only start once
+
+		watchService = FileSystems.getDefault().newWatchService();
+		registerTree(root);
+
+		watchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "file-watcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	public synchronized void stop() {
+		if (watchService != null) {
+			try {
+				watchService.close(); // wakes up the watch thread, which then exits
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				final WatchKey key = watchService.take();
+				final Path dir = watchedDirs.get(key);
+
+				for (WatchEvent<?> event : key.pollEvents()) {
+					try {
+						handle(event, dir);
+					} catch (IOException e) {
+						// e.g. a new subdirectory was deleted again before it could be watched
+						logger.error(e);
+					}
+				}
+
+				if (!key.reset()) {
+					watchedDirs.remove(key); // the directory was deleted
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void handle(final WatchEvent<?> event, final Path dir) throws IOException {
+		if (event.kind() == OVERFLOW || dir == null) {
+			rescan();
+			return;
+		}
+		final Path changed = dir.resolve((Path) event.context());
+		if (logger.isEnabled(LogLevel.DEBUG)) {
+			logger.debug(Strings.get(Strings.FILE_CHANGED, changed));
+		}
+
+		if (event.kind() == ENTRY_DELETE) {
+			invalidate(changed.toFile());
+			// Once deleted, only the registrations tell whether it was a directory; if it was, nothing beneath it exists any more.
+			if (unregisterTree(changed)) {
+				invalidateTree(changed.toFile());
+			}
+		} else if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+			// A new subdirectory (maybe moved here whole): forget what was known not to be beneath it, and watch it.
+			invalidateTree(changed.toFile());
+			registerTree(changed);
+		} else {
+			invalidate(changed.toFile());
+		}
+	}
+
+	/**
+	 * Falls back to forgetting everything, when it's unknown what changed.
+	 */
+	private void rescan() throws IOException {
+		logger.info(Strings.get(Strings.FILE_WATCH_OVERFLOW, root));
+		for (IFileCache cache : caches) {
+			cache.clear();
+		}
+		registerTree(root); // pick up any directories whose creation was missed
+	}
+
+	private void invalidate(final File changed) {
+		for (IFileCache cache : caches) {
+			cache.invalidate(changed);
+		}
+	}
+
+	private void invalidateTree(final File changed) {
+		for (IFileCache cache : caches) {
+			cache.invalidateTree(changed);
+		}
+	}
+
+	/**
+	 * Forgets that the given directory, and every directory beneath it, were registered.
+	 * Their watch keys are cancelled by the OS, and dropped when they're next signalled.
+	 * @return whether the path was a registered directory
+	 */
+	private boolean unregisterTree(final Path top) {
+		if (!registeredDirs.remove(top)) {
+			return false;
+		}
+		final Iterator<Path> dirs = registeredDirs.iterator();
+		while (dirs.hasNext()) {
+			if (dirs.next().startsWith(top)) {
+				dirs.remove();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Watches the given directory and every directory beneath it.
+	 * Directories that are already watched just keep their existing registration.
+	 */
+	private void registerTree(final Path top) throws IOException {
+		Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+				final WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchedDirs.put(key, dir);
+				registeredDirs.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+				logger.error(e);
+				return FileVisitResult.CONTINUE; // e.g. an unreadable subdirectory: just don't watch it
+			}
+		});
+	}
+}
@@ -0,0 +1,89 @@
+package org.jchern.file;
+
+/**
+ * Approximately counts how often each key has been seen recently, in a small fixed amount of memory
+ * (a Count-Min sketch of 4-bit counters, as used by TinyLFU).
+ *
+ * Counters saturate at 15, and are all halved once enough increments have been recorded,
+ * so that keys which used to be popular gradually lose their advantage.
+ *
+ * NOT threadsafe: callers must synchronize.
+ * @author Jeff Chern
+ */
+/*package*/ class FrequencySketch {
+
+	private static final int[] SEEDS = { 0x97cb3127, 0xb1a0c4e5, 0x8d4be9d3, 0xc3a5c85c }; // one per row
+	private static final long RESET_MASK = 0x7777777777777777L; // clears the high bit of each 4-bit counter, after shifting
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table; // 16 counters per long
+	private final int tableMask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param expectedKeys roughly how many distinct keys are worth telling apart
+	 */
+	public FrequencySketch(final int expectedKeys) {
+		int width = 64;
+		while (width < expectedKeys && width < (1 << 24)) {
+			width <<= 1;
+		}
+		table = new long[width];
+		tableMask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	/**
+	 * Returns the estimated number of times the key was seen recently, from 0 to 15.
+	 */
+	public int frequency(final int keyHash) {
+		int min = MAX_COUNT;
+		for (int row = 0; row < SEEDS.length; row++) {
+			final int hash = rehash(keyHash, row);
+			min = Math.min(min, counterAt(hash));
+		}
+		return min;
+	}
+
+	/**
+	 * Records one more occurrence of the key.
+	 */
+	public void increment(final int keyHash) {
+		boolean added = false;
+		for (int row = 0; row < SEEDS.length; row++) {
+			final int hash = rehash(keyHash, row);
+			if (counterAt(hash) < MAX_COUNT) {
+				table[hash & tableMask] += 1L << offsetOf(hash);
+				added = true;
+			}
+		}
+		if (added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	private int counterAt(final int hash) {
+		return (int) ((table[hash & tableMask] >>> offsetOf(hash)) & MAX_COUNT);
+	}
+
+	private static int offsetOf(final int hash) {
+		return ((hash >>> 24) & 15) << 2; // which of the 16 counters in the long
+	}
+
+	private static int rehash(final int keyHash, final int row) {
+		int hash = (keyHash ^ SEEDS[row]) * 0x9e3779b9;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	/**
+	 * Halves every counter, so that old popularity fades.
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+}
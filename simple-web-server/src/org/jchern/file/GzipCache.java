@@ -0,0 +1,235 @@
+package org.jchern.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.jchern.utils.ILogger;
+import org.jchern.utils.SingleLogger;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Gzips content for clients that accept it, when there's no precompressed copy to send instead,
+ * and remembers the result so that each version of a file (or listing) is only compressed once.
+ *
+ * Entries are keyed by path, and remember the version they were compressed from (for files, their length
+ * and modified time); they're recompressed as soon as a request sees a different version.
+ * Content that doesn't compress usefully is remembered too, so it isn't tried again.
+ *
+ * Bounded by the total size of the compressed content; the least recently used are dropped to make room.
+ * Threadsafe: shared by all connections.
+ * @author Jeff Chern
+ */
+public class GzipCache implements IFileCache {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	// Compressed content must be at most this fraction of the original to be worth sending instead.
+	private static final double MAX_RATIO = 0.9;
+	// What remembering that content doesn't compress is counted as, so that even those entries are bounded.
+	private static final int INCOMPRESSIBLE_ENTRY_SIZE = 64;
+
+	private static class Entry {
+		final String version;
+		final byte[] compressed; // null if not worth compressing
+
+		Entry(final String version, final byte[] compressed) {
+			this.version = version;
+			this.compressed = compressed;
+		}
+
+		int size() {
+			return (compressed == null) ? INCOMPRESSIBLE_ENTRY_SIZE : compressed.length;
+		}
+	}
+
+	private final long maxBytes;
+	private final long minLength;
+	private final long maxLength;
+
+	// In access order, so the first entry is the least recently used.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long usedBytes = 0;
+
+	/**
+	 * @param maxBytes total size of all remembered compressed content
+	 * @param minLength content shorter than this isn't worth compressing
+	 * @param maxLength content longer than this is never compressed on the fly
+	 */
+	public GzipCache(final long maxBytes, final long minLength, final long maxLength) {
+		this.maxBytes = maxBytes;
+		this.minLength = minLength;
+		this.maxLength = Math.min(maxLength, maxBytes);
+	}
+
+	/**
+	 * Whether a file of this length is ever compressed.
+	 * Responses for such content vary by Accept-Encoding, whether or not this one is compressed.
+	 */
+	public boolean isCandidate(final long length) {
+		return length >= minLength && length <= maxLength;
+	}
+
+	/**
+	 * Whether generated content of this length is ever compressed. Unlike files, it's already in memory,
+	 * so it's only limited by what the cache can hold.
+	 */
+	public boolean isGeneratedCandidate(final long length) {
+		return length >= minLength && length <= maxBytes;
+	}
+
+	/**
+	 * Returns the gzipped contents of the file, compressing (and remembering) them if needed.
+	 * @param length the file's current length
+	 * @param lastModified the file's current modified time
+	 * @return a buffer of the gzipped contents (owned by the caller), or null if the file isn't worth compressing
+	 */
+	public ByteBuffer getGzipped(final File file, final long length, final long lastModified) {
+		if (!isCandidate(length)) {
+			return null;
+		}
+		final String version = length + "/" + lastModified;
+		final Entry entry = get(file, version);
+		if (entry != null) {
+			return wrap(entry);
+		}
+
+		try {
+			final byte[] content = Files.readAllBytes(file.toPath());
+			if (content.length != length) {
+				return null; // changed while being read; the next request will see its new version
+			}
+			return wrap(put(file, version, gzip(content)));
+		} catch (IOException e) {
+			logger.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns gzipped content that was generated for a path (e.g. a directory listing), compressing it if needed.
+	 * @param version identifies this version of the content, e.g. its entity tag
+	 * @param content the content, only read (and always closed) if this version isn't remembered yet
+	 * @param length the content's length
+	 * @return a buffer of the gzipped content (owned by the caller), or null if the content isn't worth compressing
+	 */
+	public ByteBuffer getGzipped(final File path, final String version, final InputStream content, final long length) {
+		try {
+			if (!isGeneratedCandidate(length)) {
+				return null;
+			}
+			final Entry entry = get(path, version);
+			if (entry != null) {
+				return wrap(entry);
+			}
+			return wrap(put(path, version, gzip(ByteStreams.toByteArray(content))));
+		} catch (IOException e) {
+			logger.error(e);
+			return null;
+		} finally {
+			closeQuietly(content);
+		}
+	}
+
+	/**
+	 * Forgets the compressed content of the changed path, and of the directory it's listed in.
+	 */
+	@Override
+	public synchronized void invalidate(final File changed) {
+		final String key = FileKeys.keyOf(changed);
+		remove(key);
+		final String parentKey = FileKeys.parentOf(key);
+		if (parentKey != null) {
+			remove(parentKey);
+		}
+	}
+
+	/**
+	 * As invalidate(), and also forgets the compressed content of everything beneath the given directory.
+	 */
+	@Override
+	public synchronized void invalidateTree(final File changed) {
+		invalidate(changed);
+		final String dirKey = FileKeys.keyOf(changed);
+		final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Entry> entry = it.next();
+			if (FileKeys.isUnder(entry.getKey(), dirKey)) {
+				usedBytes -= entry.getValue().size();
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	private synchronized Entry get(final File path, final String version) {
+		final Entry entry = entries.get(FileKeys.keyOf(path));
+		return (entry != null && entry.version.equals(version)) ? entry : null;
+	}
+
+	private synchronized Entry put(final File path, final String version, final byte[] compressed) {
+		final Entry entry = new Entry(version, compressed);
+		final String key = FileKeys.keyOf(path);
+		remove(key); // an older version, or the same one compressed meanwhile by another thread
+
+		final Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+		while (usedBytes + entry.size() > maxBytes && lru.hasNext()) {
+			usedBytes -= lru.next().getValue().size();
+			lru.remove();
+		}
+		entries.put(key, entry);
+		usedBytes += entry.size();
+		return entry;
+	}
+
+	private void remove(final String key) {
+		final Entry removed = entries.remove(key);
+		if (removed != null) {
+			usedBytes -= removed.size();
+		}
+	}
+
+	private static void closeQuietly(final InputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// silence...
+		}
+	}
+
+	private static ByteBuffer wrap(final Entry entry) {
+		return (entry.compressed == null) ? null : ByteBuffer.wrap(entry.compressed).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the gzipped content, or null if it doesn't get usefully smaller
+	 */
+	private static byte[] gzip(final byte[] content) {
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4);
+		try {
+			final GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(content);
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // can't happen, writing to memory
+		}
+		return (compressed.size() <= content.length * MAX_RATIO) ? compressed.toByteArray() : null;
+	}
+}
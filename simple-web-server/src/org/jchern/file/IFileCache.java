@@ -0,0 +1,26 @@
+package org.jchern.file;
+
+import java.io.File;
+
+/**
+ * Anything that remembers what it found in the served files, and must forget it when they change.
+ * @author Jeff Chern
+ */
+public interface IFileCache {
+
+	/**
+	 * Forgets anything remembered about the given file (which may have been created, modified, or deleted).
+	 */
+	public void invalidate(File changed);
+
+	/**
+	 * Like invalidate(), but also forgets everything beneath the given path, for a directory that was
+	 * deleted, moved or added (or a path that may have been a directory, before it was deleted).
+	 */
+	public void invalidateTree(File changed);
+
+	/**
+	 * Forgets everything, e.g. when it's no longer known which files changed.
+	 */
+	public void clear();
+}
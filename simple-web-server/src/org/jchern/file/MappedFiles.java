@@ -0,0 +1,185 @@
+package org.jchern.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jchern.utils.ILogger;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Shares one read-only memory mapping per large file, among all the responses sending that file.
+ * Each response writes its own view of the mapping straight to the socket,
+ * so concurrent downloads of the same file don't each open it, or copy it through the Java heap.
+ *
+ * The total size of all mappings is capped; the least recently used mappings are dropped to make room
+ * (their memory is actually unmapped once the last response using them is finished, and they're garbage collected).
+ * A mapping is replaced whenever a request sees that the file's length or modified time has changed.
+ *
+ * Threadsafe: shared by all connections.
+ * @author Jeff Chern
+ */
+public class MappedFiles implements IFileCache {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	private static class Mapping {
+		final ByteBuffer buffer; // read-only
+		final long length;
+		final long lastModified;
+
+		Mapping(final ByteBuffer buffer, final long length, final long lastModified) {
+			this.buffer = buffer;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final long maxMappedBytes;
+	private final long minFileSize;
+
+	// In access order, so the first mapping is the least recently used.
+	private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+	private long mappedBytes = 0;
+
+	/**
+	 * @param maxMappedBytes total size of all mapped files
+	 * @param minFileSize files smaller than this aren't worth mapping
+	 */
+	public MappedFiles(final long maxMappedBytes, final long minFileSize) {
+		this.maxMappedBytes = maxMappedBytes;
+		this.minFileSize = minFileSize;
+	}
+
+	/**
+	 * Returns a view of the file's shared mapping, mapping it first if needed.
+	 * @param file
+	 * @param length the file's current length
+	 * @param lastModified the file's current modified time
+	 * @return a buffer of the file's contents (positioned at the start, and owned by the caller), or null if the file isn't mapped
+	 */
+	public ByteBuffer getMapping(final File file, final long length, final long lastModified) {
+		if (length < minFileSize || length > maxMappedBytes || length > Integer.MAX_VALUE) {
+			return null;
+		}
+		final String key = FileKeys.keyOf(file);
+
+		synchronized (this) {
+			final Mapping mapping = mappings.get(key);
+			if (mapping != null) {
+				if (mapping.length == length && mapping.lastModified == lastModified) {
+					return mapping.buffer.duplicate();
+				}
+				remove(key); // the file changed since it was mapped
+			}
+		}
+
+		// Map outside the lock, so other threads' lookups don't wait on the file system.
+		final ByteBuffer buffer = mapFile(file, length);
+		if (buffer == null) {
+			return null;
+		}
+
+		synchronized (this) {
+			remove(key); // in case another thread mapped it meanwhile
+			makeRoom(length);
+			mappings.put(key, new Mapping(buffer, length, lastModified));
+			mappedBytes += length;
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * Drops the mapping of the given file, if any.
+	 */
+	@Override
+	public synchronized void invalidate(final File file) {
+		remove(FileKeys.keyOf(file));
+	}
+
+	/**
+	 * Drops the mappings of the given path, and of every file beneath it.
+	 */
+	@Override
+	public synchronized void invalidateTree(final File dir) {
+		final String dirKey = FileKeys.keyOf(dir);
+		final Iterator<Map.Entry<String, Mapping>> it = mappings.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Mapping> mapping = it.next();
+			if (FileKeys.isUnder(mapping.getKey(), dirKey)) {
+				mappedBytes -= mapping.getValue().length;
+				it.remove();
+			}
+		}
+		remove(dirKey);
+	}
+
+	/**
+	 * Drops every mapping.
+	 */
+	@Override
+	public synchronized void clear() {
+		mappings.clear();
+		mappedBytes = 0;
+	}
+
+	public synchronized long getMappedBytes() {
+		return mappedBytes;
+	}
+
+	public synchronized int getMappingCount() {
+		return mappings.size();
+	}
+
+	/**
+	 * Drops least recently used mappings until there's room for the given length.
+	 */
+	private void makeRoom(final long length) {
+		final Iterator<Map.Entry<String, Mapping>> lru = mappings.entrySet().iterator();
+		while (mappedBytes + length > maxMappedBytes && lru.hasNext()) {
+			mappedBytes -= lru.next().getValue().length;
+			lru.remove();
+		}
+	}
+
+	private void remove(final String key) {
+		final Mapping removed = mappings.remove(key);
+		if (removed != null) {
+			mappedBytes -= removed.length;
+		}
+	}
+
+	/**
+	 * Maps the first length bytes of the file, read-only.
+	 * The mapping stays valid after the channel is closed.
+	 * @return the read-only buffer, or null if the file couldn't be mapped
+	 */
+	private static ByteBuffer mapFile(final File file, final long length) {
+		FileChannel in = null;
+		try {
+			in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			if (in.size() < length) {
+				return null; // file shrank since it was looked up
+			}
+			final MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			return mapped.asReadOnlyBuffer();
+		} catch (IOException e) {
+			logger.error(e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// silence...
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.jchern.file;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records reads (e.g. cache hits) without locking, for a cache to replay later, under its own lock,
+ * into the bookkeeping that needs one (frequency sketch, recency order).
+ *
+ * Striped by thread, so threads rarely record into the same ring; each ring is small and bounded.
+ * It's lossy: a read is dropped if its ring is full, or if another thread is recording into the ring at the same moment.
+ * That's fine for what reads are used for here, which is only ever approximate anyway (as in W-TinyLFU).
+ *
+ * offer() may be called from any thread; drainTo() by only one thread at a time (callers synchronize).
+ * @author Jeff Chern
+ */
+/*package*/ class ReadBuffer<E> {
+
+	private static final int STRIPES = 16; // must be a power of 2
+	private static final int STRIPE_SIZE = 32; // must be a power of 2
+
+	// Ring i is elements[i * STRIPE_SIZE, (i + 1) * STRIPE_SIZE), written at writes[i] and read at reads[i].
+	private final AtomicReferenceArray<E> elements = new AtomicReferenceArray<E>(STRIPES * STRIPE_SIZE);
+	private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray reads = new AtomicLongArray(STRIPES);
+
+	/**
+	 * Records the element, unless its ring is full or busy.
+	 */
+	public void offer(final E element) {
+		final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		final long write = writes.get(stripe);
+		if (write - reads.get(stripe) >= STRIPE_SIZE) {
+			return; // full: dropped
+		}
+		if (writes.compareAndSet(stripe, write, write + 1)) {
+			elements.lazySet(indexOf(stripe, write), element);
+		}
+	}
+
+	/**
+	 * Moves everything recorded so far into the sink.
+	 */
+	public void drainTo(final List<E> sink) {
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			long read = reads.get(stripe);
+			final long write = writes.get(stripe);
+			for (; read < write; read++) {
+				final int index = indexOf(stripe, read);
+				final E element = elements.get(index);
+				if (element == null) {
+					break; // claimed, but not stored yet: left for next time
+				}
+				elements.lazySet(index, null);
+				sink.add(element);
+			}
+			reads.lazySet(stripe, read);
+		}
+	}
+
+	private static int indexOf(final int stripe, final long count) {
+		return stripe * STRIPE_SIZE + (int) (count & (STRIPE_SIZE - 1));
+	}
+}
@@ -2,11 +2,34 @@ package org.jchern.file;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.collect.Lists;
 
-public class StaticFiles {
+/**
+ * Resolves requested URLs to the files under the served root directory.
+ *
+ * Each resolution reads the file's attributes in one go (a single stat), and can optionally be remembered
+ * for a short time, so that repeated requests for the same URL don't touch the file system at all.
+ * Callers that learn of changes to the files (e.g. from a file watcher) can invalidate remembered resolutions early.
+ *
+ * Optionally also looks for precompressed copies of each file (see ContentCoding), remembered along with the rest.
+ * @author Jeff Chern
+ */
+public class StaticFiles implements IFileCache {
+
+	// Upper bound on remembered resolutions, so that requests for endless made-up URLs can't use up memory.
+	private static final int MAX_CACHED_INFOS = 10000;
 
 	private static final List<String> indexFilenames = Lists.newArrayList("index.htm", "index.html");
 	private static final FilenameFilter indexFilenameFilter = new FilenameFilter() {
@@ -23,22 +46,114 @@ public class StaticFiles {
 	};
 	
 	private final File rootPath;
+	private final long infoTtlMs;
+	private final boolean findPrecompressed;
+	// By FileKeys.keyOf(path), so that a change to one file is found without searching.
+	private final ConcurrentHashMap<String, FileInfo> cachedInfos = new ConcurrentHashMap<String, FileInfo>();
 	
 	/**
 	 * Pass the directory, where files should be served from.
 	 * @param root
 	 */
 	public StaticFiles(final File root) {
-		this.rootPath = root;
+		this(root, 0);
+	}
+
+	/**
+	 * @param root the directory, where files should be served from
+	 * @param infoTtlMs how long to remember each URL's resolution, or 0 to look at the file system for every request
+	 */
+	public StaticFiles(final File root, final long infoTtlMs) {
+		this(root, infoTtlMs, false);
+	}
+
+	/**
+	 * @param root the directory, where files should be served from
+	 * @param infoTtlMs how long to remember each URL's resolution, or 0 to look at the file system for every request
+	 * @param findPrecompressed whether to look for precompressed sidecar files (e.g. foo.css.gz) next to each file
+	 */
+	public StaticFiles(final File root, final long infoTtlMs, final boolean findPrecompressed) {
+		this.rootPath = new File(FileKeys.keyOf(root)); // so that the paths of the files under it are keys already
+		this.infoTtlMs = infoTtlMs;
+		this.findPrecompressed = findPrecompressed;
+	}
+
+	public File getRootPath() {
+		return rootPath;
 	}
 
 	public FileInfo getInfoForUrl(final String url) {
+		if (infoTtlMs <= 0) {
+			return resolve(url);
+		}
+
+		final long now = System.currentTimeMillis();
+		final String key = FileKeys.keyOf(new File(rootPath, url));
+		final FileInfo cached = cachedInfos.get(key);
+		// Other URLs for the same file (e.g. with and without a trailing '/') are resolved again: they're named differently.
+		if (cached != null && now - cached.resolvedAtMs < infoTtlMs && cached.originalUrl.equals(url)) {
+			return cached;
+		}
+
+		final FileInfo info = resolve(url);
+		if (cachedInfos.size() >= MAX_CACHED_INFOS) {
+			cachedInfos.clear();
+		}
+		cachedInfos.put(key, info);
+		return info;
+	}
+
+	/**
+	 * Forgets any remembered resolutions that depend on the given file:
+	 * those of the file itself, of its parent directory (whose index file may have changed),
+	 * and of the file it's a precompressed copy of, if it's named like one.
+	 */
+	@Override
+	public void invalidate(final File changed) {
+		final String key = FileKeys.keyOf(changed);
+		cachedInfos.remove(key);
+		final String parentKey = FileKeys.parentOf(key);
+		if (parentKey != null) {
+			cachedInfos.remove(parentKey);
+		}
+		final File original = ContentCoding.originalOf(new File(key));
+		if (original != null) {
+			cachedInfos.remove(original.getPath());
+		}
+	}
+
+	/**
+	 * As invalidate(), and also forgets the resolutions of everything beneath the given directory.
+	 */
+	@Override
+	public void invalidateTree(final File changed) {
+		invalidate(changed);
+		final String dirKey = FileKeys.keyOf(changed);
+		final Iterator<String> keys = cachedInfos.keySet().iterator();
+		while (keys.hasNext()) {
+			if (FileKeys.isUnder(keys.next(), dirKey)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forgets all remembered resolutions.
+	 */
+	@Override
+	public void clear() {
+		cachedInfos.clear();
+	}
+
+	private FileInfo resolve(final String url) {
 		// File's ctor treats absolute child 'url' as a relative path under 'rootPath'
-		return new FileInfo(new File(rootPath, url), url);
+		return new FileInfo(new File(rootPath, url), url, findPrecompressed);
 	}
 
 	/**
 	 * Describes a file's path, and whether it is a DIRECTORY, FILE, or is NON-EXISTENT.
+	 * Everything is looked up once, when the FileInfo is created, and never changes afterwards,
+	 * so instances are safe to share between threads.
 	 */
 	public static class FileInfo {
 
@@ -50,10 +165,77 @@ public class StaticFiles {
 
 		final File path;
 		final String originalUrl;
+		private final Status status;
+		private final long length;
+		private final long lastModified;
+		private final String etag;
+		private final FileInfo indexFile; // for directories only
+		private final Map<ContentCoding, FileInfo> precompressed; // for files only; empty if there are none
+		private final long resolvedAtMs;
 		
-		private FileInfo(final File path, final String originalUrl) {
+		private FileInfo(final File path, final String originalUrl, final boolean findPrecompressed) {
 			this.path = path;
 			this.originalUrl = originalUrl;
+			this.resolvedAtMs = System.currentTimeMillis();
+
+			BasicFileAttributes attributes = null;
+			final Path nioPath = toNioPath(path);
+			if (nioPath != null && Files.isReadable(nioPath)) {
+				try {
+					attributes = Files.readAttributes(nioPath, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// doesn't exist (any more)
+				}
+			}
+
+			if (attributes == null) {
+				status = Status.NON_EXISTENT;
+				length = 0;
+				lastModified = 0;
+				etag = null;
+			} else {
+				status = attributes.isDirectory() ? Status.DIRECTORY : Status.FILE;
+				length = attributes.size();
+				lastModified = attributes.lastModifiedTime().toMillis();
+				etag = makeETag(attributes.fileKey(), length, lastModified);
+			}
+			indexFile = (status == Status.DIRECTORY) ? findIndexFile(findPrecompressed) : null;
+			precompressed = (status == Status.FILE && findPrecompressed) ? findPrecompressed()
+					: Collections.<ContentCoding, FileInfo>emptyMap();
+		}
+
+		/**
+		 * Looks for a sidecar file in each coding. Ones older than this file are ignored: they'd be of an earlier version.
+		 */
+		private Map<ContentCoding, FileInfo> findPrecompressed() {
+			Map<ContentCoding, FileInfo> found = null;
+			for (ContentCoding coding : ContentCoding.values()) {
+				final FileInfo sidecar = new FileInfo(coding.sidecarOf(path), originalUrl + coding.extension, false);
+				if (sidecar.isFile() && sidecar.lastModified >= lastModified) {
+					if (found == null) {
+						found = new EnumMap<ContentCoding, FileInfo>(ContentCoding.class);
+					}
+					found.put(coding, sidecar);
+				}
+			}
+			return (found == null) ? Collections.<ContentCoding, FileInfo>emptyMap() : found;
+		}
+
+		/**
+		 * A strong entity tag from the file's identity (its inode, where the file system has one), length and modified time:
+		 * any change to the file changes at least one of them, and none of them needs the content to be read.
+		 */
+		private static String makeETag(final Object fileKey, final long length, final long lastModified) {
+			final int identity = (fileKey == null) ? 0 : fileKey.hashCode();
+			return String.format("\"%x-%x-%x\"", identity, length, lastModified);
+		}
+
+		private static Path toNioPath(final File path) {
+			try {
+				return path.toPath();
+			} catch (InvalidPathException e) {
+				return null; // e.g. a URL containing a NUL char
+			}
 		}
 
 		public File getPath() {
@@ -64,26 +246,56 @@ public class StaticFiles {
 			return originalUrl;
 		}
 
-		private static Status getStatus(File path) {
-			if (!path.exists() || !path.canRead()) {
-				return Status.NON_EXISTENT;
-			} else if (path.isDirectory()) {
-				return Status.DIRECTORY;
-			} else {
-				return Status.FILE;
-			}
+		public Status getStatus() {
+			return status;
 		}
 
 		public boolean found() {
-			return getStatus(path) != Status.NON_EXISTENT;
+			return status != Status.NON_EXISTENT;
 		}
 
 		public boolean isFile() {
-			return getStatus(path) == Status.FILE;
+			return status == Status.FILE;
 		}
 
 		public boolean isDir() {
-			return getStatus(path) == Status.DIRECTORY;
+			return status == Status.DIRECTORY;
+		}
+
+		/**
+		 * The file's length in bytes, as of when it was looked up. 0 if not found.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * The file's modified time in ms, as of when it was looked up. 0 if not found.
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * The file's entity tag (quoted, as sent in the ETag field), as of when it was looked up. null if not found.
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * For file paths ONLY, returns the precompressed copy of this file in the given coding,
+		 * or null if there is none (or the StaticFiles wasn't asked to look for them).
+		 */
+		public FileInfo getPrecompressed(final ContentCoding coding) {
+			return precompressed.get(coding);
+		}
+
+		/**
+		 * Whether there are any precompressed copies of this file, i.e. whether its responses vary by Accept-Encoding.
+		 */
+		public boolean hasPrecompressed() {
+			return !precompressed.isEmpty();
 		}
 
 		/**
@@ -91,7 +303,7 @@ public class StaticFiles {
 		 * @return
 		 */
 		public boolean hasIndexFile() {
-			return getIndexFile() != null;
+			return indexFile != null;
 		}
 
 		/**
@@ -100,19 +312,19 @@ public class StaticFiles {
 		 * @return
 		 */
 		public FileInfo getIndexFile() {
-			if (isDir()) {
-				final File[] indexFiles = path.listFiles(indexFilenameFilter);
-				if (indexFiles.length > 0) {
-					// return first file matching index name filter
-					final File firstFile = indexFiles[0];
-					final String effectiveUrl = originalUrl + '/' + firstFile.getName();
-					return new FileInfo(firstFile, effectiveUrl);
-				}
-				return null;
+			return indexFile;
+		}
+
+		private FileInfo findIndexFile(final boolean findPrecompressed) {
+			final File[] indexFiles = path.listFiles(indexFilenameFilter);
+			if (indexFiles != null && indexFiles.length > 0) {
+				// return first file matching index name filter
+				final File firstFile = indexFiles[0];
+				final String effectiveUrl = originalUrl + '/' + firstFile.getName();
+				return new FileInfo(firstFile, effectiveUrl, findPrecompressed);
 			}
 			return null;
 		}
-
 		/**
 		 * Returns the portion of the filename after the last '.' character,
 		 * or empty string if there are no '.'s in the filename. 
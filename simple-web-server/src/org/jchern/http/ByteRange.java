@@ -0,0 +1,90 @@
+package org.jchern.http;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * One range of bytes requested with a Range field, resolved against the length of the content:
+ * from first to last, inclusive (as in a Content-Range field).
+ * @author Jeff Chern
+ */
+public class ByteRange {
+
+	// More ranges than any reasonable client needs; requests with more are answered with the whole content instead,
+	// so that a single request can't make us send many overlapping copies of a file.
+	/*package*/ static final int MAX_RANGES = 16;
+
+	private static final String BYTES_UNIT = "bytes=";
+
+	public final long first;
+	public final long last;
+
+	public ByteRange(final long first, final long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	public long length() {
+		return last - first + 1;
+	}
+
+	@Override
+	public String toString() {
+		return first + "-" + last;
+	}
+
+	/**
+	 * Parses the value of a Range field (RFC 7233 section 2.1), e.g. "bytes=0-499, 1000-, -500",
+	 * against content of the given length.
+	 * @return the satisfiable ranges, in the order requested; an empty list if none of them are satisfiable;
+	 *         or null if the field must be ignored (it isn't a valid byte range set, or has too many ranges)
+	 */
+	public static List<ByteRange> parse(final String value, final long length) {
+		final String spec = value.trim();
+		if (!spec.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+			return null;
+		}
+
+		final List<ByteRange> ranges = Lists.newArrayList();
+		int specs = 0;
+		for (String element : spec.substring(BYTES_UNIT.length()).split(",")) {
+			final String rangeSpec = element.trim();
+			if (rangeSpec.isEmpty()) continue; // empty list elements are allowed
+			if (++specs > MAX_RANGES) return null;
+
+			final int dash = rangeSpec.indexOf('-');
+			if (dash < 0) return null;
+			final long first = parseDigits(rangeSpec.substring(0, dash));
+			final long last = parseDigits(rangeSpec.substring(dash + 1));
+			if (dash > 0 && first < 0) return null;
+
+			if (first < 0) {
+				// Suffix range: the last N bytes
+				if (last < 0) return null;
+				if (last > 0 && length > 0) {
+					ranges.add(new ByteRange(Math.max(0, length - last), length - 1));
+				}
+			} else {
+				if (dash + 1 < rangeSpec.length() && last < 0) return null;
+				if (last >= 0 && last < first) return null;
+				if (first < length) {
+					ranges.add(new ByteRange(first, (last < 0) ? length - 1 : Math.min(last, length - 1)));
+				}
+			}
+		}
+		return (specs == 0) ? null : ranges;
+	}
+
+	/**
+	 * @return the value of a non-empty string of decimal digits, or -1 for anything else
+	 */
+	private static long parseDigits(final String digits) {
+		if (digits.isEmpty() || digits.length() > 18) return -1; // longer can't be a real offset, and might overflow
+		for (int i = 0; i < digits.length(); i++) {
+			final char c = digits.charAt(i);
+			if (c < '0' || c > '9') return -1;
+		}
+		return Long.parseLong(digits);
+	}
+}
@@ -1,6 +1,6 @@
 package org.jchern.http;
 // TODO: make this an interface, so we can impl other ways
-import java.util.Map;
+import org.jchern.utils.TimeUtils;
 
 /**
  * Contains the fields of a parsed HTTP request, 
@@ -13,14 +13,13 @@ public class HttpRequest {
 	private final HttpMethod method;
 	private final String version;
 	private final String url;
-	private Map<String, String> fields;
-	// TODO: ignoring all other request header fields for now
+	private final RequestHeaders headers;
 	
-	public HttpRequest(final String method, final String version, final String url, final Map<String, String> fields) {
-		this.method = HttpMethod.getMethod(method);
+	public HttpRequest(final HttpMethod method, final String version, final String url, final RequestHeaders headers) {
+		this.method = method;
 		this.version = version;
 		this.url = url;
-		this.fields = fields;
+		this.headers = headers;
 	}
 
 	public HttpMethod getMethod() {
@@ -35,6 +34,158 @@ public class HttpRequest {
 		return url;
 	}
 	
+	/**
+	 * Returns the value of the named header field (case-insensitive), or null if the request didn't have it.
+	 */
+	public String getHeaderField(final String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * Returns the value of a header field the server looks at, or null if the request didn't have it.
+	 * Cheaper than looking it up by name.
+	 */
+	public String getHeaderField(final KnownHeader header) {
+		return headers.get(header);
+	}
+
+	public RequestHeaders getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Whether the request says a body follows its head (RFC 7230 section 3.3.3):
+	 * any Transfer-Encoding, or a Content-Length other than 0.
+	 */
+	public boolean declaresBody() {
+		if (getHeaderField(KnownHeader.TRANSFER_ENCODING) != null) {
+			return true;
+		}
+		final String length = getHeaderField(KnownHeader.CONTENT_LENGTH);
+		return length != null && !length.trim().equals("0");
+	}
+
+	/**
+	 * Whether the client wants to keep the connection open after this request:
+	 * the default for HTTP/1.1 unless it sent "Connection: close",
+	 * but for older versions only if it sent "Connection: keep-alive".
+	 */
+	public boolean isKeepAlive() {
+		final String connection = getHeaderField(KnownHeader.CONNECTION);
+		final String options = (connection == null) ? "" : connection.toLowerCase();
+		if (isBeforeHttp11()) {
+			return options.contains("keep-alive");
+		}
+		return !options.contains("close");
+	}
+
+	/**
+	 * Whether the client's cached copy, as described by its conditional fields, is still current,
+	 * so a 304 (Not Modified) can be sent instead of the content (RFC 7232 section 6):
+	 * If-None-Match decides if present, and only otherwise If-Modified-Since.
+	 * @param etag the content's current entity tag, or null if it has none
+	 * @param lastModifiedMs the content's current modified time
+	 */
+	public boolean isNotModified(final String etag, final long lastModifiedMs) {
+		final String ifNoneMatch = getHeaderField(KnownHeader.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			return etag != null && matchesAnyETag(ifNoneMatch, etag);
+		}
+		final String ifModifiedSince = getHeaderField(KnownHeader.IF_MODIFIED_SINCE);
+		if (ifModifiedSince != null) {
+			final long since = TimeUtils.parseHttpDate(ifModifiedSince, lastModifiedMs);
+			// Last-Modified is only sent to the second, so compare whole seconds.
+			return since >= 0 && lastModifiedMs / 1000 <= since / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether a Range field may be honored (RFC 7233 section 3.2): either there is no If-Range field,
+	 * or it names exactly the current content, by strong entity tag or by modified time.
+	 * Otherwise the client's partial copy is out of date, and it must be sent the whole content.
+	 */
+	public boolean isRangeCurrent(final String etag, final long lastModifiedMs) {
+		final String ifRange = getHeaderField(KnownHeader.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		final String validator = ifRange.trim();
+		if (validator.startsWith("\"") || validator.startsWith("W/")) {
+			return validator.equals(etag); // strong comparison: weak tags never match
+		}
+		final long date = TimeUtils.parseHttpDate(validator, lastModifiedMs);
+		return date >= 0 && date / 1000 == lastModifiedMs / 1000;
+	}
+
+	/**
+	 * Weak comparison (as RFC 7232 requires for If-None-Match): "W/" prefixes are ignored, and "*" matches anything.
+	 */
+	private static boolean matchesAnyETag(final String list, final String etag) {
+		final String opaqueTag = withoutWeakPrefix(etag);
+		for (String candidate : list.split(",")) {
+			final String tag = candidate.trim();
+			if (tag.equals("*") || withoutWeakPrefix(tag).equals(opaqueTag)) return true;
+		}
+		return false;
+	}
+
+	private static String withoutWeakPrefix(final String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * Whether the client accepts content in the given coding (e.g. "gzip"), according to its Accept-Encoding field:
+	 * named with a non-zero quality, or covered by a "*" with a non-zero quality.
+	 * Without an Accept-Encoding field, only the identity (uncoded) content is assumed to be accepted.
+	 */
+	public boolean acceptsEncoding(final String coding) {
+		final String accepted = getHeaderField(KnownHeader.ACCEPT_ENCODING);
+		if (accepted == null) {
+			return false;
+		}
+		float wildcardQuality = 0;
+		for (String element : accepted.split(",")) {
+			final String[] parameters = element.split(";");
+			final String name = parameters[0].trim();
+			if (name.equalsIgnoreCase(coding)) {
+				return qualityOf(parameters) > 0;
+			}
+			if (name.equals("*")) {
+				wildcardQuality = qualityOf(parameters);
+			}
+		}
+		return wildcardQuality > 0;
+	}
+
+	/**
+	 * @return the "q" parameter's value (1 if there isn't one, and 0 if it's malformed)
+	 */
+	private static float qualityOf(final String[] parameters) {
+		for (int i = 1; i < parameters.length; i++) {
+			final String parameter = parameters[i].trim();
+			if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+				try {
+					return Float.parseFloat(parameter.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Whether the client understands a response body sent with chunked transfer encoding (HTTP/1.1 and later).
+	 */
+	public boolean acceptsChunked() {
+		return !isBeforeHttp11();
+	}
+
+	private boolean isBeforeHttp11() {
+		return version.startsWith("1.0") || version.startsWith("0.");
+	}
+
 	/**
 	 * Strips all text after-and-including the first '?' char.
 	 * @return
@@ -1,24 +1,26 @@
 package org.jchern.http;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Helper class for configuring the properties of an immutable HttpRequest 
  * before instantiating it.
  */
 public class HttpRequestFactory {
-	private String method, version, url;
-	private Map<String, String> fields; // keyed by lower-case fieldnames
-	// I don't care about the order b/c we only need to consume requests (aside from some rare fields, which are allowed to occur multiple times) 
+	private HttpMethod method;
+	private String version, url;
+	private RequestHeaders headers;
 
 	// Prefer not to let clients instantiate factories manually, in case they one day become complicated and heavy.
 	private HttpRequestFactory() {
-		method = version = url = "";
-		fields = new HashMap<String, String>();
+		method = HttpMethod.UNKNOWN;
+		version = url = "";
+		headers = new RequestHeaders();
 	}
 	
 	public void setMethod(final String method) {
+		this.method = HttpMethod.getMethod(method);
+	}
+
+	public void setMethod(final HttpMethod method) {
 		this.method = method;
 	}
 	
@@ -30,14 +32,21 @@ public class HttpRequestFactory {
 		this.url = url;
 	}
 	
+	/**
+	 * Repeated fields are kept in order, and combined when looked up (see RequestHeaders).
+	 */
 	public void setHeaderField(final String key, final String value) {
-		fields.put(key.toLowerCase(), value);
+		headers.add(key, value);
 	}
 	
+	/**
+	 * Hands the header fields over to the request, rather than copying them:
+	 * fields set after this start a new table, so they can't change the request.
+	 */
 	public HttpRequest getRequest() {
-		final Map<String, String> headersCopy = new HashMap<String, String>();
-		headersCopy.putAll(fields); // defensive copy, in case this Factory's fields change
-		return new HttpRequest(method, version, url, headersCopy);
+		final HttpRequest request = new HttpRequest(method, version, url, headers);
+		headers = new RequestHeaders();
+		return request;
 	}
 	
 	/**
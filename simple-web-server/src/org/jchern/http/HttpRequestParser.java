@@ -1,194 +1,255 @@
 package org.jchern.http;
 
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.jchern.strings.Strings;
 
 /**
- * Each parser instance tracks how many chars consumed so far, 
- * for security against infinitly/maliciously long requests.
+ * Each parser instance tracks its progress through the request head being received,
+ * and how long it is so far, for security against infinitly/maliciously long requests.
  * 
  * These parsers are NOT threadsafe (i.e. can only be used by one thread).
  */
 public class HttpRequestParser {
 	// Considered using ANTLR to generate a parser, but minimal HTTP can be simple enough to hand-write.
 	
-	private static final String TEXT =    "(\\S+)"; // parens to capture it as a group
-	private static final String LWS =     "[ \\t]+"; // mandatory Linear WhiteSpace
-	private static final String LWS_OPT = "[ \\t]*"; // optional Linear WhiteSpace
-	private static final String HEADER_VALUE = "(.*?)"; // reluctant quantifier, to avoid capturing trailing whitespace; allow empty value.
-	
-	private static class RequestLinePattern {
-		private static final String REQUEST_REGEX = TEXT + LWS + TEXT + LWS + "HTTP/" + TEXT + LWS_OPT;
-		private static final Pattern PATTERN = Pattern.compile(REQUEST_REGEX);
-		
-		// matcher group indices (starting at 1, because 0 is the entire string)
-		public static final int METHOD = 1;
-		public static final int URL = 2;
-		public static final int VERSION = 3;
-		
-		public static Matcher matcher(String s) {
-			return PATTERN.matcher(s);
-		}
-	}
-	
-	// TODO: request header fields, untested, because not using them in this project.
-	private static class RequestHeaderPattern {
-		private static final String FIRST_LINE_REGEX = TEXT + ":" + LWS_OPT + HEADER_VALUE + LWS_OPT;
-		private static final String CONTINUED_LINE_REGEX = LWS + HEADER_VALUE + LWS_OPT; 
-		
-		private static final Pattern FIRST_LINE = Pattern.compile(FIRST_LINE_REGEX);
-		private static final Pattern CONTINUED_LINE = Pattern.compile(CONTINUED_LINE_REGEX);
-		
-		// matcher group indices
-		public static final int NAME = 1;
-		public static final int VALUE = 2;
-		
-		public static final int CONTINUED_VALUE = 1;
-	}
-	
 	// For security: reject requests that are too long, have infinite / maliciously long line length, 
 	// or infinite / maliciously long sequence of newlines at beginning.
 	public static final int MAX_REQUEST_LENGTH = 3000; // in chars
-	private int charsConsumedSoFar;
+	// When the request line and header fields are buffered in full before parsing, they must fit within this length.
+	public static final int MAX_HEAD_LENGTH = 8192; // in bytes
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] HTTP_PREFIX = "HTTP/".getBytes(ASCII);
+	private static final HttpMethod[] METHODS = HttpMethod.values();
+	private static final String[] COMMON_VERSIONS = { "1.1", "1.0" };
+	private static final int MAX_HEAD_LINES = 100; // request line plus header field lines
+
+	// Progress of parseNext through an incomplete request head, kept between calls.
+	// Offsets are relative to the buffer's position, so they stay valid if the buffer is compacted in between.
+	private final int[] lineStarts = new int[MAX_HEAD_LINES];
+	private final int[] lineEnds = new int[MAX_HEAD_LINES];
+	private int lineCount = 0; // complete, non-empty lines found so far
+	private int lineStart = 0; // where the line being scanned starts
+	private int scanned = 0; // how far line endings have been looked for
 	
 	public HttpRequestParser() {
 	}
 	
 	/**
-	 * Parses an HTTP request from the given BufferedReader.
-	 * @param in
-	 * @return
+	 * Parses the next request from a buffer of input read from a channel or socket,
+	 * if its head has been completely received. Call repeatedly to parse each of several requests
+	 * that a client has sent without waiting for responses (i.e. pipelined requests).
+	 *
+	 * Works directly on the bytes, and is incremental: when the head is incomplete, the line endings found so far
+	 * are remembered, and the next call (once more input has been appended) resumes scanning where this one stopped.
+	 * The buffer may be compacted in between, but the unparsed bytes must not otherwise be touched.
+	 * @param buffer array-backed, ready for reading (flipped). On success, its position is advanced past the parsed request.
+	 * @return the request, or null if the buffer doesn't hold a complete request head yet (the position is left unchanged)
 	 * @throws ParsingException if there was something wrong with the input content
-	 * @throws IOException if there was something wrong with the input reader
 	 */
-	public HttpRequest parse(BufferedReader in) throws ParsingException, IOException {
-		// Reset request length security counter
-		charsConsumedSoFar = 0;
-		
-		final HttpRequestFactory factory = HttpRequestFactory.instance();
-		
-		// Get and parse first line (ignoring any prepended newlines, e.g. CR/LF/CRLF's)
-		final String requestLine = getFirstNonemptyLine(in);
-		if (requestLine == null) throw new ParsingException();
-		parseRequestLine(factory, requestLine);
-
-		// TODO: Parse and store fields.  Not implemented in this project, because we just want to return files.
-		// Even ignoring Content-Accept headers, which specify acceptable MIME types for the client.
-		// We "should" send 406 if the types don't match, but I'm skipping even that for the sake of simplicity. 
-		
-		// TODO: The first blank line indicates the end of general/request/entity header fields, and begins the request body.
-		// Ignoring this, too.
-
-		return factory.getRequest();
+	public HttpRequest parseNext(final ByteBuffer buffer) throws ParsingException {
+		final byte[] bytes = buffer.array();
+		final int base = buffer.arrayOffset() + buffer.position();
+		final int limit = buffer.arrayOffset() + buffer.limit();
+		try {
+			final int headLength = scanHead(bytes, base, limit);
+			if (headLength == -1) return null;
+
+			final HttpRequest request = buildRequest(bytes, base);
+			buffer.position(buffer.position() + headLength);
+			resetScan();
+			return request;
+		} catch (ParsingException e) {
+			resetScan();
+			throw e;
+		}
 	}
 
 	/**
-	 * Returns the first non-empty line from the input,
-	 * or null if the end-of-input was reached before a non-empty line was found.
-	 * @param in
-	 * @return
-	 * @throws ParsingException
+	 * Continues scanning the head at bytes[base, limit) for line endings, from wherever the last call stopped,
+	 * recording where each non-empty line starts and ends. Empty lines before the request line are skipped.
+	 * Lines may end with CR / LF / CRLF.
+	 * @return the length of the head, up to and including the empty line that ends it, or -1 if it's incomplete
 	 */
-	private String getFirstNonemptyLine(final BufferedReader in) throws ParsingException, IOException {
-		String line = "";
+	private int scanHead(final byte[] bytes, final int base, final int limit) throws ParsingException {
+		int i = base + scanned;
+		while (i < limit) {
+			final byte b = bytes[i];
+			if (b != '\r' && b != '\n') {
+				i++;
+				continue;
+			}
 
-		final char[] buffer = new char[MAX_REQUEST_LENGTH + 1];
-		while (line != null && line.isEmpty()) {
-			final int maxLen = MAX_REQUEST_LENGTH - charsConsumedSoFar;
-			line = secureReadLine(in, maxLen, buffer);
+			final int offset = i - base;
+			final boolean emptyLine = (offset == lineStart);
+			if (b == '\r' && i + 1 == limit && !emptyLine) {
+				break; // Can't tell yet whether this is a CR or a CRLF
+			}
+			final int eolEnd = (b == '\r' && i + 1 < limit && bytes[i + 1] == '\n') ? offset + 2 : offset + 1;
+
+			if (!emptyLine) {
+				if (lineCount == MAX_HEAD_LINES) {
+					throw new ParsingException(Strings.get(Strings.TOO_MANY_HEADER_FIELDS));
+				}
+				lineStarts[lineCount] = lineStart;
+				lineEnds[lineCount] = offset;
+				lineCount++;
+				if (lineCount == 1 && eolEnd > MAX_REQUEST_LENGTH) {
+					throw new ParsingException(Strings.get(Strings.SECURITY_REQUEST_LENGTH_EXCEEDED));
+				}
+			} else if (lineCount > 0) {
+				return eolEnd; // the empty line that ends the head
+			}
+			if (eolEnd > MAX_HEAD_LENGTH) {
+				throw new ParsingException(Strings.get(Strings.SECURITY_REQUEST_LENGTH_EXCEEDED));
+			}
+			lineStart = eolEnd;
+			i = base + eolEnd;
 		}
-		return line;
+
+		scanned = i - base;
+		if ((lineCount == 0 && scanned > MAX_REQUEST_LENGTH) || scanned > MAX_HEAD_LENGTH) {
+			throw new ParsingException(Strings.get(Strings.SECURITY_REQUEST_LENGTH_EXCEEDED));
+		}
+		return -1;
 	}
-	
+
+	private void resetScan() {
+		lineCount = 0;
+		lineStart = 0;
+		scanned = 0;
+	}
+
 	/**
-	 * Reads up to maxLen chars from the input, or until the first CR / LF / CRLF is encountered.
-	 * Throws a ParsingException if a newline was not found within maxLen chars.
-	 * @param in
-	 * @param maxLen
-	 * @param buffer - reusable buffer of sufficient length (maxChars + 1)
-	 * @return
-	 * @throws ParsingException - if something was wrong with the input content (length too long, or couldn't find a line ending)
-	 * @throws IOException - if something was wrong with the input stream
+	 * Makes a request from the lines found by scanHead: a request line, e.g. "GET /path/url HTTP/1.1",
+	 * then header fields. From RFC 2616 section 4.2: field names are case-INsensitive, fields can be continued on
+	 * subsequent lines starting with linear whitespace, and repeated fields are interpreted in order
+	 * (RequestHeaders takes care of the first and last).
+	 * Only allocates Strings for what the request must keep.
 	 */
-	/*package*/ String secureReadLine(final BufferedReader in, final int maxLen, final char[] buffer) throws ParsingException, IOException {
-		// Remember present position, because we are going to read ahead, possibly very far.
-		// Allow an extra char, so we can test if the stream is too long.
-		in.mark(maxLen + 1);
-
-		final int charsRead = in.read(buffer, 0, maxLen + 1);
-		if (charsRead == -1) return null; // EOS
-		if (charsRead > maxLen) throw new ParsingException(Strings.get(Strings.SECURITY_REQUEST_LENGTH_EXCEEDED));
-		// charsRead can be at most maxLen from this point forward.
-        
-		// Search for EOL markers (CR / LF / CRLF) and consume up to that point.
-		// Throw an exception if there is no EOL marker.
-		final int index = findFirstEol(buffer, Math.min(maxLen, charsRead));
-		if (index == -1) throw new ParsingException(Strings.get(Strings.NO_EOL_MARKER));
-		final boolean CRLF = (buffer[index] == '\r') && 
-				(index + 1 < charsRead) && (buffer[index + 1] == '\n');
-		
-		// Construct the string, and consume the line, including EOL chars.
-        // HTTP protocol uses only ASCII encoding, so it's ok to convert bytes into Java chars (Unicode).
-		final String line = new String(buffer, 0, index); // up to, but not including, the EOL marker
-		final int consumeLen = index + (CRLF ? 2 : 1); // up to, and including, the EOL marker
-		
-		in.reset(); // Go back to marked position, and consume from there.
-		in.read(buffer, 0, consumeLen);
-		charsConsumedSoFar += consumeLen; 
-		
-		return line;
+	private HttpRequest buildRequest(final byte[] bytes, final int base) throws ParsingException {
+		// Request line: METHOD LWS URL LWS "HTTP/" VERSION [LWS]
+		final int start = base + lineStarts[0];
+		final int end = base + lineEnds[0];
+		final int methodEnd = skipText(bytes, start, end);
+		final int urlStart = skipLws(bytes, methodEnd, end);
+		final int urlEnd = skipText(bytes, urlStart, end);
+		final int protocolStart = skipLws(bytes, urlEnd, end);
+		final int versionStart = protocolStart + HTTP_PREFIX.length;
+		final int versionEnd = skipText(bytes, Math.min(versionStart, end), end);
+
+		if (methodEnd == start || urlStart == methodEnd || urlEnd == urlStart || protocolStart == urlEnd
+				|| !regionMatches(bytes, protocolStart, end, HTTP_PREFIX) || versionEnd <= versionStart
+				|| skipLws(bytes, versionEnd, end) != end) {
+			throw new ParsingException(Strings.get(Strings.COULD_NOT_PARSE_REQUEST_LINE, ascii(bytes, start, end)));
+		}
+
+		// Header fields: NAME ":" [LWS] VALUE [LWS], possibly continued on lines starting with LWS.
+		// They're copied (trimmed) straight into the request's header table, which is sized for the whole head.
+		final int headBytes = (lineCount > 1) ? lineEnds[lineCount - 1] - lineStarts[1] : 0;
+		final RequestHeaders headers = new RequestHeaders(lineCount - 1, headBytes);
+		for (int line = 1; line < lineCount; line++) {
+			final int lineStart = base + lineStarts[line];
+			final int lineEnd = base + lineEnds[line];
+
+			if (isLws(bytes[lineStart])) {
+				if (headers.size() == 0) {
+					throw new ParsingException(Strings.get(Strings.COULD_NOT_PARSE_HEADER_LINE, ascii(bytes, lineStart, lineEnd)));
+				}
+				final int valueStart = skipLws(bytes, lineStart, lineEnd);
+				headers.continueValue(bytes, valueStart, trimEnd(bytes, valueStart, lineEnd));
+				continue;
+			}
+
+			final int colon = indexOfColon(bytes, lineStart, lineEnd);
+			if (colon <= lineStart || skipText(bytes, lineStart, colon) != colon) {
+				throw new ParsingException(Strings.get(Strings.COULD_NOT_PARSE_HEADER_LINE, ascii(bytes, lineStart, lineEnd)));
+			}
+			final int valueStart = skipLws(bytes, colon + 1, lineEnd);
+			headers.add(bytes, lineStart, colon, valueStart, trimEnd(bytes, valueStart, lineEnd));
+		}
+
+		return new HttpRequest(methodFor(bytes, start, methodEnd), versionFor(bytes, versionStart, versionEnd),
+				ascii(bytes, urlStart, urlEnd), headers);
 	}
-	
+
+	private static boolean isLws(final byte b) {
+		return b == ' ' || b == '\t';
+	}
+
 	/**
-	 * Returns the index of the first '\r' or '\n' char in the buffer,
-	 * up to maxLen chars into the buffer. 
-	 * @param buffer
-	 * @param maxLen
-	 * @return -1 if not found within the allowed search length
+	 * @return the index of the first LWS byte in bytes[from, to), or to if there is none
 	 */
-	private static int findFirstEol(final char[] buffer, int maxLen) {
-		for (int i = 0; i < maxLen; i++) {
-			final char c = buffer[i];
-			if (c == '\r' || c == '\n') {
-				return i;
-			}
+	private static int skipText(final byte[] bytes, int from, final int to) {
+		while (from < to && !isLws(bytes[from])) from++;
+		return from;
+	}
+
+	/**
+	 * @return the index of the first non-LWS byte in bytes[from, to), or to if there is none
+	 */
+	private static int skipLws(final byte[] bytes, int from, final int to) {
+		while (from < to && isLws(bytes[from])) from++;
+		return from;
+	}
+
+	private static int indexOfColon(final byte[] bytes, final int from, final int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == ':') return i;
 		}
 		return -1;
 	}
-	
+
+	private static boolean regionMatches(final byte[] bytes, final int from, final int to, final byte[] expected) {
+		if (to - from < expected.length) return false;
+		for (int i = 0; i < expected.length; i++) {
+			if (bytes[from + i] != expected[i]) return false;
+		}
+		return true;
+	}
+
 	/**
-	 * Attempts to parse the given request line, e.g. "GET /path/url HTTP/1.1"
-	 * and sets the parsed Method, Url, and Version on the provided Factory. 
-	 * @param factory
-	 * @param line
-	 * @throws ParsingException
+	 * Looks up the method by name (case-insensitively), without making a String of it.
 	 */
-	/*package*/ static void parseRequestLine(final HttpRequestFactory factory, final String line)
-			throws ParsingException {
-		// package scope to allow easier unit testing, from test project.
-		
-		final Matcher matcher = RequestLinePattern.matcher(line);
-		if (matcher.matches()) {
-			factory.setMethod(matcher.group(RequestLinePattern.METHOD));
-			factory.setUrl(matcher.group(RequestLinePattern.URL));
-			factory.setVersion(matcher.group(RequestLinePattern.VERSION));
-		} else {
-			throw new ParsingException(Strings.get(Strings.COULD_NOT_PARSE_REQUEST_LINE, line));
+	private static HttpMethod methodFor(final byte[] bytes, final int from, final int to) {
+		for (HttpMethod method : METHODS) {
+			final String name = method.name();
+			if (name.length() != to - from) continue;
+
+			int i = 0;
+			while (i < name.length() && Character.toUpperCase((char) bytes[from + i]) == name.charAt(i)) i++;
+			if (i == name.length()) return method;
 		}
+		return HttpMethod.UNKNOWN;
 	}
-	
-	/*package*/ static void parseRequestHeaders(final HttpRequestFactory factory, final BufferedReader in) {
-		// Keep in mind these requirements from (RFC 2616 section 4.2):
-		// 1. Field names should be case-INsensitive
-		// 2. Fields can be continued on subsequent lines, if those lines start with linear whitespace.
-		// 3. There can be multiple fields with the same name, but different values: interpret them in order.
-		
-		// TODO: Since I aim to write a minimalist file server, I'll choose not to care about any header fields for now.
+
+	/**
+	 * Shares a String for the usual versions, and only makes a new one for anything else.
+	 */
+	private static String versionFor(final byte[] bytes, final int from, final int to) {
+		for (String version : COMMON_VERSIONS) {
+			if (to - from == version.length() && regionMatches(bytes, from, to, version.getBytes(ASCII))) {
+				return version;
+			}
+		}
+		return ascii(bytes, from, to);
+	}
+
+	private static String ascii(final byte[] bytes, final int from, final int to) {
+		// HTTP protocol uses only ASCII encoding in the request line and headers.
+		return new String(bytes, from, to - from, ASCII);
+	}
+
+	/**
+	 * @return the end of bytes[from, to) without any trailing LWS
+	 */
+	private static int trimEnd(final byte[] bytes, final int from, int to) {
+		while (to > from && isLws(bytes[to - 1])) to--;
+		return to;
 	}
 	
 }
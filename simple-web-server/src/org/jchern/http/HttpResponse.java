@@ -1,44 +1,86 @@
 package org.jchern.http;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.jchern.utils.TimeUtils;
 
-// TODO: perhaps make this an interface, so we can impl it in other ways
+/**
+ * The status line and header fields of a response.
+ *
+ * Written straight into a ByteBuffer, so a whole header block goes out in one write (gathered with the body,
+ * where the engine can). Everything that's the same in every response (status lines, field names,
+ * the Server and Connection fields) is encoded once, up front; fields only keep their values.
+ * @author Jeff Chern
+ */
 // TODO: perhaps make a factory for responses, so we can more easily configure lots of other fields
 public class HttpResponse {
 
-	private static final String DUMMY_HTTP_VERSION = "HTTP/1.1";
-	private static final String DUMMY_SERVER_TYPE = "WobSurb-jchern";
-	
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final String HTTP_VERSION = "HTTP/1.1";
+	private static final String SERVER_TYPE = "WobSurb-jchern";
+
+	// One per ResponseCode, by ordinal, e.g. "HTTP/1.1 200 OK\r\n"
+	private static final byte[][] STATUS_LINES = statusLines();
+	private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+	private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+	private static final byte[] SERVER = ascii("Server: " + SERVER_TYPE + "\r\n");
+	private static final byte[] CRLF = ascii("\r\n");
+
+	// Field names, with the separator before their value
+	private static final byte[] DATE = ascii("Date: ");
+	private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+	private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	private static final byte[] TRANSFER_ENCODING = ascii("Transfer-Encoding: ");
+	private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+	private static final byte[] CACHE_CONTROL = ascii("Cache-Control: ");
+	private static final byte[] ETAG = ascii("ETag: ");
+	private static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+	private static final byte[] VARY = ascii("Vary: ");
+	private static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: ");
+	private static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+	private static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+
 	private final ResponseCode code;
-	private final List<HttpField> fields;
+	private final byte[] date; // shared, formatted at most once a second
+	private final String contentType; // null if there's no content
+	private boolean keepAlive = false; // whether the connection will stay open after this response
+
+	// Fields in order (besides Connection, Server and Date): encoded names, and their values.
+	// Content-Length's value is kept as a number (contentLength), and written without making a String of it.
+	private byte[][] names = new byte[8][];
+	private String[] values = new String[8];
+	private int fieldCount = 0;
+	private final long contentLength;
 
 	public HttpResponse(final ResponseCode code, final String contentType, final long contentLength, final long lastModified,
 			final boolean allowCaching) {
-		fields = new ArrayList<HttpField>();
-
 		// Header line (can generate the HTTP version and Code description later)
 		this.code = code;
+		this.contentType = contentType;
 
 		// General Headers
-		addField("Date", TimeUtils.timestampHttp());
-		addField("Connection", "close"); // We don't support persistent connections
-
-		// Response Headers
-		addField("Server", DUMMY_SERVER_TYPE);
+		this.date = TimeUtils.timestampHttpBytes();
 
 		// Entity Headers
 		if (contentType != null) {
-			addField("Content-Type", contentType);
-			addField("Content-Length", String.valueOf(contentLength));
-			addField("Last-Modified", TimeUtils.timestampHttp(lastModified));
+			this.contentLength = contentLength;
+			addField(CONTENT_TYPE, contentType);
+			addField(CONTENT_LENGTH, null);
+			addField(LAST_MODIFIED, TimeUtils.timestampHttp(lastModified));
 			if (!allowCaching) {
-				addField("Cache-Control", "no-cache");
+				addField(CACHE_CONTROL, "no-cache");
 			}
+		} else if (code != ResponseCode.REDIRECTION_304) {
+			// Still needed, so a client on a persistent connection knows where the next response starts.
+			// (A 304 never has a body, and its Content-Length would describe the body it didn't send.)
+			this.contentLength = 0;
+			addField(CONTENT_LENGTH, null);
+		} else {
+			this.contentLength = 0;
 		}
 	}
 
@@ -54,26 +96,189 @@ public class HttpResponse {
 		return code;
 	}
 
-	private void addField(final String name, final String value) {
-		fields.add(new HttpField(name, value));
+	/**
+	 * The MIME type of the content, or null if there is none.
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Decides the Connection field: whether the connection will stay open for more requests after this response.
+	 * Responses close the connection unless told otherwise.
+	 */
+	public void setKeepAlive(final boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Replaces the Content-Length field with "Transfer-Encoding: chunked", for a body whose length isn't known up front.
+	 * The body must then be sent as a series of chunks, ending with an empty one.
+	 */
+	public void setChunked() {
+		for (int i = 0; i < fieldCount; i++) {
+			if (names[i] == CONTENT_LENGTH) {
+				names[i] = TRANSFER_ENCODING;
+				values[i] = "chunked";
+			}
+		}
+	}
+
+	/**
+	 * Adds the ETag field: the entity tag of the content (quoted), which the client can send back to revalidate it.
+	 */
+	public void setETag(final String etag) {
+		addField(ETAG, etag);
+	}
+
+	/**
+	 * Adds the Content-Encoding field: the coding (e.g. "gzip") the content is sent in.
+	 */
+	public void setContentEncoding(final String coding) {
+		addField(CONTENT_ENCODING, coding);
+	}
+
+	/**
+	 * Adds the Vary field: which request fields (e.g. "Accept-Encoding") chose this content among others,
+	 * so that caches don't send it to clients that asked differently.
+	 */
+	public void setVary(final String fieldNames) {
+		addField(VARY, fieldNames);
+	}
+
+	/**
+	 * Adds "Accept-Ranges: bytes", telling the client it may ask for parts of the content with a Range field.
+	 */
+	public void setAcceptRanges() {
+		addField(ACCEPT_RANGES, "bytes");
+	}
+
+	/**
+	 * Adds the Content-Range field of a 206 (Partial Content) response:
+	 * which bytes of the whole content (of totalLength) are sent.
+	 */
+	public void setContentRange(final ByteRange range, final long totalLength) {
+		addField(CONTENT_RANGE, "bytes " + range + "/" + totalLength);
+	}
+
+	/**
+	 * Adds the Content-Range field of a 416 (Range Not Satisfiable) response: the length of the whole content.
+	 */
+	public void setUnsatisfiedRange(final long totalLength) {
+		addField(CONTENT_RANGE, "bytes */" + totalLength);
+	}
+
+	/**
+	 * Adds the Retry-After field of a 503 (Service Unavailable) response: how long the client should wait before trying again.
+	 */
+	public void setRetryAfter(final int seconds) {
+		addField(RETRY_AFTER, Integer.toString(seconds));
+	}
+
+	private void addField(final byte[] name, final String value) {
+		if (fieldCount == names.length) {
+			names = Arrays.copyOf(names, fieldCount * 2);
+			values = Arrays.copyOf(values, fieldCount * 2);
+		}
+		names[fieldCount] = name;
+		values[fieldCount] = value;
+		fieldCount++;
+	}
+
+	/**
+	 * @return how many bytes writeTo will write
+	 */
+	public int getHeaderLength() {
+		int length = STATUS_LINES[code.ordinal()].length + (keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE).length
+				+ SERVER.length + DATE.length + date.length + 2 * CRLF.length;
+		for (int i = 0; i < fieldCount; i++) {
+			length += names[i].length + CRLF.length;
+			length += (values[i] == null) ? decimalLength(contentLength) : values[i].length();
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the status line, then each field on its own line, then the blank line that ends the header block
+	 * (so that a message body may then be sent).
+	 * @param out must have getHeaderLength() bytes remaining
+	 */
+	public void writeTo(final ByteBuffer out) {
+		out.put(STATUS_LINES[code.ordinal()]);
+		out.put(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+		out.put(SERVER);
+		out.put(DATE).put(date).put(CRLF);
+		for (int i = 0; i < fieldCount; i++) {
+			out.put(names[i]);
+			if (values[i] == null) {
+				putDecimal(out, contentLength);
+			} else {
+				putAscii(out, values[i]);
+			}
+			out.put(CRLF);
+		}
+		out.put(CRLF);
+	}
+
+	/**
+	 * Writes this HttpResponse to the given output stream, the same as writeTo, and flushes it.
+	 */
+	public void writeToOutput(final OutputStream os) throws IOException {
+		os.write(getHeaderBytes());
+		os.flush();
+	}
+
+	/**
+	 * Returns exactly what writeTo would write.
+	 */
+	public byte[] getHeaderBytes() {
+		final ByteBuffer out = ByteBuffer.allocate(getHeaderLength());
+		writeTo(out);
+		return out.array();
 	}
 
 	/**
-	 * Writes this HttpResponse to the given output stream,
-	 * starting with the response line, then followed by each field on its own line.
-	 * Writes a blank line after all fields have been written, so that a message body may then be sent.
+	 * Field values are ISO-8859-1 at most; anything beyond that can't be sent, so it's replaced.
 	 */
-	public void writeToOutput(OutputStream os) {
-		final PrintStream out = new PrintStream(os);
+	private static void putAscii(final ByteBuffer out, final String s) {
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			out.put((c <= 0xFF) ? (byte) c : (byte) '?');
+		}
+	}
+
+	private static void putDecimal(final ByteBuffer out, final long n) {
+		long divisor = 1;
+		while (divisor <= n / 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			out.put((byte) ('0' + (n / divisor) % 10));
+		}
+	}
 
-		// Status line
-		out.println(String.format("%s %d %s", DUMMY_HTTP_VERSION, code.number, code.description));
+	private static int decimalLength(final long n) {
+		int length = 1;
+		for (long rest = n / 10; rest > 0; rest /= 10) {
+			length++;
+		}
+		return length;
+	}
 
-		// Fields, in order
-		for (HttpField field : fields) {
-			out.println(field.toString());
+	private static byte[][] statusLines() {
+		final ResponseCode[] codes = ResponseCode.values();
+		final byte[][] lines = new byte[codes.length][];
+		for (ResponseCode code : codes) {
+			lines[code.ordinal()] = ascii(HTTP_VERSION + " " + code + "\r\n");
 		}
-		out.println();
-		out.flush();
+		return lines;
+	}
+
+	private static byte[] ascii(final String s) {
+		return s.getBytes(ASCII);
 	}
 }
@@ -0,0 +1,43 @@
+package org.jchern.http;
+
+import java.nio.charset.Charset;
+
+/**
+ * Request header fields that the server looks at.
+ * Their names are recognized once, while parsing, straight from the request bytes,
+ * so looking them up later needs neither a String for the name, nor a case-insensitive comparison.
+ * @author Jeff Chern
+ */
+public enum KnownHeader {
+	CONNECTION("Connection"),
+	IF_MODIFIED_SINCE("If-Modified-Since"),
+	IF_NONE_MATCH("If-None-Match"),
+	IF_RANGE("If-Range"),
+	RANGE("Range"),
+	ACCEPT_ENCODING("Accept-Encoding"),
+	CONTENT_LENGTH("Content-Length"),
+	TRANSFER_ENCODING("Transfer-Encoding");
+
+	public final String fieldName;
+	/*package*/ final byte[] lowerCaseName;
+
+	private KnownHeader(final String fieldName) {
+		this.fieldName = fieldName;
+		this.lowerCaseName = fieldName.toLowerCase().getBytes(Charset.forName("US-ASCII"));
+	}
+
+	private static final KnownHeader[] ALL = values();
+
+	/**
+	 * Recognizes a field name (case-insensitively) in bytes[from, to).
+	 * @return the known header, or null if it isn't one
+	 */
+	/*package*/ static KnownHeader lookup(final byte[] bytes, final int from, final int to) {
+		for (KnownHeader header : ALL) {
+			if (RequestHeaders.equalsIgnoreCase(bytes, from, to, header.lowerCaseName)) {
+				return header;
+			}
+		}
+		return null;
+	}
+}
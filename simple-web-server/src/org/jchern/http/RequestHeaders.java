@@ -0,0 +1,191 @@
+package org.jchern.http;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The header fields of a request, kept compactly: all names and values are packed into one byte array,
+ * indexed by one int array of offsets, instead of a map of Strings per request.
+ * Strings are only made for the values that are actually looked up, and then remembered.
+ *
+ * Names compare case-insensitively. The names the server looks at (see KnownHeader) are recognized once,
+ * while the fields are added, so looking them up is just a scan of the offsets.
+ *
+ * Continuation lines are joined to the value they continue with a single space, and repeated fields
+ * are combined into one comma-separated value, in order, as RFC 7230 section 3.2.2 allows.
+ *
+ * Filled in by the parser (or HttpRequestFactory), then only read: safe to share once the request is made.
+ * @author Jeff Chern
+ */
+public class RequestHeaders {
+
+	// Values may contain any octet (RFC 7230 "obs-text"), so decode as Latin-1 rather than reject them.
+	private static final Charset ENCODING = Charset.forName("ISO-8859-1");
+
+	// Each field takes SLOT_SIZE ints: where its name and value are in data, and which KnownHeader it is (or -1).
+	private static final int NAME_START = 0, NAME_END = 1, VALUE_START = 2, VALUE_END = 3, KNOWN = 4;
+	private static final int SLOT_SIZE = 5;
+
+	private byte[] data;
+	private int dataLength = 0;
+	private int[] slots;
+	private int count = 0;
+	private String[] values; // made lazily, by field index
+
+	public RequestHeaders() {
+		this(8, 256);
+	}
+
+	/**
+	 * @param expectedFields how many fields to make room for (more are still allowed)
+	 * @param expectedBytes how many bytes of names and values to make room for (more are still allowed)
+	 */
+	/*package*/ RequestHeaders(final int expectedFields, final int expectedBytes) {
+		this.data = new byte[Math.max(expectedBytes, 16)];
+		this.slots = new int[Math.max(expectedFields, 1) * SLOT_SIZE];
+	}
+
+	/**
+	 * Adds a field whose name is bytes[nameStart, nameEnd) and whose (already trimmed) value is bytes[valueStart, valueEnd).
+	 */
+	/*package*/ void add(final byte[] bytes, final int nameStart, final int nameEnd, final int valueStart, final int valueEnd) {
+		final KnownHeader known = KnownHeader.lookup(bytes, nameStart, nameEnd);
+		final int slot = newSlot();
+		slots[slot + NAME_START] = append(bytes, nameStart, nameEnd);
+		slots[slot + NAME_END] = dataLength;
+		slots[slot + VALUE_START] = append(bytes, valueStart, valueEnd);
+		slots[slot + VALUE_END] = dataLength;
+		slots[slot + KNOWN] = (known == null) ? -1 : known.ordinal();
+	}
+
+	/**
+	 * Adds a field from Strings, e.g. for requests that weren't parsed from bytes.
+	 */
+	public void add(final String name, final String value) {
+		final byte[] nameBytes = name.getBytes(ENCODING);
+		final byte[] valueBytes = value.getBytes(ENCODING);
+		add(nameBytes, 0, nameBytes.length, 0, 0);
+		continueValue(valueBytes, 0, valueBytes.length, false);
+	}
+
+	/**
+	 * Appends a continuation line's (already trimmed) bytes[from, to) to the last field's value, after a space.
+	 * The last value is always at the end of the data, so this never has to move anything.
+	 * @throws IllegalStateException if no field has been added yet
+	 */
+	/*package*/ void continueValue(final byte[] bytes, final int from, final int to) {
+		continueValue(bytes, from, to, true);
+	}
+
+	private void continueValue(final byte[] bytes, final int from, final int to, final boolean separate) {
+		if (count == 0) throw new IllegalStateException("No field to continue");
+		final int slot = (count - 1) * SLOT_SIZE;
+		if (separate && slots[slot + VALUE_END] > slots[slot + VALUE_START]) {
+			append(new byte[] { ' ' }, 0, 1);
+		}
+		append(bytes, from, to);
+		slots[slot + VALUE_END] = dataLength;
+		values[count - 1] = null;
+	}
+
+	/**
+	 * @return the number of fields, counting each repeat separately
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the name of the field at index, as the client spelled it
+	 */
+	public String getName(final int index) {
+		final int slot = checkedSlot(index);
+		return new String(data, slots[slot + NAME_START], slots[slot + NAME_END] - slots[slot + NAME_START], ENCODING);
+	}
+
+	/**
+	 * @return the value of the field at index (just this occurrence, if the field is repeated)
+	 */
+	public String getValue(final int index) {
+		final int slot = checkedSlot(index);
+		if (values[index] == null) {
+			values[index] = new String(data, slots[slot + VALUE_START], slots[slot + VALUE_END] - slots[slot + VALUE_START], ENCODING);
+		}
+		return values[index];
+	}
+
+	/**
+	 * @return the value of the field, repeats combined, or null if the request didn't have it
+	 */
+	public String get(final KnownHeader header) {
+		final int known = header.ordinal();
+		String result = null;
+		for (int i = 0; i < count; i++) {
+			if (slots[i * SLOT_SIZE + KNOWN] == known) {
+				result = combine(result, getValue(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the value of the named field (case-insensitive), repeats combined, or null if the request didn't have it
+	 */
+	public String get(final String name) {
+		final byte[] lowerCaseName = name.toLowerCase().getBytes(ENCODING);
+		String result = null;
+		for (int i = 0; i < count; i++) {
+			final int slot = i * SLOT_SIZE;
+			if (equalsIgnoreCase(data, slots[slot + NAME_START], slots[slot + NAME_END], lowerCaseName)) {
+				result = combine(result, getValue(i));
+			}
+		}
+		return result;
+	}
+
+	private static String combine(final String previous, final String value) {
+		return (previous == null) ? value : previous + ", " + value;
+	}
+
+	/**
+	 * Compares bytes[from, to) with an already lower-case name, ignoring the case of ASCII letters.
+	 */
+	/*package*/ static boolean equalsIgnoreCase(final byte[] bytes, final int from, final int to, final byte[] lowerCase) {
+		if (to - from != lowerCase.length) return false;
+		for (int i = 0; i < lowerCase.length; i++) {
+			byte b = bytes[from + i];
+			if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+			if (b != lowerCase[i]) return false;
+		}
+		return true;
+	}
+
+	private int checkedSlot(final int index) {
+		if (index < 0 || index >= count) throw new IndexOutOfBoundsException(String.valueOf(index));
+		return index * SLOT_SIZE;
+	}
+
+	private int newSlot() {
+		if ((count + 1) * SLOT_SIZE > slots.length) {
+			slots = Arrays.copyOf(slots, slots.length * 2);
+		}
+		if (values == null || values.length < slots.length / SLOT_SIZE) {
+			values = (values == null) ? new String[slots.length / SLOT_SIZE] : Arrays.copyOf(values, slots.length / SLOT_SIZE);
+		}
+		return (count++) * SLOT_SIZE;
+	}
+
+	/**
+	 * @return where the appended bytes start in data
+	 */
+	private int append(final byte[] bytes, final int from, final int to) {
+		final int length = to - from;
+		if (dataLength + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+		}
+		System.arraycopy(bytes, from, data, dataLength, length);
+		final int start = dataLength;
+		dataLength += length;
+		return start;
+	}
+}
@@ -8,13 +8,17 @@ package org.jchern.http;
 public enum ResponseCode {
 	
 	SUCCESS_200(200, "OK"),
+	SUCCESS_206(206, "Partial Content"), // for Range requests
 	REDIRECTION_304(304, "Not Modified"),
 	ERROR_400(400, "Bad Request"), // malformed request
 	ERROR_404(404, "File not Found"),
 	ERROR_405(405, "Method not Allowed"), // for methods we recognize, but don't allow
 	ERROR_406(406, "Not Acceptable"), // if the request's Content-Accept header doesn't match the content we can return (TODO: ignored for now)
+	ERROR_416(416, "Range Not Satisfiable"), // if none of the requested ranges are within the file
+	ERROR_429(429, "Too Many Requests"), // for a client over its connection or request rate limit
 	SERVER_500(500, "Internal Server Error"),
 	SERVER_501(501, "Not Implemented"), // for methods we don't recognize
+	SERVER_503(503, "Service Unavailable"), // when overloaded, rather than make the client wait
 	SERVER_505(505, "HTTP Version not Supported");
 	
 	final int number;
@@ -24,6 +28,10 @@ public enum ResponseCode {
 		this.description = desc;
 	}
 	
+	public int getNumber() {
+		return number;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("%d %s", number, description);
@@ -19,8 +19,11 @@ public class Strings {
 	
 	public static final String SOCKET_IN_ERROR = "HttpRequestHandler: Input error when reading from socket bound to remote address: %s";
 	public static final String COULD_NOT_PARSE_REQUEST_LINE = "HttpRequestParser: Could not parse request line \"%s\"";
+	public static final String COULD_NOT_PARSE_HEADER_LINE = "HttpRequestParser: Could not parse header field line \"%s\"";
 	public static final String SECURITY_REQUEST_LENGTH_EXCEEDED = "HttpRequestParser: Input length exceeded request security limit, rejecting.";
-	public static final String NO_EOL_MARKER = "HttpRequestParser: Could not find an EOL marker (CR / LF / CRLF) from input, rejecting.";
+	public static final String TOO_MANY_HEADER_FIELDS = "HttpRequestParser: Too many header field lines, rejecting.";
 	public static final String ERROR_IN_OUTPUT_STREAM = "HttpRequestHandler: Output error when writing to socket bound to remote address: %s";
 	public static final String ERROR_COPYING_FILE = "HttpRequestHandler: Error while sending \"%s\" to remote address: %s";
+	public static final String FILE_CHANGED = "FileWatcher: Changed: %s";
+	public static final String FILE_WATCH_OVERFLOW = "FileWatcher: Lost track of changes under %s, clearing all caches.";
 }
@@ -0,0 +1,321 @@
+package org.jchern.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs without making the logging thread wait for the console or the disk.
+ *
+ * Records are handed over through a bounded, lock-free ring buffer to a single background thread,
+ * which formats them and writes them out in batches: one write for as many records as have piled up
+ * (up to the size of its buffer). When the ring is full, records are either dropped (and counted,
+ * so the log says how many went missing), or the logging thread waits for room, as chosen up front.
+ *
+ * Threadsafe: any number of threads may log at once.
+ * @author Jeff Chern
+ */
+public class AsyncLogger implements ILogger, Closeable {
+
+	/**
+	 * What a logging thread does when the ring buffer is full.
+	 */
+	public enum WhenFull {
+		DROP, // lose the record, and carry on
+		BLOCK; // wait until the writer has made room
+	}
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	private static final long WRITER_IDLE_NS = 100L * 1000 * 1000;
+	private static final long BLOCKED_WAIT_NS = 100L * 1000;
+
+	/**
+	 * One log call, formatted only once it reaches the writer thread.
+	 */
+	private static class Record {
+		final long timeMs;
+		final String msg;
+		final Exception e;
+
+		Record(final String msg, final Exception e) {
+			this.timeMs = System.currentTimeMillis();
+			this.msg = msg;
+			this.e = e;
+		}
+	}
+
+	private volatile LogLevel minimumLevel;
+	private final WhenFull whenFull;
+
+	// The ring: a slot may be filled for position p when its sequence is p, and emptied once it's p + 1.
+	// Emptying it makes it p + capacity, ready for the position that wraps around to it.
+	private final int mask;
+	private final AtomicReferenceArray<Record> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong(); // next position to fill, claimed by logging threads
+	private long head = 0; // next position to empty; only touched by the writer
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final FileChannel out;
+	private final boolean closeOut; // not standard output
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	private final Thread writer;
+	private volatile boolean writerWaiting = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Logs to the end of the given file.
+	 * @param capacity how many records may wait to be written; rounded up to a power of 2
+	 */
+	public AsyncLogger(final LogLevel initialLogLevel, final File logFile, final int capacity, final WhenFull whenFull)
+			throws IOException {
+		this(initialLogLevel, FileChannel.open(logFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), true, capacity, whenFull);
+	}
+
+	/**
+	 * Logs to standard output.
+	 * @param capacity how many records may wait to be written; rounded up to a power of 2
+	 */
+	public AsyncLogger(final LogLevel initialLogLevel, final int capacity, final WhenFull whenFull) {
+		this(initialLogLevel, new FileOutputStream(FileDescriptor.out).getChannel(), false, capacity, whenFull);
+	}
+
+	private AsyncLogger(final LogLevel initialLogLevel, final FileChannel out, final boolean closeOut, final int capacity,
+			final WhenFull whenFull) {
+		this.minimumLevel = initialLogLevel;
+		this.whenFull = whenFull;
+		this.out = out;
+		this.closeOut = closeOut;
+
+		final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<Record>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRecords();
+			}
+		}, "AsyncLogger");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public boolean isEnabled(final LogLevel level) {
+		return (level.compareTo(minimumLevel) >= 0); // allowed if it's at least the minimum level
+	}
+
+	@Override
+	public void debug(String msg) {
+		log(LogLevel.DEBUG, msg, null);
+	}
+
+	@Override
+	public void info(String msg) {
+		log(LogLevel.INFO, msg, null);
+	}
+
+	@Override
+	public void warn(String msg) {
+		log(LogLevel.WARN, msg, null);
+	}
+
+	@Override
+	public void error(String msg) {
+		log(LogLevel.ERROR, msg, null);
+	}
+
+	@Override
+	public void fatal(String msg) {
+		log(LogLevel.FATAL, msg, null);
+	}
+
+	@Override
+	public void error(Exception e) {
+		log(LogLevel.ERROR, null, e);
+	}
+
+	@Override
+	public void fatal(Exception e) {
+		log(LogLevel.FATAL, null, e);
+	}
+
+	@Override
+	public void setLogLevel(LogLevel level) {
+		this.minimumLevel = level;
+	}
+
+	/**
+	 * @return how many records were dropped because the ring was full, and haven't been noted in the log yet
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes out everything logged so far, then stops. Anything logged afterwards is dropped.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void log(final LogLevel level, final String msg, final Exception e) {
+		if (!isEnabled(level) || closed) return;
+
+		final Record record = new Record(msg, e);
+		while (!offer(record)) {
+			if (whenFull == WhenFull.DROP || closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(BLOCKED_WAIT_NS);
+		}
+		if (writerWaiting) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	private boolean offer(final Record record) {
+		long position = tail.get();
+		while (true) {
+			final int slot = (int) position & mask;
+			final long available = sequences.get(slot) - position;
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.set(slot, record);
+					sequences.set(slot, position + 1); // publishes the record to the writer
+					return true;
+				}
+				position = tail.get(); // another thread claimed it first
+			} else if (available < 0) {
+				return false; // still holds the record from one lap ago
+			} else {
+				position = tail.get(); // another thread claimed it first
+			}
+		}
+	}
+
+	/**
+	 * @return the next record, or null if there is none (yet)
+	 */
+	private Record poll() {
+		final int slot = (int) head & mask;
+		if (sequences.get(slot) != head + 1) return null;
+		final Record record = slots.get(slot);
+		slots.set(slot, null);
+		sequences.set(slot, head + mask + 1); // free for the next lap
+		head++;
+		return record;
+	}
+
+	private boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	/**
+	 * The writer thread: formats records into the write buffer while any are waiting, writes them out
+	 * whenever the ring runs dry (or the buffer fills), then waits for more.
+	 */
+	private void writeRecords() {
+		try {
+			while (true) {
+				final Record record = poll();
+				if (record != null) {
+					append(format(record));
+					continue;
+				}
+
+				final long lost = dropped.getAndSet(0);
+				if (lost > 0) {
+					append(String.format("%s: (%d log messages dropped)", TimeUtils.timestampLogger(), lost));
+				}
+				flush();
+				if (closed && isEmpty()) break;
+
+				writerWaiting = true;
+				if (isEmpty() && !closed) {
+					LockSupport.parkNanos(this, WRITER_IDLE_NS);
+				}
+				writerWaiting = false;
+			}
+		} catch (IOException e) {
+			// Nowhere left to log it, but the console.
+			e.printStackTrace();
+			closed = true;
+		} finally {
+			if (closeOut) {
+				closeQuietly(out);
+			}
+		}
+	}
+
+	private static String format(final Record record) {
+		if (record.e == null) {
+			return TimeUtils.timestampLogger(record.timeMs) + ": " + record.msg;
+		}
+		final StringWriter trace = new StringWriter();
+		record.e.printStackTrace(new PrintWriter(trace));
+		return trace.toString().trim();
+	}
+
+	private void append(final String line) throws IOException {
+		final byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > writeBuffer.remaining()) {
+			flush();
+			if (bytes.length > writeBuffer.capacity()) {
+				write(ByteBuffer.wrap(bytes));
+				return;
+			}
+		}
+		writeBuffer.put(bytes);
+	}
+
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		write(writeBuffer);
+		writeBuffer.clear();
+	}
+
+	private void write(final ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			out.write(bytes);
+		}
+	}
+
+	private static void closeQuietly(final Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// silence...
+		}
+	}
+}
@@ -6,7 +6,7 @@ import java.util.Map;
 
 public class BasicLogger implements ILogger {
 
-	private LogLevel minimumLevel;
+	private volatile LogLevel minimumLevel;
 	private Map<LogLevel, PrintStream> outputters;
 	
 	public BasicLogger(final LogLevel initialLogLevel) {
@@ -19,6 +19,11 @@ public class BasicLogger implements ILogger {
 		outputters.put(LogLevel.FATAL, System.err);
 	}
 	
+	@Override
+	public boolean isEnabled(final LogLevel level) {
+		return (level.compareTo(minimumLevel) >= 0); // allowed if it's at least the minimum level
+	}
+
 	@Override
 	public void debug(String msg) {
 		logAsLevel(LogLevel.DEBUG, msg);
@@ -56,25 +61,21 @@ public class BasicLogger implements ILogger {
 	
 	@Override
 	public void setLogLevel(LogLevel level) {
-		
+		this.minimumLevel = level;
 	}
 	
 	private void logAsLevel(LogLevel level, String msg) {
-		if (shouldLogLevel(level)) {
+		if (isEnabled(level)) {
 			outputters.get(level).println(now() + ": " + msg);
 		}
 	}
 	
 	private void logAsLevel(LogLevel level, Exception e) {
-		if (shouldLogLevel(level)) {
+		if (isEnabled(level)) {
 			e.printStackTrace(outputters.get(level));
 		}
 	}
 	
-	private boolean shouldLogLevel(final LogLevel requestedLevel) {
-		return (requestedLevel.compareTo(minimumLevel) >= 0); // allowed if it's at least the minimum level
-	}
-	
 	private String now() {
 		return TimeUtils.timestampLogger();
 	}
@@ -6,6 +6,11 @@ public interface ILogger {
 		DEBUG, INFO, WARN, ERROR, FATAL;
 	}		
 
+	/**
+	 * Whether messages of this level are logged, so callers can skip building messages that won't be.
+	 */
+	public boolean isEnabled(LogLevel level);
+
 	public void debug(String msg);
 	public void info(String msg);
 	public void warn(String msg);
@@ -6,6 +6,18 @@ public class SingleLogger {
 
 	private static ILogger logger = null;
 	
+	/**
+	 * Chooses the logger that instance() returns, instead of the default (synchronous, console) one.
+	 * Must be called before anything asks for the instance, since classes keep the logger they're given.
+	 * @throws IllegalStateException if the instance was already handed out
+	 */
+	public static synchronized void use(final ILogger chosen) {
+		if (logger != null) {
+			throw new IllegalStateException("Logger already in use: " + logger.getClass().getSimpleName());
+		}
+		logger = chosen;
+	}
+
 	public static synchronized ILogger instance() {
 		if (logger == null) {
 			logger = new BasicLogger(LogLevel.INFO);
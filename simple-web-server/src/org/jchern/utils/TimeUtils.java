@@ -1,24 +1,142 @@
 package org.jchern.utils;
 
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
 import java.util.Locale;
-import java.util.TimeZone;
 
+/**
+ * Date formatting, shared by every thread without locking: DateTimeFormatters are immutable,
+ * and formatted HTTP dates are cached in immutable holders, published through volatile fields.
+ *
+ * Every response carries the current date, so it's formatted at most once a second; the dates that
+ * files were last modified repeat for every response (and listing row) that shows them, so the most
+ * recent ones are remembered too.
+ */
 public class TimeUtils {
 	
-	private final static SimpleDateFormat loggerDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss.SSS z");
-	private final static SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+	private final static DateTimeFormatter loggerDateFormat =
+	        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss.SSS z").withZone(ZoneId.systemDefault());
+	private final static DateTimeFormatter httpDateFormat =
+	        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 
+	// Must be a power of 2.
+	private final static int LAST_MODIFIED_CACHE_SIZE = 256;
+
+	/**
+	 * An HTTP date, as formatted for one second.
+	 */
+	private static class HttpDate {
+	    final long second;
+	    final String text;
+	    final byte[] bytes; // US-ASCII
+
+	    HttpDate(final long second) {
+	        this.second = second;
+	        this.text = httpDateFormat.format(Instant.ofEpochSecond(second));
+	        this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+	    }
+	}
+
+	private static volatile HttpDate currentDate = new HttpDate(System.currentTimeMillis() / 1000);
+
+	// By second, each in the slot its second hashes to. Racing threads may replace each other's entries,
+	// which only costs formatting again: entries are immutable, so a thread sees either a whole one or none.
+	private final static HttpDate[] lastModifiedDates = new HttpDate[LAST_MODIFIED_CACHE_SIZE];
+
+	/**
+	 * @return the current time as an HTTP date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
 	public static String timestampHttp() {
-	    return timestampHttp(System.currentTimeMillis());
+	    return currentHttpDate().text;
+	}
+
+	/**
+	 * @return the current time as an HTTP date, in US-ASCII bytes (which must not be modified)
+	 */
+	public static byte[] timestampHttpBytes() {
+	    return currentHttpDate().bytes;
 	}
 
+	/**
+	 * @return the given time as an HTTP date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
 	public static String timestampHttp(final long timeMs) {
-	    httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-	    return httpDateFormat.format(timeMs);
+	    final long second = Math.floorDiv(timeMs, 1000L);
+	    final HttpDate current = currentDate;
+	    if (current.second == second) {
+	        return current.text;
+	    }
+
+	    final int slot = (int) (second ^ (second >>> 32)) & (LAST_MODIFIED_CACHE_SIZE - 1);
+	    HttpDate date = lastModifiedDates[slot];
+	    if (date == null || date.second != second) {
+	        date = new HttpDate(second);
+	        lastModifiedDates[slot] = date;
+	    }
+	    return date.text;
+	}
+
+	private static HttpDate currentHttpDate() {
+	    final long second = System.currentTimeMillis() / 1000;
+	    HttpDate date = currentDate;
+	    if (date.second != second) {
+	        // Threads that race here format the same text; whichever is published last wins.
+	        date = new HttpDate(second);
+	        currentDate = date;
+	    }
+	    return date;
 	}
 	
+	/**
+	 * Parses an HTTP date, in the preferred format (e.g. "Sun, 06 Nov 1994 08:49:37 GMT")
+	 * or either of the obsolete ones that RFC 7231 section 7.1.1.1 still asks servers to accept.
+	 * @return the time in ms, or -1 if it isn't a date in any of those formats
+	 */
+	public static long parseHttpDate(final String date) {
+	    final String text = date.trim();
+	    for (DateTimeFormatter format : HTTP_DATE_FORMATS) {
+	        try {
+	            return Instant.from(format.parse(text)).toEpochMilli();
+	        } catch (DateTimeException e) {
+	            // try the next format
+	        }
+	    }
+	    return -1;
+	}
+
+	/**
+	 * Like parseHttpDate(date), but first checks for the usual case: a client sending back the Last-Modified
+	 * date it was given, which is then recognized by comparing it to the (cached) formatted date, without parsing.
+	 * @param lastModifiedMs the modified time of the content the date is being compared with
+	 */
+	public static long parseHttpDate(final String date, final long lastModifiedMs) {
+	    if (date.equals(timestampHttp(lastModifiedMs))) {
+	        return Math.floorDiv(lastModifiedMs, 1000L) * 1000L;
+	    }
+	    return parseHttpDate(date);
+	}
+
+	// Immutable, so shared. Two-digit RFC 850 years are read as 1970 to 2069.
+	private final static DateTimeFormatter[] HTTP_DATE_FORMATS = {
+	    DateTimeFormatter.RFC_1123_DATE_TIME, // IMF-fixdate
+	    new DateTimeFormatterBuilder().parseCaseInsensitive() // RFC 850
+	            .appendPattern("EEEE, dd-MMM-").appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+	            .appendPattern(" HH:mm:ss 'GMT'").toFormatter(Locale.US).withZone(ZoneOffset.UTC),
+	    new DateTimeFormatterBuilder().parseCaseInsensitive() // ANSI C asctime()
+	            .appendPattern("EEE MMM ppd HH:mm:ss yyyy").toFormatter(Locale.US).withZone(ZoneOffset.UTC),
+	};
+
 	public static String timestampLogger() {
-		return loggerDateFormat.format(System.currentTimeMillis());
+		return loggerDateFormat.format(Instant.now());
+	}
+
+	public static String timestampLogger(final long timeMs) {
+		return loggerDateFormat.format(Instant.ofEpochMilli(timeMs));
 	}
 }
@@ -0,0 +1,174 @@
+package org.jchern.webserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jchern.accesslog.AccessLog;
+import org.jchern.http.HttpResponse;
+import org.jchern.http.ResponseCode;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Decides whether the server has room for each connection it accepts. If not, the connection is turned away at once
+ * with a 503 (Service Unavailable) and a Retry-After field, rather than left to wait behind more work than can be done
+ * before its client gives up: shedding the excess keeps the latency of admitted connections bounded under overload.
+ *
+ * Connections are counted from being admitted until they're closed, against ServerConfig.getMaxInFlight().
+ * Engines that queue connections for workers also ask, as each one's turn comes, whether it has waited too long.
+ * If per-client limits are configured, a ClientLimiter also counts each client's connections and requests,
+ * and clients over their limits are turned away with a 429 (Too Many Requests) instead.
+ *
+ * Threadsafe: shared by all acceptors and workers.
+ * @author Jeff Chern
+ */
+public class AdmissionController {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	private final int maxInFlight;
+	private final long queueDeadlineNs;
+	private final int retryAfterSeconds;
+	private final AccessLog accessLog; // null if disabled
+	private final ClientLimiter clients; // null if disabled
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public AdmissionController(final ServerConfig config, final AccessLog accessLog) {
+		this.maxInFlight = config.getMaxInFlight();
+		this.queueDeadlineNs = TimeUnit.MILLISECONDS.toNanos(config.getQueueDeadlineMs());
+		this.retryAfterSeconds = config.getRetryAfterSeconds();
+		this.accessLog = accessLog;
+		this.clients = (config.getMaxConnectionsPerClient() > 0 || config.getMaxRequestsPerSecondPerClient() > 0)
+				? new ClientLimiter(config.getMaxConnectionsPerClient(), config.getMaxRequestsPerSecondPerClient())
+				: null;
+	}
+
+	/**
+	 * Admits the newly accepted connection, or else answers it with a 503 or 429, and closes it.
+	 * @return true if the connection is admitted, in which case release() must be called once it's closed
+	 */
+	public boolean admit(final SocketChannel connection) {
+		if (!tryAdmit()) {
+			reject(connection);
+			return false;
+		}
+		final InetAddress remote = connection.socket().getInetAddress();
+		if (clients != null && remote != null && !clients.tryConnect(remote)) {
+			inFlight.decrementAndGet();
+			respond(connection, ResponseCode.ERROR_429);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts an admitted connection closed.
+	 * @param remote the client's address, as when admitted
+	 */
+	public void release(final InetAddress remote) {
+		inFlight.decrementAndGet();
+		if (clients != null && remote != null) {
+			clients.release(remote);
+		}
+	}
+
+	/**
+	 * Counts a further request on an admitted connection (the first was counted when it was admitted).
+	 * @return false if the client is over its request rate limit: the request should be answered
+	 * with tooManyRequests(), and the connection closed
+	 */
+	public boolean tryRequest(final InetAddress remote) {
+		return clients == null || remote == null || clients.tryRequest(remote);
+	}
+
+	/**
+	 * Adds the Retry-After field to a 429 response.
+	 */
+	public void tooManyRequests(final HttpResponse response) {
+		response.setRetryAfter(retryAfterSeconds);
+	}
+
+	private boolean tryAdmit() {
+		while (true) {
+			final int current = inFlight.get();
+			if (current >= maxInFlight) return false;
+			if (inFlight.compareAndSet(current, current + 1)) return true;
+		}
+	}
+
+	/**
+	 * @param admittedNs when the connection was admitted (queued), as System.nanoTime()
+	 * @return whether it has waited too long to still be serviced
+	 */
+	public boolean isOverdue(final long admittedNs) {
+		return System.nanoTime() - admittedNs > queueDeadlineNs;
+	}
+
+	/**
+	 * Answers the connection with a 503, without reading its request, and closes it.
+	 */
+	public void reject(final SocketChannel connection) {
+		respond(connection, ResponseCode.SERVER_503);
+	}
+
+	/**
+	 * Never blocks: the response is small enough for the empty send buffer of a new connection, or else it's lost.
+	 */
+	private void respond(final SocketChannel connection, final ResponseCode code) {
+		rejected.incrementAndGet();
+		final long startMs = System.currentTimeMillis();
+		final long startNs = System.nanoTime();
+		final HttpResponse response = new HttpResponse(code);
+		response.setRetryAfter(retryAfterSeconds);
+
+		final InetAddress remote = connection.socket().getInetAddress();
+		try {
+			connection.configureBlocking(false);
+			connection.write(ByteBuffer.wrap(response.getHeaderBytes()));
+			connection.shutdownOutput();
+			// Read what has arrived of the request, so that closing doesn't reset the connection before the client reads the 503.
+			connection.read(ByteBuffer.allocate(4096));
+		} catch (IOException e) {
+			// silence... the client has gone anyway
+		} finally {
+			closeQuietly(connection);
+		}
+
+		if (logger.isEnabled(LogLevel.DEBUG)) {
+			logger.debug("Turned away " + remote + " with " + code + ": " + inFlight.get() + " connections in flight.");
+		}
+		if (accessLog != null) {
+			accessLog.record((remote == null) ? null : remote.getAddress(), null, response, 0, false, startMs, startNs);
+		}
+	}
+
+	/**
+	 * Connections admitted, and not yet closed.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Connections turned away so far.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	private static void closeQuietly(final SocketChannel c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// silence...
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package org.jchern.webserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jchern.accesslog.AccessLog;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Accepts connections on one or more acceptor threads, each of which hands its connections to workers of its own,
+ * which service them using blocking socket streams. With several acceptors and SO_REUSEPORT available,
+ * each acceptor listens on a socket of its own; otherwise they share one.
+ *
+ * In BLOCKING mode, the workers are a fixed pool of threads, so connections beyond the pool's size wait their turn.
+ * In VIRTUAL mode, every connection gets a new virtual thread (on Java 21+; on older JVMs, a platform thread),
+ * which blocks without tying up an OS thread; instead, the number of connections serviced at once is capped
+ * by a semaphore, and connections beyond it wait (in the listen backlog) to be accepted.
+ *
+ * Either way, connections beyond what the AdmissionController allows in flight, or beyond what a worker group may
+ * queue, or that waited in the queue past the deadline, are answered at once with a 503 instead of being serviced.
+ * And since a blocked worker can't notice that its client is too slow (socket timeouts only cover reads),
+ * one thread drives a TimerWheel that checks every connection's ConnectionDeadlines, closing the sockets that fall behind.
+ *
+ * Listens with a (blocking) ServerSocketChannel rather than a plain ServerSocket, so that every accepted socket
+ * has a channel that files can be transferred to directly.
+ * @author Jeff Chern
+ */
+public class BlockingEngine implements IConnectionEngine {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	private final int port;
+	private final RequestDispatcher dispatcher;
+	private final AccessLog accessLog; // null if disabled
+	private final AdmissionController admission;
+	private final int threadPoolSize;
+	private final int maxQueuedConnections;
+	private final int acceptors;
+	private final ServerConfig config;
+	private final boolean virtualThreads;
+	private final Semaphore connectionPermits; // VIRTUAL mode only, otherwise null
+	private final TimerWheel wheel = ConnectionDeadlines.newTimerWheel(); // for every connection's deadlines
+
+	private ServerSocketChannel[] serverChannels;
+	private ExecutorService[] workerGroups;
+	private Thread wheelThread;
+
+	public BlockingEngine(final int port, final RequestDispatcher dispatcher, final AccessLog accessLog,
+			final AdmissionController admission, final ServerConfig config) {
+		this.port = port;
+		this.dispatcher = dispatcher;
+		this.accessLog = accessLog;
+		this.admission = admission;
+		this.threadPoolSize = config.getThreadPoolSize();
+		this.maxQueuedConnections = config.getMaxQueuedConnections();
+		this.acceptors = Math.max(1, config.getAcceptors());
+		this.config = config;
+		this.virtualThreads = (config.getEngine() == ServerConfig.Engine.VIRTUAL);
+		this.connectionPermits = virtualThreads ? new Semaphore(config.getMaxConnections()) : null;
+	}
+
+	@Override
+	public void start() throws IOException {
+		// Listen on this port
+		serverChannels = ServerChannels.open(port, acceptors);
+
+		// Blocked workers can't watch their own deadlines, so one thread does it for all of them
+		wheelThread = new Thread("timer-wheel") {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(wheel.getTickMs());
+					} catch (InterruptedException e) {
+						break;
+					}
+					wheel.advance(System.currentTimeMillis());
+				}
+			}
+		};
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+
+		// Start the acceptor threads, each with its own workers
+		workerGroups = new ExecutorService[acceptors];
+		final int groupSize = Math.max(1, (threadPoolSize + acceptors - 1) / acceptors);
+		final int groupQueue = (maxQueuedConnections + acceptors - 1) / acceptors;
+		for (int i = 0; i < acceptors; i++) {
+			workerGroups[i] = virtualThreads ? newThreadPerTaskExecutor() : newBoundedThreadPool(groupSize, groupQueue);
+			final Acceptor acceptor = new Acceptor(serverChannels[i % serverChannels.length], workerGroups[i]);
+			new Thread(acceptor, "acceptor-" + i).start();
+		}
+	}
+
+	/**
+	 * Repeatedly accepts connections on a server socket, until it is closed, and hands them to its workers.
+	 */
+	private class Acceptor implements Runnable {
+
+		private final ServerSocketChannel serverChannel;
+		private final ExecutorService workers;
+
+		Acceptor(final ServerSocketChannel serverChannel, final ExecutorService workers) {
+			this.serverChannel = serverChannel;
+			this.workers = workers;
+		}
+
+		@Override
+		public void run() {
+			while (serverChannel.isOpen()) {
+				boolean submitted = false;
+				try {
+					if (connectionPermits != null) {
+						connectionPermits.acquire(); // wait for a connection to close, if at the cap
+					}
+					final SocketChannel connection = serverChannel.accept();
+
+					// Respond to request
+					if (logger.isEnabled(LogLevel.DEBUG)) {
+						logger.debug("Connected socket to: " + connection.socket().getRemoteSocketAddress().toString());
+					}
+					if (!admission.admit(connection)) {
+						continue;
+					}
+					final InetAddress remote = connection.socket().getInetAddress();
+					try {
+						workers.submit(admitted(connection, remote, new HttpRequestHandler(connection.socket(), dispatcher,
+								accessLog, admission, wheel, config)));
+						submitted = true;
+					} catch (RejectedExecutionException e) {
+						// no room in the queue
+						admission.release(remote);
+						admission.reject(connection);
+					}
+				} catch (IOException e) {
+					if (serverChannel.isOpen()) {
+						logger.error("HttpServer: Error accepting incoming connection.");
+						logger.error(e);
+					}
+				} catch (InterruptedException e) {
+					break;
+				} finally {
+					if (!submitted && connectionPermits != null) {
+						connectionPermits.release();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Services an admitted connection when a worker gets to it, unless it has waited too long;
+	 * then gives back its place in flight (and in VIRTUAL mode, its permit).
+	 */
+	private Runnable admitted(final SocketChannel connection, final InetAddress remote, final Runnable handler) {
+		final long admittedNs = System.nanoTime();
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (admission.isOverdue(admittedNs)) {
+						admission.reject(connection);
+					} else {
+						handler.run();
+					}
+				} finally {
+					admission.release(remote);
+					if (connectionPermits != null) {
+						connectionPermits.release();
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * A fixed pool of threads, like Executors.newFixedThreadPool(), but whose queue holds at most maxQueued tasks:
+	 * beyond that, submit() throws RejectedExecutionException.
+	 */
+	private static ExecutorService newBoundedThreadPool(final int threads, final int maxQueued) {
+		final BlockingQueue<Runnable> queue = (maxQueued > 0)
+				? new ArrayBlockingQueue<Runnable>(maxQueued)
+				: new SynchronousQueue<Runnable>();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue);
+	}
+
+	/**
+	 * Starts a new virtual thread for each task, if this JVM has them (Java 21+); otherwise, a new platform thread.
+	 * Looked up reflectively, so the server still builds for, and runs on, older JVMs.
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.warn("HttpServer: This JVM has no virtual threads; using a platform thread per connection instead.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	@Override
+	public void stop() {
+		ServerChannels.closeAll(serverChannels);
+		for (ExecutorService workers : workerGroups) {
+			workers.shutdown();
+		}
+		wheelThread.interrupt();
+	}
+}
@@ -0,0 +1,135 @@
+package org.jchern.webserver;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits what each client (remote IP address) may take of the server: how many connections it has open at once,
+ * and how many requests per second it makes, so that one greedy client can't crowd out all the others.
+ *
+ * Each client has an entry in a concurrent table, holding its connection count and a token bucket for its requests.
+ * The bucket is kept as a single timestamp (the time at which it will be full again, as in GCRA), so taking a token
+ * is one compare-and-set: checking a client never takes a lock, and different clients never contend.
+ * Entries of clients with no connections open and a full bucket are expired by a sweep, at most once a second,
+ * done by whichever thread is due to.
+ *
+ * Threadsafe: shared by all acceptors and workers.
+ * @author Jeff Chern
+ */
+public class ClientLimiter {
+
+	private static final long SWEEP_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+	private static class Client {
+		final AtomicInteger connections = new AtomicInteger(); // -1 once expired: no longer in the table
+		final AtomicLong fullAtNs; // when the bucket will be full again, if no more tokens are taken
+
+		Client(final long nowNs) {
+			this.fullAtNs = new AtomicLong(nowNs);
+		}
+	}
+
+	private final int maxConnections;
+	private final long tokenNs; // 0 if requests aren't limited
+	private final long burstNs; // how far ahead of now fullAtNs may get: a bucket's worth of tokens
+
+	private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<InetAddress, Client>();
+	private final AtomicLong lastSweepNs = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param maxConnections per client, or 0 for no limit
+	 * @param requestsPerSecond per client, or 0 for no limit; a client may also make this many at once,
+	 * after not making any for a second
+	 */
+	public ClientLimiter(final int maxConnections, final int requestsPerSecond) {
+		this.maxConnections = (maxConnections > 0) ? maxConnections : Integer.MAX_VALUE;
+		this.tokenNs = (requestsPerSecond > 0) ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+		this.burstNs = (requestsPerSecond > 0) ? tokenNs * requestsPerSecond : 0;
+	}
+
+	/**
+	 * Counts a new connection from the client, and its first request.
+	 * @return false if the client has too many connections open, or has made too many requests lately;
+	 * otherwise, release() must be called once the connection is closed
+	 */
+	public boolean tryConnect(final InetAddress address) {
+		final long now = System.nanoTime();
+		sweepIfDue(now);
+
+		Client client;
+		while (true) {
+			client = clients.get(address);
+			if (client == null) {
+				final Client created = new Client(now);
+				client = clients.putIfAbsent(address, created);
+				if (client == null) client = created;
+			}
+			final int open = client.connections.get();
+			if (open < 0) {
+				clients.remove(address, client); // just expired: make a new entry
+				continue;
+			}
+			if (open >= maxConnections) return false;
+			if (client.connections.compareAndSet(open, open + 1)) break;
+		}
+
+		if (!takeToken(client, now)) {
+			client.connections.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts a further request on one of the client's connections.
+	 * @return false if the client has made too many requests lately
+	 */
+	public boolean tryRequest(final InetAddress address) {
+		final Client client = clients.get(address);
+		return client == null || takeToken(client, System.nanoTime());
+	}
+
+	/**
+	 * Counts one of the client's connections closed.
+	 */
+	public void release(final InetAddress address) {
+		final Client client = clients.get(address);
+		if (client != null) {
+			// Entries with connections open are never expired, so this is the one that counted the connection.
+			client.connections.decrementAndGet();
+		}
+	}
+
+	/*package*/ int size() {
+		return clients.size();
+	}
+
+	private boolean takeToken(final Client client, final long now) {
+		if (tokenNs == 0) return true;
+		while (true) {
+			final long fullAt = client.fullAtNs.get();
+			final long from = Math.max(fullAt, now);
+			if (from + tokenNs - now > burstNs) return false; // bucket empty
+			if (client.fullAtNs.compareAndSet(fullAt, from + tokenNs)) return true;
+		}
+	}
+
+	/**
+	 * Forgets the clients that have no connections open and a full bucket, so the table doesn't grow without bound.
+	 */
+	private void sweepIfDue(final long now) {
+		final long last = lastSweepNs.get();
+		if (now - last < SWEEP_INTERVAL_NS || !lastSweepNs.compareAndSet(last, now)) return;
+
+		for (Map.Entry<InetAddress, Client> entry : clients.entrySet()) {
+			final Client client = entry.getValue();
+			if (client.fullAtNs.get() - now <= 0 && client.connections.compareAndSet(0, -1)) {
+				clients.remove(entry.getKey(), client);
+			}
+		}
+	}
+}
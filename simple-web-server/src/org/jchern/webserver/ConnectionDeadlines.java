@@ -0,0 +1,186 @@
+package org.jchern.webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Closes a connection whose client is too slow, so that it can't hold on to the server's resources:
+ * - idle: no request started within ServerConfig.getIdleTimeoutMs() of the last response (or of connecting)
+ * - header deadline: a request's head not completely received within getHeaderTimeoutMs() of its first bytes
+ * - request deadline: a request not completely answered within getRequestTimeoutMs() of its first bytes
+ * - minimum rate: a request received, or a response sent, at fewer than getMinBytesPerSecond() on average
+ *   (after a grace period, since a new transfer has to get going first)
+ *
+ * The connection reports what it's doing (received(), responding(), idle()) with plain field writes;
+ * a TimerWheel checks the deadlines when they're due, and the connection is closed from there.
+ * Each connection has its own, used by whichever thread services it, and by the thread driving the wheel.
+ * @author Jeff Chern
+ */
+/*package*/ class ConnectionDeadlines implements TimerWheel.ITimer {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	private static final long RATE_GRACE_MS = 2000;
+	private static final long RATE_CHECK_INTERVAL_MS = 1000;
+	private static final long TIMER_TICK_MS = 250;
+	private static final int TIMER_SLOTS = 256;
+
+	private static final int IDLE = 0, RECEIVING = 1, RESPONDING = 2, CLOSED = 3;
+
+	private final int idleTimeoutMs;
+	private final int headerTimeoutMs; // 0 if none
+	private final int requestTimeoutMs; // 0 if none
+	private final int minBytesPerSecond; // 0 if none
+
+	private Closeable connection;
+	private String remoteName;
+
+	// Written by the connection's thread, read by the wheel's; the times first, then the phase.
+	private volatile int phase = IDLE;
+	private volatile long idleSinceMs;
+	private volatile long requestStartMs; // when the current request's first bytes were received
+	private volatile long bytesReceived; // of the current request, so far
+	private volatile long responseStartMs;
+	private volatile long responseBytes; // to be sent, or -1 if not known up front
+	private volatile boolean expired = false;
+
+	public ConnectionDeadlines(final ServerConfig config) {
+		this.idleTimeoutMs = config.getIdleTimeoutMs();
+		this.headerTimeoutMs = config.getHeaderTimeoutMs();
+		this.requestTimeoutMs = config.getRequestTimeoutMs();
+		this.minBytesPerSecond = config.getMinBytesPerSecond();
+	}
+
+	/**
+	 * A wheel suited to checking connections' deadlines: each is checked about once a second, at most a tick late.
+	 */
+	public static TimerWheel newTimerWheel() {
+		return new TimerWheel(TIMER_TICK_MS, TIMER_SLOTS);
+	}
+
+	/**
+	 * Starts watching the connection: it's closed if any of its deadlines pass.
+	 */
+	public void watch(final Closeable connection, final String remoteName, final TimerWheel wheel) {
+		this.connection = connection;
+		this.remoteName = remoteName;
+		final long now = System.currentTimeMillis();
+		idleSinceMs = now;
+		wheel.schedule(this, now + Math.min(idleTimeoutMs, RATE_CHECK_INTERVAL_MS));
+	}
+
+	/**
+	 * Counts bytes received; the first since idle() start a request.
+	 */
+	public void received(final long nowMs, final int bytes) {
+		if (phase == IDLE) {
+			requestStartMs = nowMs;
+			bytesReceived = bytes;
+			phase = RECEIVING;
+		} else {
+			bytesReceived += bytes;
+		}
+	}
+
+	/**
+	 * Starts sending a response (or, with responses already being sent, adds one).
+	 * @param bytes headers and body, or -1 if not known up front
+	 */
+	public void responding(final long nowMs, final long bytes) {
+		if (phase == RESPONDING) {
+			responseBytes = (responseBytes < 0 || bytes < 0) ? -1 : responseBytes + bytes;
+			return;
+		}
+		if (phase == IDLE) {
+			requestStartMs = nowMs;
+		}
+		responseStartMs = nowMs;
+		responseBytes = bytes;
+		phase = RESPONDING;
+	}
+
+	/**
+	 * Every response has been sent; waits for the next request.
+	 */
+	public void idle(final long nowMs) {
+		idleSinceMs = nowMs;
+		phase = IDLE;
+	}
+
+	/**
+	 * The connection has been closed: stops watching it.
+	 */
+	public void closed() {
+		phase = CLOSED;
+	}
+
+	/**
+	 * Whether the connection was closed for passing one of its deadlines.
+	 */
+	public boolean isExpired() {
+		return expired;
+	}
+
+	@Override
+	public long check(final long nowMs) {
+		switch (phase) {
+		case IDLE:
+			final long idleDueMs = idleSinceMs + idleTimeoutMs;
+			return (nowMs < idleDueMs) ? Math.min(idleDueMs, nowMs + RATE_CHECK_INTERVAL_MS) : expire("idle");
+
+		case RECEIVING:
+			if (headerTimeoutMs > 0 && nowMs >= requestStartMs + headerTimeoutMs) return expire("request head too slow");
+			if (requestTimeoutMs > 0 && nowMs >= requestStartMs + requestTimeoutMs) return expire("request too slow");
+			if (isBelowMinRate(nowMs - requestStartMs, bytesReceived)) return expire("receiving too slowly");
+			return nextCheck(nowMs, (headerTimeoutMs > 0) ? requestStartMs + headerTimeoutMs : Long.MAX_VALUE);
+
+		case RESPONDING:
+			if (requestTimeoutMs > 0 && nowMs >= requestStartMs + requestTimeoutMs) return expire("request too slow");
+			final long bytes = responseBytes;
+			if (bytes >= 0 && minBytesPerSecond > 0) {
+				// Sending it all at the minimum rate must not take any longer than this.
+				final long rateDueMs = responseStartMs + RATE_GRACE_MS + bytes * 1000 / minBytesPerSecond;
+				if (nowMs >= rateDueMs) return expire("sending too slowly");
+				return nextCheck(nowMs, rateDueMs);
+			}
+			return nextCheck(nowMs, Long.MAX_VALUE);
+
+		default:
+			return 0; // closed
+		}
+	}
+
+	/**
+	 * Soon enough to notice the phase changing.
+	 */
+	private long nextCheck(final long nowMs, final long dueMs) {
+		long next = Math.min(dueMs, nowMs + RATE_CHECK_INTERVAL_MS);
+		if (requestTimeoutMs > 0) {
+			next = Math.min(next, requestStartMs + requestTimeoutMs);
+		}
+		return next;
+	}
+
+	private boolean isBelowMinRate(final long elapsedMs, final long bytes) {
+		return minBytesPerSecond > 0 && elapsedMs > RATE_GRACE_MS
+				&& bytes * 1000 < minBytesPerSecond * (elapsedMs - RATE_GRACE_MS);
+	}
+
+	private long expire(final String reason) {
+		expired = true;
+		phase = CLOSED;
+		if (logger.isEnabled(LogLevel.DEBUG)) {
+			logger.debug(String.format("(%s) Closing connection: %s", remoteName, reason));
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// silence...
+		}
+		return 0;
+	}
+}
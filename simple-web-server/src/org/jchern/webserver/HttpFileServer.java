@@ -2,82 +2,142 @@ package org.jchern.webserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
 
+import org.jchern.accesslog.AccessLog;
 import org.jchern.file.ContentTypes;
+import org.jchern.file.FileContentCache;
+import org.jchern.file.FileWatcher;
+import org.jchern.file.GzipCache;
+import org.jchern.file.IFileCache;
+import org.jchern.file.MappedFiles;
 import org.jchern.file.StaticFiles;
 import org.jchern.utils.ILogger;
 import org.jchern.utils.SingleLogger;
 
+import com.google.common.collect.Lists;
+
 public class HttpFileServer {
 
-	private final static int DEFAULT_THREADPOOL_SIZE = 5;
+	private static final ILogger logger = SingleLogger.instance();
 
 	private final int port;
 	private final StaticFiles fileRoot;
-	
+	private final ServerConfig config;
+	private final FileContentCache contentCache; // null if disabled
+	private final MappedFiles mappedFiles; // null if disabled
+	private final IIndexBuilder indexBuilder;
+	private final GzipCache gzipCache; // null if disabled
+
 	private boolean started = false;
-	private ServerSocket serverSocket;
-	
-	private final ILogger logger;
-	
+	private IConnectionEngine engine;
+	private FileWatcher fileWatcher;
+	private AccessLog accessLog; // null if disabled
+	private AdmissionController admission;
+
 	public HttpFileServer(final int port, final String root) {
+		this(port, root, new ServerConfig());
+	}
+
+	public HttpFileServer(final int port, final String root, final ServerConfig config) {
 		this.port = port;
-		logger = SingleLogger.instance();
-		
+		this.config = config;
+
 		// Set up root dir
-		fileRoot = new StaticFiles(new File(root));
+		fileRoot = new StaticFiles(new File(root), config.getFileInfoTtlMs(), config.isServePrecompressed());
+		contentCache = (config.getContentCacheBytes() > 0)
+				? new FileContentCache(config.getContentCacheBytes(), config.getContentCacheMaxFileSize())
+				: null;
+		mappedFiles = (config.getMappedFilesBytes() > 0)
+				? new MappedFiles(config.getMappedFilesBytes(), config.getContentCacheMaxFileSize())
+				: null;
+		indexBuilder = (config.getIndexCacheBytes() > 0)
+				? new IndexCache(new IndexBuilder(), config.getIndexCacheBytes())
+				: new IndexBuilder();
+		gzipCache = (config.getGzipCacheBytes() > 0)
+				? new GzipCache(config.getGzipCacheBytes(), config.getGzipMinLength(), config.getContentCacheMaxFileSize())
+				: null;
 
 		// Load known MIME types
 		ContentTypes.init();
 	}
-	
+
 	/**
-	 * Starts the server on another thread and returns.
+	 * Starts the server on other threads and returns.
 	 * @throws IOException
 	 */
 	public synchronized void start() throws IOException {
 		if (started) return; // only start once
-		
-		// Listen on this port
-		serverSocket = new ServerSocket(port);
-		final ExecutorService threadPool = Executors.newFixedThreadPool(DEFAULT_THREADPOOL_SIZE);
-
-		// Start listener thread
-		final Thread runner = new Thread() {
-			@Override
-			public void run() {
-				// Repeatedly handle connection requests on the server socket
-				while (true) {
-					try {
-						final Socket connection = serverSocket.accept();
-						connection.setKeepAlive(false);
-						
-						// Respond to request
-						logger.debug("Connected socket to: " + connection.getRemoteSocketAddress().toString());
-						threadPool.submit(new HttpRequestHandler(connection, fileRoot));
-					} catch (IOException e) {
-						logger.error("HttpServer: Error accepting incoming connection.");
-						logger.error(e);
-					}
-				}
-			}
-		};
-		runner.start();
+
+		if (config.isWatchFiles()) {
+			startFileWatcher();
+		}
+
+		if (config.getAccessLogDir() != null) {
+			accessLog = new AccessLog(new File(config.getAccessLogDir()), config.getAccessLogSegmentBytes());
+		}
+
+		admission = new AdmissionController(config, accessLog);
+		final RequestDispatcher dispatcher = new RequestDispatcher(fileRoot, contentCache, mappedFiles, indexBuilder, gzipCache,
+				config);
+		switch (config.getEngine()) {
+		case BLOCKING:
+		case VIRTUAL:
+			engine = new BlockingEngine(port, dispatcher, accessLog, admission, config);
+			break;
+		case SELECTOR:
+		default:
+			engine = new SelectorEngine(port, dispatcher, accessLog, admission, config);
+		}
+		engine.start();
 		started = true;
 	}
 
 	public synchronized void stop() {
 		if (started) {
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+			engine.stop();
+			if (fileWatcher != null) {
+				fileWatcher.stop();
+			}
+			if (accessLog != null) {
+				accessLog.close();
 			}
 			started = false;
 		}
 	}
+
+	/**
+	 * Watches the served files, so every cache forgets them as soon as they change.
+	 * If that's not possible, the caches still notice changes, just not as quickly.
+	 */
+	private void startFileWatcher() {
+		final List<IFileCache> caches = Lists.<IFileCache>newArrayList(fileRoot);
+		if (contentCache != null) caches.add(contentCache);
+		if (mappedFiles != null) caches.add(mappedFiles);
+		if (indexBuilder instanceof IFileCache) caches.add((IFileCache) indexBuilder);
+		if (gzipCache != null) caches.add(gzipCache);
+
+		fileWatcher = new FileWatcher(fileRoot.getRootPath(), caches);
+		try {
+			fileWatcher.start();
+		} catch (IOException e) {
+			logger.error("HttpServer: Can't watch the served files for changes.");
+			logger.error(e);
+			fileWatcher = null;
+		}
+	}
+
+	/**
+	 * The cache of popular file contents, e.g. for its hit/miss statistics. Null if disabled in the config.
+	 */
+	public FileContentCache getContentCache() {
+		return contentCache;
+	}
+
+	/**
+	 * Decides which connections are admitted, e.g. for how many were turned away. Null until started.
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
 }
@@ -1,209 +1,306 @@
 package org.jchern.webserver;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.net.URLDecoder;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 
-import org.jchern.file.ContentTypes;
-import org.jchern.file.StaticFiles;
-import org.jchern.file.StaticFiles.FileInfo;
-import org.jchern.http.HttpMethod;
+import org.jchern.accesslog.AccessLog;
 import org.jchern.http.HttpRequest;
 import org.jchern.http.HttpRequestParser;
-import org.jchern.http.HttpResponse;
 import org.jchern.http.ParsingException;
 import org.jchern.http.ResponseCode;
 import org.jchern.strings.Strings;
 import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
 import org.jchern.utils.SingleLogger;
 
+/**
+ * Services one connection of the BLOCKING engine, from a pooled worker thread.
+ * Keeps serving requests from the connection until either side decides to close it,
+ * or the client stays idle longer than the configured timeout.
+ *
+ * Responses are buffered, and only flushed once no more (pipelined) requests are waiting to be read,
+ * so responses to a burst of small requests go out together, in order, in as few writes as possible.
+ *
+ * Files are sent with FileChannel.transferTo when the socket has a channel (i.e. sendfile, on Linux),
+ * so their contents go from the page cache to the socket without being copied through the Java heap.
+ * Files already held in the content cache, or in a shared memory mapping, are written straight from memory,
+ * together with their headers in one gathering write.
+ */
 public class HttpRequestHandler implements Runnable {
 
     private static final ILogger logger = SingleLogger.instance();
     private static final int READ_BUFFER_SIZE = 8192;
-    
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int HEADER_BUFFER_SIZE = 4096;
+
     private final Socket socket;
-    
-    // TODO: store re-usable parser instances somewhere persistent, if we don't want to create a new instance for every single request handler.
+    private final String remoteName;
+    private final int idleTimeoutMs;
+    private final TimerWheel wheel;
+    private final ConnectionDeadlines deadlines;
+
+    // One per connection, since it keeps the progress of a partly received request between reads.
     private final HttpRequestParser parser;
-    
-    private final StaticFiles fileRoot;
-    
-    public HttpRequestHandler(final Socket cxn, StaticFiles fileRoot) {
+
+    private final RequestDispatcher dispatcher;
+    private final AccessLog accessLog; // null if disabled
+    private final AdmissionController admission;
+    private final InetAddress remote; // null if unknown
+    private final byte[] remoteAddress; // for the access log
+
+    // Reused for the header block of every response on this connection.
+    private ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+    private final ByteBuffer[] gathered = new ByteBuffer[2];
+
+    public HttpRequestHandler(final Socket cxn, final RequestDispatcher dispatcher, final AccessLog accessLog,
+            final AdmissionController admission, final TimerWheel wheel, final ServerConfig config) {
         this.socket = cxn;
+        this.idleTimeoutMs = config.getIdleTimeoutMs();
+        this.wheel = wheel;
+        this.deadlines = new ConnectionDeadlines(config);
+        this.remoteName = String.valueOf(cxn.getRemoteSocketAddress());
+        this.remote = cxn.getInetAddress();
+        this.remoteAddress = (remote == null) ? null : remote.getAddress();
         this.parser = new HttpRequestParser();
-        this.fileRoot = fileRoot;
+        this.dispatcher = dispatcher;
+        this.accessLog = accessLog;
+        this.admission = admission;
     }
 
     @Override
     public void run() {
         try {
-            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            final HttpRequest request = parser.parse(in);
-
-            // Get the URL, but discard any query params (after '?'), and convert escaped chars.
-            final String requestedUrl = URLDecoder.decode(discardUrlParams(request.getUrl()), "UTF-8");
-            
-            // I assume I'm already in a worker thread, so I will just respond to the request here directly.
-            switch (request.getMethod()) {
-            case HEAD:
-                // Look for the URL, see if it's there.
-                // just send a response Header with info.
-            	logRequest(HttpMethod.HEAD, requestedUrl, socket);
-                fulfillRequestedUrl(requestedUrl, false);
-                break;
-                
-            case GET:
-                // Then write it to output stream.
-            	logRequest(HttpMethod.GET, requestedUrl, socket);
-                fulfillRequestedUrl(requestedUrl, true);                
-                break;
-
-            case PUT:
-            case POST:
-            case DELETE:
-                // We don't support methods other than GET and HEAD.
-                respondWithError(ResponseCode.ERROR_405, requestedUrl);
-                break;
-                
-            default:
-                // No other methods recognized.
-                respondWithError(ResponseCode.SERVER_501, requestedUrl);
+            socket.setSoTimeout(idleTimeoutMs);
+            deadlines.watch(new Closeable() { // the timeout only covers reads
+                @Override
+                public void close() {
+                    abort();
+                }
+            }, remoteName, wheel);
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+
+            // Holds received bytes until they've been parsed: at most one request head, plus whatever was pipelined after it.
+            final ByteBuffer requestBuffer = ByteBuffer.allocate(HttpRequestParser.MAX_HEAD_LENGTH);
+
+            boolean keepAlive = true;
+            int requestsServed = 0;
+            while (keepAlive) {
+                PreparedResponse response;
+                HttpRequest request = null;
+                long startMs = 0, startNs = 0;
+                keepAlive = false; // unless the request and the response both allow it
+                try {
+                    request = readRequest(in, requestBuffer, out);
+                    if (request == null) break; // client closed the connection
+                    startMs = System.currentTimeMillis();
+                    startNs = System.nanoTime();
+                    requestsServed++;
+
+                    if (requestsServed > 1 && !admission.tryRequest(remote)) {
+                        response = dispatcher.respondWithError(ResponseCode.ERROR_429, request.getUrl(), remoteName);
+                        admission.tooManyRequests(response.getHeaders());
+                    } else {
+                        // I assume I'm already in a worker thread, so I will just respond to the request here directly.
+                        response = dispatcher.dispatch(request, remoteName);
+                        keepAlive = dispatcher.decideKeepAlive(request, response, requestsServed);
+                    }
+
+                } catch (ParsingException e) {
+                    // TODO: log the problematic request, if needed for auditing
+                    logger.error(e.getMessage());
+                    startMs = System.currentTimeMillis();
+                    startNs = System.nanoTime();
+                    response = dispatcher.respondWithError(ResponseCode.ERROR_400, "a request rejected by parser", remoteName);
+                }
+                final long bodyLength = response.getBodyLength();
+                deadlines.responding(startMs,
+                        (bodyLength < 0) ? -1 : response.getHeaders().getHeaderLength() + bodyLength);
+                final boolean sent = sendResponse(response, out);
+                deadlines.idle(System.currentTimeMillis());
+                if (sent && accessLog != null) {
+                    accessLog.record(remoteAddress, request, response.getHeaders(), response.getBodyLength(),
+                            response.isFromMemory(), startMs, startNs);
+                }
+                keepAlive &= sent;
+                if (!keepAlive) {
+                    out.flush();
+                }
+                // Otherwise, small responses are held back while the client has more requests lined up (see readRequest)
             }
 
-        } catch (ParsingException e) {
-            // TODO: log the problematic request, if needed for auditing
-        	logger.error(e.getMessage());
-        	respondWithError(ResponseCode.ERROR_400, "a request rejected by parser");
+        } catch (SocketTimeoutException e) {
+            if (logger.isEnabled(LogLevel.DEBUG)) {
+                logger.debug(String.format("(%s) Closing idle connection", remoteName));
+            }
         } catch (IOException e) {
-            logger.error(Strings.get(Strings.SOCKET_IN_ERROR, socket.getRemoteSocketAddress().toString()));
-            logger.error(e);
+            if (!deadlines.isExpired()) { // otherwise, already logged
+                logger.error(Strings.get(Strings.SOCKET_IN_ERROR, remoteName));
+                logger.error(e);
+            }
         } finally {
-        	closeQuietly(socket);
+            deadlines.closed();
+            closeQuietly(socket);
         }
     }
-    
-    private String discardUrlParams(final String url) {
-        int index = url.indexOf('?', 0);
-        return (index > 0) ? url.substring(0, index) : url; 
-    }
-    
+
     /**
-     * Generates and sends a complete HTTP response to the request for url.
-     * @param requestUrl
-     * @param sendContent false for HEAD request
-     * @return
+     * Reads until the buffer holds a complete request head, then parses it.
+     * Any bytes received after the head (i.e. pipelined requests) are left in the buffer, for the next call.
+     * Flushes the responses written so far before waiting for more input, so the client is never kept waiting on them.
+     * @param requestBuffer ready for writing more input (i.e. not flipped)
+     * @return the request, or null if the client closed the connection before sending a complete one
+     * @throws ParsingException if the request was malformed, or too long
      */
-    private void fulfillRequestedUrl(final String requestUrl, final boolean sendContent) {
-        final FileInfo requestedUrl = fileRoot.getInfoForUrl(requestUrl);
-
-        if (requestedUrl.found()) {
-            if (requestedUrl.isDir()) {
-                // Search for index.htm or index.html: send file or generate an index listing
-                if (requestedUrl.hasIndexFile()) {
-                    logger.debug("Sending index file: " + requestedUrl.getIndexFile().getPath());
-                    respondWithFile(requestedUrl.getIndexFile(), sendContent);
-                } else {
-                    logger.debug("Generating index file: " + requestedUrl.getPath());
-                    respondWithGeneratedIndex(requestedUrl, sendContent);
-                }
-            } else {
-                // Send file
-                logger.debug("Sending file: " + requestedUrl.getPath());
-                respondWithFile(requestedUrl, sendContent);
+    private HttpRequest readRequest(final InputStream in, final ByteBuffer requestBuffer, final OutputStream out) throws ParsingException, IOException {
+        while (true) {
+            requestBuffer.flip();
+            final HttpRequest request;
+            try {
+                request = parser.parseNext(requestBuffer);
+            } finally {
+                requestBuffer.compact();
+            }
+            if (request != null) return request;
+
+            if (!requestBuffer.hasRemaining()) {
+                // The buffer is full, but still doesn't hold a whole request head.
+                throw new ParsingException(Strings.get(Strings.SECURITY_REQUEST_LENGTH_EXCEEDED));
             }
-        } else {
-            logger.debug("Url NOT found " + requestUrl);
-            respondWithError(ResponseCode.ERROR_404, requestUrl);
+            if (in.available() == 0) {
+                out.flush(); // about to block
+            }
+            final int readLen = in.read(requestBuffer.array(), requestBuffer.arrayOffset() + requestBuffer.position(),
+                    requestBuffer.remaining());
+            if (readLen == -1) return null;
+            deadlines.received(System.currentTimeMillis(), readLen);
+            requestBuffer.position(requestBuffer.position() + readLen);
         }
     }
 
     /**
-     * @param fileToSend info for a valid FILE that exists
-     * @param sendFileContent
+     * Writes the whole response, leaving the connection open. The caller must flush the output stream.
+     * @return false if the response couldn't be sent completely, so the connection can't be reused
      */
-    private void respondWithFile(final FileInfo fileToSend, final boolean sendFileContent) {
-        final ResponseCode code = ResponseCode.SUCCESS_200;
-        final File path = fileToSend.getPath();
+    private boolean sendResponse(final PreparedResponse response, final OutputStream writer) {
+        final String contentName = response.getContentName();
 
-        final String contentType = ContentTypes.getMimeTypeForExtension(fileToSend.getExtension());
-        final long contentLen = path.length(); // Path length is 0 for an empty or non-existent file, but we already determined the file indeed exists.
-        final long modifiedMs = path.lastModified();
-        final boolean allowCache = true;
+        try {
+            // All the headers, followed by an empty line.
+            final ByteBuffer headers = writeHeaders(response);
 
-        final HttpResponse headers = new HttpResponse(code, contentType, contentLen, modifiedMs, allowCache);
+            // Send the message body (i.e. file contents), if required.
+            final SocketChannel channel = socket.getChannel();
+            if (response.hasContent() && response.getBuffer() != null && channel != null) {
+                writer.flush(); // any earlier responses must go first
+                writeGathered(headers, response.getBuffer(), channel);
+                return true;
+            }
+            writer.write(headers.array(), headers.arrayOffset() + headers.position(), headers.remaining());
 
-        FileInputStream fileInputStream = null;
-        try {
-            // Don't need to open the file if we're not going to send content
-            fileInputStream = (sendFileContent ? new FileInputStream(path) : null);
-            sendResponse(headers, sendFileContent, fileInputStream, fileToSend.getPath().getAbsolutePath());
-        } catch (FileNotFoundException e) {
-            // Shouldn't happen
-            logger.error(e);
-        } finally {
-            closeQuietly(fileInputStream);
+            if (response.hasContent()) {
+                if (response.getBuffer() != null) {
+                    writeBuffer(response.getBuffer(), writer);
+                    return true;
+                }
+                if (response.getFile() != null && channel != null) {
+                    writer.flush(); // headers (and any earlier responses) must go first
+                    return transferFile(response, channel);
+                }
+                return copyToOutputStream(response.openContent(), writer, contentName, remoteName);
+            }
+            return true;
+        } catch (IOException e) {
+            if (!deadlines.isExpired()) {
+                logger.error(Strings.get(Strings.ERROR_IN_OUTPUT_STREAM, remoteName));
+                logger.error(e);
+            }
+            return false;
         }
     }
 
     /**
-     * Generates an HTML listing of all files and subdirs, and sends it to the client.
-     * @param dirToList a valid DIR that exists
-     * @param sendContent
+     * Sends the response's file body directly from the file system to the socket.
+     * @return false if the whole body couldn't be sent
      */
-    private void respondWithGeneratedIndex(final FileInfo dirToList, final boolean sendContent) {
-        final IGeneratedIndex indexInfo = new IndexBuilder().buildIndexForDir(dirToList.getPath());
-
-        // Construct response params
-        final ResponseCode code = ResponseCode.SUCCESS_200;
-        final String contentType = ContentTypes.DEFAULT_HTML_TYPE + "; charset=" + indexInfo.getEncoding();
-        final long contentLen = indexInfo.getContentLength();
-        final long modTime = indexInfo.getModifiedTime();
-        final boolean allowCache = true; // because we have a sensible mod-time for the dir listing.
-
-        // Construct response and data
-        final HttpResponse headers = new HttpResponse(code, contentType, contentLen, modTime, allowCache);
-        final InputStream contents = indexInfo.getContent();
-        sendResponse(headers, sendContent, contents, String.format("Directory Listing for %s", dirToList.getOriginalUrl()));
+    private boolean transferFile(final PreparedResponse response, final SocketChannel out) {
+        FileChannel in = null;
+        try {
+            in = FileChannel.open(response.getFile().toPath(), StandardOpenOption.READ);
+
+            // transferTo may send less than asked for, so repeat until done.
+            final long offset = response.getFileOffset();
+            final long length = response.getContentLength();
+            long position = 0;
+            while (position < length) {
+                final long sent = in.transferTo(offset + position, length - position, out);
+                if (sent <= 0 && offset + position >= in.size()) {
+                    throw new IOException("File shrank while being sent");
+                }
+                position += sent;
+            }
+            return true;
+        } catch (IOException e) {
+            if (!deadlines.isExpired()) {
+                logger.error(Strings.get(Strings.ERROR_COPYING_FILE, response.getContentName(), remoteName));
+            }
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
     }
-    
-    
 
-    private void respondWithError(ResponseCode code, final String requestUrlForLogging) {
-        final HttpResponse headers = new HttpResponse(code);
-        sendResponse(headers, false, null, requestUrlForLogging);
+    /**
+     * Writes the response's header block into the header buffer (growing it, if it's too small).
+     * @return the header buffer, ready to be written
+     */
+    private ByteBuffer writeHeaders(final PreparedResponse response) {
+        final int length = response.getHeaders().getHeaderLength();
+        if (headerBuffer.capacity() < length) {
+            headerBuffer = ByteBuffer.allocate(length);
+        }
+        headerBuffer.clear();
+        response.getHeaders().writeTo(headerBuffer);
+        headerBuffer.flip();
+        return headerBuffer;
     }
-    
-    private void sendResponse(HttpResponse headers, boolean sendContent, InputStream content, final String contentName) {
-        logResponse(headers.getStatus(), contentName, socket);
 
-        OutputStream writer = null;
+    /**
+     * Writes the headers and an in-memory body straight to the socket's channel, with as few writes as it will take.
+     */
+    private void writeGathered(final ByteBuffer headers, final ByteBuffer body, final SocketChannel channel)
+            throws IOException {
+        gathered[0] = headers;
+        gathered[1] = body;
         try {
-            writer = socket.getOutputStream();
-
-            // Write all the headers, automatically followed by an empty line.
-            headers.writeToOutput(writer);
-
-            // Send the message body (i.e. file contents), if required.
-            if (sendContent) {
-                copyToOutputStream(content, writer, contentName, socket.getRemoteSocketAddress().toString());
+            while (headers.hasRemaining() || body.hasRemaining()) {
+                channel.write(gathered);
             }
-        } catch (IOException e) {
-            logger.error(Strings.get(Strings.ERROR_IN_OUTPUT_STREAM, contentName, socket.getRemoteSocketAddress()));
-            logger.error(e);
         } finally {
-            closeQuietly(writer);
+            gathered[0] = gathered[1] = null;
         }
     }
 
-    private static void copyToOutputStream(final InputStream in, final OutputStream out,
+    /**
+     * Writes an in-memory body to a socket that has no channel.
+     */
+    private static void writeBuffer(final ByteBuffer buffer, final OutputStream out) throws IOException {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.write(bytes);
+    }
+
+    private static boolean copyToOutputStream(final InputStream in, final OutputStream out,
             final String contentName, final String remoteName) {
         try {
             final byte[] buffer = new byte[READ_BUFFER_SIZE];
@@ -213,19 +310,27 @@ public class HttpRequestHandler implements Runnable {
             while ((readLen = in.read(buffer)) != -1) {
                 out.write(buffer, 0, readLen);
             }
+            return true;
         } catch (IOException e) {
             logger.error(Strings.get(Strings.ERROR_COPYING_FILE, contentName, remoteName));
+            return false;
         } finally {
             closeQuietly(in);
         }
     }
 
-    private void logRequest(final HttpMethod method, final String url, final Socket cxn) {
-    	logger.debug(String.format("(%s) %s %s", cxn.getRemoteSocketAddress(), method.name(), url));
-    }
-
-    private void logResponse(final ResponseCode status, final String contentDesc, final Socket cxn) {
-    	logger.info(String.format("(%s) %s for %s", cxn.getRemoteSocketAddress(), status, contentDesc));
+    /**
+     * Closes the connection from another thread, waking this one if it's blocked on it: a plain close doesn't wake
+     * a thread blocked in a transfer from a file (sendfile), but shutting the socket down first does.
+     */
+    private void abort() {
+        try {
+            socket.shutdownOutput();
+            socket.shutdownInput();
+        } catch (IOException e) {
+            // silence... already closed
+        }
+        closeQuietly(socket);
     }
 
     private static void closeQuietly(Socket s) {
@@ -237,8 +342,8 @@ public class HttpRequestHandler implements Runnable {
             // silence...
         }
     }
-    
-    private static void closeQuietly(InputStream f) {
+
+    private static void closeQuietly(FileChannel f) {
         try {
             if (f != null) {
                 f.close();
@@ -247,8 +352,8 @@ public class HttpRequestHandler implements Runnable {
             // silence...
         }
     }
-    
-    private static void closeQuietly(OutputStream f) {
+
+    private static void closeQuietly(InputStream f) {
         try {
             if (f != null) {
                 f.close();
@@ -0,0 +1,15 @@
+package org.jchern.webserver;
+
+import java.io.IOException;
+
+/**
+ * Listens on a port, and services each accepted connection until it is done.
+ * @author Jeff Chern
+ */
+public interface IConnectionEngine {
+	/**
+	 * Binds the listening socket and starts servicing connections on other threads, then returns.
+	 */
+	public void start() throws IOException;
+	public void stop();
+}
@@ -8,7 +8,8 @@ import java.io.InputStream;
  * Also reports:
  * - the effective modified time,
  * - the character encoding used,
- * - the length of the generated index, encoded with this charset.
+ * - the length of the generated index, encoded with this charset,
+ * - a strong entity tag for the listing's content.
  * @author jchern
  *
  */
@@ -17,4 +18,5 @@ public interface IGeneratedIndex {
 	public long getModifiedTime();
 	public long getContentLength();
 	public String getEncoding();
+	public String getETag();
 }
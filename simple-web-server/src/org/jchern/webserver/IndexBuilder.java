@@ -2,12 +2,14 @@ package org.jchern.webserver;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.jchern.utils.ILogger;
 import org.jchern.utils.SingleLogger;
@@ -15,24 +17,37 @@ import org.jchern.utils.TimeUtils;
 
 import com.google.common.collect.Lists;
 
-public class IndexBuilder {
+/**
+ * Generates the HTML listing of a directory, already encoded, with its length known up front.
+ * Each entry's attributes are read once, with a single stat.
+ */
+public class IndexBuilder implements IIndexBuilder {
 
-	public GeneratedIndex buildIndexForDir(final File dirToList) {
-    	final StringWriter stringWriter = new StringWriter();
-        final PrintWriter out = new PrintWriter(stringWriter);
+	private static final ILogger logger = SingleLogger.instance();
+	/*package*/ static final Charset ENCODING = Charset.forName("UTF-8");
+	private static final String NEWLINE = System.getProperty("line.separator");
+
+	@Override
+	public IGeneratedIndex buildIndexForDir(final File dirToList) {
+    	final StringBuilder out = new StringBuilder();
 
         // Consider a directory listing's effective mod time to be the latest of all its contents' modified times
         long newestModTime = 0L;
         
         // I want to print subdirs first, so sort them into bins
-        final List<File> subdirs = Lists.newArrayList();
-        final List<File> files = Lists.newArrayList();
+        final List<Entry> subdirs = Lists.newArrayList();
+        final List<Entry> files = Lists.newArrayList();
 
-        for (File f : dirToList.listFiles()) {
-        	if (f.isDirectory()) {
-        		subdirs.add(f);
+        final File[] listed = dirToList.listFiles();
+        for (File f : (listed != null) ? listed : new File[0]) {
+        	final Entry entry = Entry.of(f);
+        	if (entry == null) {
+        		continue; // deleted since it was listed
+        	}
+        	if (entry.isDir) {
+        		subdirs.add(entry);
         	} else {
-        		files.add(f);
+        		files.add(entry);
         	}
         }
         
@@ -41,40 +56,89 @@ public class IndexBuilder {
         Collections.sort(files);
         
         // Then print links to each subdir or file
-        final List<File> contents = Lists.newArrayList(subdirs);
+        final List<Entry> contents = Lists.newArrayList(subdirs);
         contents.addAll(files);
 
-        // TODO: add table css here to make it look better
-        out.println("<html><head><meta charset='UTF-8'/></head><body>");
-        out.println("<table border='0'>");
-        out.println("<tr><th>File</th><th>Size</th><th>Last Modified</th></tr>");
-
-        for (File f : contents) {
-        	final String size = f.isDirectory() ? "DIR" : String.valueOf(f.length());
-        	final String time = TimeUtils.timestampHttp(f.lastModified());
-        	newestModTime = Math.max(newestModTime, f.lastModified());
-        	
-        	// TODO: use table css here to make it look better
-        	out.println(String.format("<tr><td><a href='%s/%s'>%s</a></td><td>%s</td><td>%s</td></tr>",
-        			dirToList.getName(), f.getName(), f.getName(), size, time));
+        appendHeader(out);
+        for (Entry e : contents) {
+        	newestModTime = Math.max(newestModTime, e.lastModified);
+        	appendRow(out, dirToList.getName(), e);
         }
-        
-        out.println("</table>");
-        out.println("</html>");
+        appendFooter(out);
 
-        return new GeneratedIndex(newestModTime, stringWriter.toString());
+        // Encode just once: the length and the content are both taken from these bytes.
+        return new GeneratedIndex(newestModTime, out.toString().getBytes(ENCODING));
     }
+
+	/*package*/ static void appendHeader(final StringBuilder out) {
+        // TODO: add table css here to make it look better
+        out.append("<html><head><meta charset='UTF-8'/></head><body>").append(NEWLINE);
+        out.append("<table border='0'>").append(NEWLINE);
+        out.append("<tr><th>File</th><th>Size</th><th>Last Modified</th></tr>").append(NEWLINE);
+	}
+
+	/*package*/ static void appendRow(final StringBuilder out, final String dirName, final Entry e) {
+    	final String size = e.isDir ? "DIR" : String.valueOf(e.size);
+    	final String time = TimeUtils.timestampHttp(e.lastModified);
+
+    	// TODO: use table css here to make it look better
+    	out.append(String.format("<tr><td><a href='%s/%s'>%s</a></td><td>%s</td><td>%s</td></tr>",
+    			dirName, e.name, e.name, size, time)).append(NEWLINE);
+	}
+
+	/*package*/ static void appendFooter(final StringBuilder out) {
+        out.append("</table>").append(NEWLINE);
+        out.append("</html>").append(NEWLINE);
+	}
+
+	/**
+	 * One listed file or subdir, with the attributes shown in its row.
+	 */
+	/*package*/ static class Entry implements Comparable<Entry> {
+		final String name;
+		final boolean isDir;
+		final long size;
+		final long lastModified;
+
+		private Entry(final String name, final boolean isDir, final long size, final long lastModified) {
+			this.name = name;
+			this.isDir = isDir;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return the entry, or null if the file can't be looked up (e.g. it was just deleted)
+		 */
+		static Entry of(final File f) {
+			try {
+				final BasicFileAttributes attributes = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+				return new Entry(f.getName(), attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+			} catch (IOException e) {
+				logger.debug(e.getMessage());
+				return null;
+			}
+		}
+
+		@Override
+		public int compareTo(final Entry other) {
+			return name.compareTo(other.name);
+		}
+	}
 	
     private static class GeneratedIndex implements IGeneratedIndex {
-    	private static final ILogger logger = SingleLogger.instance();
-    	private static final String ENCODING = "UTF-8";
-
     	final long modTime;
-    	final String content;
+    	final byte[] content; // never modified, so one instance can be shared by many responses
+    	final String etag;
 
-    	public GeneratedIndex(final long modTime, final String content) {
+    	public GeneratedIndex(final long modTime, final byte[] content) {
     		this.modTime = modTime;
     		this.content = content;
+
+    		// From the content itself: the listing also changes when a listed file does, without its directory changing.
+    		final CRC32 crc = new CRC32();
+    		crc.update(content);
+    		this.etag = String.format("\"%x-%x\"", crc.getValue(), content.length);
     	}
     	
     	@Override
@@ -84,27 +148,22 @@ public class IndexBuilder {
     	
     	@Override
     	public InputStream getContent() {
-    		try {
-				return new ByteArrayInputStream(content.getBytes(ENCODING));
-			} catch (UnsupportedEncodingException e) {
-				logger.error(e);
-				return null; // TODO: better handling and auditing of errors.
-			}
+			return new ByteArrayInputStream(content);
     	}
 
 		@Override
 		public long getContentLength() {
-			try {
-				return content.getBytes(ENCODING).length;
-			} catch (UnsupportedEncodingException e) {
-				logger.error(e);
-				return 0;
-			}
+			return content.length;
 		}
 
 		@Override
 		public String getEncoding() {
-			return ENCODING;
+			return ENCODING.name();
+		}
+
+		@Override
+		public String getETag() {
+			return etag;
 		}
     }
 	
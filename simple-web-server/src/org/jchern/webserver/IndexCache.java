@@ -0,0 +1,128 @@
+package org.jchern.webserver;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jchern.file.FileKeys;
+import org.jchern.file.IFileCache;
+
+/**
+ * Remembers generated directory listings, already encoded, so that popular directories aren't listed,
+ * stat'ed and rendered again for every request.
+ *
+ * Each listing is kept along with its directory's modified time, and is regenerated once that changes
+ * (i.e. when entries are added, removed or renamed). Changes to the listed files themselves (new sizes and times)
+ * don't touch the directory; they're picked up when the file watcher invalidates the file.
+ *
+ * Bounded by the total size of the listings; the least recently used are dropped to make room.
+ * Threadsafe: shared by all connections.
+ * @author Jeff Chern
+ */
+public class IndexCache implements IIndexBuilder, IFileCache {
+
+	private static class Listing {
+		final IGeneratedIndex index;
+		final long dirModified;
+
+		Listing(final IGeneratedIndex index, final long dirModified) {
+			this.index = index;
+			this.dirModified = dirModified;
+		}
+	}
+
+	private final IIndexBuilder builder;
+	private final long maxBytes;
+
+	// In access order, so the first listing is the least recently used.
+	private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true);
+	private long usedBytes = 0;
+
+	/**
+	 * @param builder generates the listings on a miss
+	 * @param maxBytes total size of all remembered listings
+	 */
+	public IndexCache(final IIndexBuilder builder, final long maxBytes) {
+		this.builder = builder;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public IGeneratedIndex buildIndexForDir(final File dir) {
+		final String key = FileKeys.keyOf(dir);
+		final long dirModified = dir.lastModified();
+
+		synchronized (this) {
+			final Listing listing = listings.get(key);
+			if (listing != null) {
+				if (listing.dirModified == dirModified) {
+					return listing.index;
+				}
+				remove(key); // entries were added or removed since it was generated
+			}
+		}
+
+		// Generate outside the lock: large directories take a while, and other threads' hits shouldn't wait.
+		final IGeneratedIndex index = builder.buildIndexForDir(dir);
+		final long length = index.getContentLength();
+		if (length > maxBytes) {
+			return index;
+		}
+
+		synchronized (this) {
+			remove(key); // in case another thread generated it meanwhile
+			final Iterator<Map.Entry<String, Listing>> lru = listings.entrySet().iterator();
+			while (usedBytes + length > maxBytes && lru.hasNext()) {
+				usedBytes -= lru.next().getValue().index.getContentLength();
+				lru.remove();
+			}
+			listings.put(key, new Listing(index, dirModified));
+			usedBytes += length;
+		}
+		return index;
+	}
+
+	/**
+	 * Forgets the listing of the changed directory, and of the directory it's listed in.
+	 */
+	@Override
+	public synchronized void invalidate(final File changed) {
+		final String key = FileKeys.keyOf(changed);
+		remove(key);
+		final String parentKey = FileKeys.parentOf(key);
+		if (parentKey != null) {
+			remove(parentKey);
+		}
+	}
+
+	/**
+	 * As invalidate(), and also forgets the listings of every directory beneath the changed one.
+	 */
+	@Override
+	public synchronized void invalidateTree(final File changed) {
+		invalidate(changed);
+		final String dirKey = FileKeys.keyOf(changed);
+		final Iterator<Map.Entry<String, Listing>> it = listings.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Listing> listing = it.next();
+			if (FileKeys.isUnder(listing.getKey(), dirKey)) {
+				usedBytes -= listing.getValue().index.getContentLength();
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		listings.clear();
+		usedBytes = 0;
+	}
+
+	private void remove(final String key) {
+		final Listing removed = listings.remove(key);
+		if (removed != null) {
+			usedBytes -= removed.index.getContentLength();
+		}
+	}
+}
@@ -1,21 +1,32 @@
 package org.jchern.webserver;
 
+import java.io.File;
 import java.io.IOException;
 
+import org.jchern.utils.AsyncLogger;
 import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
 import org.jchern.utils.SingleLogger;
 
 public class Launcher {
 
 	private static final int PORT_ARG = 0;
 	private static final int WORKING_DIR_ARG = 1;
+	private static final int ENGINE_ARG = 2; // optional
+	private static final int LOG_FILE_ARG = 3; // optional
+	private static final int ACCESS_LOG_ARG = 4; // optional
 
-	private static final ILogger logger = SingleLogger.instance();
+	// How many log records may wait to be written to the log file; more are dropped, rather than slow down requests.
+	private static final int LOG_CAPACITY = 8192;
 	
 	/**
 	 * Arguments required:
 	 * 1. port-num (listening)
 	 * 2. working-dir (where WWW will be found)
+	 * Optional:
+	 * 3. engine (selector, blocking or virtual)
+	 * 4. log-file (logged to asynchronously, instead of the console)
+	 * 5. access-log-dir (where a binary record of every response is kept, see AccessLogTool)
 	 */
 	public static void main(String[] args) {
 		if (args.length < 2) {
@@ -33,15 +44,54 @@ public class Launcher {
 			return;
 		}
 
+		final ServerConfig config = new ServerConfig();
+		if (args.length > ENGINE_ARG) {
+			try {
+				config.setEngine(ServerConfig.Engine.valueOf(args[ENGINE_ARG].toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Invalid engine: " + args[ENGINE_ARG]);
+				printUsage();
+				return;
+			}
+		}
+
+		if (args.length > ACCESS_LOG_ARG) {
+			config.setAccessLogDir(args[ACCESS_LOG_ARG]);
+		}
+		if (args.length > LOG_FILE_ARG) {
+			try {
+				useAsyncLogger(new File(args[LOG_FILE_ARG]));
+			} catch (IOException e) {
+				System.err.println("Invalid log file: " + args[LOG_FILE_ARG]);
+				printUsage();
+				return;
+			}
+		}
+
+		// Not kept in a static field, since that would choose the default logger before main could pick another.
+		final ILogger logger = SingleLogger.instance();
 		try {
-			new HttpFileServer(port, args[WORKING_DIR_ARG]).start();
+			new HttpFileServer(port, args[WORKING_DIR_ARG], config).start();
 		} catch (IOException e) {
 			logger.fatal("Error starting server.");
 			logger.fatal(e);
 		}
 	}
 	
+	private static void useAsyncLogger(final File logFile) throws IOException {
+		final AsyncLogger logger = new AsyncLogger(LogLevel.INFO, logFile, LOG_CAPACITY, AsyncLogger.WhenFull.DROP);
+		SingleLogger.use(logger);
+
+		// Write out whatever is still waiting when the server is stopped.
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				logger.close();
+			}
+		});
+	}
+
 	private static void printUsage() {
-		System.out.println("Usage:   java  org.jchern.webserver.Launcher  <port>  <directory to serve>");
+		System.out.println("Usage:   java  org.jchern.webserver.Launcher  <port>  <directory to serve>  [selector | blocking | virtual  [log file  [access log dir]]]");
 	}
 }
@@ -0,0 +1,139 @@
+package org.jchern.webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jchern.http.ByteRange;
+
+/**
+ * The body of a multipart/byteranges response (RFC 7233 appendix A): each requested range of a file,
+ * preceded by its own Content-Type and Content-Range, between boundary lines.
+ *
+ * Its length is known up front (so it can be sent with a Content-Length), and the file is only opened,
+ * and read a piece at a time, as the body is read.
+ * @author Jeff Chern
+ */
+/*package*/ class MultipartRanges extends InputStream {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final File file;
+	private final List<ByteRange> ranges;
+	private final String boundary;
+	private final byte[][] partHeaders;
+	private final byte[] trailer;
+	private final long length;
+
+	private FileChannel channel; // opened on the first read
+	private int part = 0; // the range being sent, or ranges.size() once on the trailer
+	private boolean inPartHeader = true;
+	private long offset = 0; // within the current part header, range, or trailer
+
+	/**
+	 * @param file the file the ranges are of
+	 * @param ranges at least one, all within the file
+	 * @param contentType of the file, repeated in each part
+	 * @param fileLength length of the whole file, for each part's Content-Range
+	 */
+	public MultipartRanges(final File file, final List<ByteRange> ranges, final String contentType, final long fileLength) {
+		this.file = file;
+		this.ranges = ranges;
+		this.boundary = String.format("%016x", ThreadLocalRandom.current().nextLong());
+
+		long total = 0;
+		this.partHeaders = new byte[ranges.size()][];
+		for (int i = 0; i < ranges.size(); i++) {
+			final ByteRange range = ranges.get(i);
+			final String header = String.format("%s--%s\r\nContent-Type: %s\r\nContent-Range: bytes %s/%d\r\n\r\n",
+					(i == 0) ? "" : "\r\n", boundary, contentType, range, fileLength);
+			partHeaders[i] = header.getBytes(ASCII);
+			total += partHeaders[i].length + range.length();
+		}
+		this.trailer = String.format("\r\n--%s--\r\n", boundary).getBytes(ASCII);
+		this.length = total + trailer.length;
+	}
+
+	/**
+	 * The Content-Type of the whole body, naming its boundary.
+	 */
+	public String getContentType() {
+		return "multipart/byteranges; boundary=" + boundary;
+	}
+
+	/**
+	 * The exact length of the whole body, in bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] one = new byte[1];
+		return (read(one, 0, 1) == -1) ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) return 0;
+		while (true) {
+			if (part == ranges.size()) {
+				return copy(trailer, b, off, len);
+			}
+			if (inPartHeader) {
+				final int copied = copy(partHeaders[part], b, off, len);
+				if (copied != -1) return copied;
+				inPartHeader = false;
+				offset = 0;
+				continue;
+			}
+
+			final ByteRange range = ranges.get(part);
+			if (offset < range.length()) {
+				return readRange(range, b, off, len);
+			}
+			part++;
+			inPartHeader = true;
+			offset = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Copies what's left of bytes, from offset.
+	 * @return how many bytes were copied, or -1 if there are none left
+	 */
+	private int copy(final byte[] bytes, final byte[] b, final int off, final int len) {
+		if (offset >= bytes.length) return -1;
+		final int copyLen = (int) Math.min(len, bytes.length - offset);
+		System.arraycopy(bytes, (int) offset, b, off, copyLen);
+		offset += copyLen;
+		return copyLen;
+	}
+
+	private int readRange(final ByteRange range, final byte[] b, final int off, final int len) throws IOException {
+		if (channel == null) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		final int readLen = (int) Math.min(len, range.length() - offset);
+		final int read = channel.read(ByteBuffer.wrap(b, off, readLen), range.first + offset);
+		if (read <= 0) {
+			throw new IOException("File shrank while being sent");
+		}
+		offset += read;
+		return read;
+	}
+}
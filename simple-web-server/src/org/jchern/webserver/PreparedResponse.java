@@ -0,0 +1,150 @@
+package org.jchern.webserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.jchern.http.HttpResponse;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * A response that has been decided on, but not yet written to any connection:
+ * the headers, plus where to find the message body (if one should be sent).
+ *
+ * Lets the blocking and selector engines share the same request handling logic,
+ * while writing the response in their own ways.
+ * @author Jeff Chern
+ */
+public class PreparedResponse {
+
+	private final HttpResponse headers;
+	private final File file; // body read from disk, starting at fileOffset, or
+	private final long fileOffset;
+	private final ByteBuffer buffer; // body already in memory (e.g. cached), or
+	private final InputStream content; // body generated in memory
+	private final long contentLength; // as promised in the headers, or -1 if not known up front (chunked)
+	private final String contentName; // for logging
+
+	private PreparedResponse(final HttpResponse headers, final File file, final long fileOffset, final ByteBuffer buffer,
+			final InputStream content, final long contentLength, final String contentName) {
+		this.headers = headers;
+		this.file = file;
+		this.fileOffset = fileOffset;
+		this.buffer = buffer;
+		this.content = content;
+		this.contentLength = contentLength;
+		this.contentName = contentName;
+	}
+
+	/**
+	 * A response whose body is the first contentLength bytes of the given file.
+	 */
+	public static PreparedResponse withFile(final HttpResponse headers, final File file, final long contentLength,
+			final String contentName) {
+		return withFileRange(headers, file, 0L, contentLength, contentName);
+	}
+
+	/**
+	 * A response whose body is the contentLength bytes of the given file starting at fileOffset (e.g. for a Range request).
+	 */
+	public static PreparedResponse withFileRange(final HttpResponse headers, final File file, final long fileOffset,
+			final long contentLength, final String contentName) {
+		return new PreparedResponse(headers, file, fileOffset, null, null, contentLength, contentName);
+	}
+
+	/**
+	 * A response whose body is the remaining bytes of the given buffer, which must not be shared with other responses.
+	 */
+	public static PreparedResponse withBuffer(final HttpResponse headers, final ByteBuffer buffer, final String contentName) {
+		return new PreparedResponse(headers, null, 0L, buffer, null, buffer.remaining(), contentName);
+	}
+
+	/**
+	 * A response whose body is read from the given stream.
+	 */
+	public static PreparedResponse withContent(final HttpResponse headers, final InputStream content, final long contentLength,
+			final String contentName) {
+		return new PreparedResponse(headers, null, 0L, null, content, contentLength, contentName);
+	}
+
+	/**
+	 * A response consisting only of headers (e.g. for HEAD requests, or errors).
+	 */
+	public static PreparedResponse headersOnly(final HttpResponse headers, final String contentName) {
+		return new PreparedResponse(headers, null, 0L, null, null, 0L, contentName);
+	}
+
+	public HttpResponse getHeaders() {
+		return headers;
+	}
+
+	public String getContentName() {
+		return contentName;
+	}
+
+	/**
+	 * The file to send as the body, or null if the body isn't a file (or there is none).
+	 * File bodies can be sent straight from the file system to the socket, with FileChannel.transferTo.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Where in the file the body starts (0 unless only part of the file is sent).
+	 */
+	public long getFileOffset() {
+		return fileOffset;
+	}
+
+	/**
+	 * The in-memory body to send, or null if the body isn't in a buffer (or there is none).
+	 * Buffer bodies can be written straight to a channel, without touching the file system.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Content bytes this response sends: none for headers only, or -1 if not known up front (chunked).
+	 */
+	public long getBodyLength() {
+		return hasContent() ? contentLength : 0;
+	}
+
+	/**
+	 * Whether the content is sent from memory (e.g. the content cache), rather than read from disk or generated.
+	 */
+	public boolean isFromMemory() {
+		return buffer != null;
+	}
+
+	public boolean hasContent() {
+		return file != null || buffer != null || content != null;
+	}
+
+	/**
+	 * Opens the message body for reading. The caller must close it.
+	 * Only valid if hasContent() is true, and getBuffer() is null.
+	 */
+	public InputStream openContent() throws IOException {
+		if (file == null) {
+			return content;
+		}
+		final InputStream in = new FileInputStream(file);
+		try {
+			ByteStreams.skipFully(in, fileOffset);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return ByteStreams.limit(in, contentLength);
+	}
+}
@@ -0,0 +1,482 @@
+package org.jchern.webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.jchern.file.ContentCoding;
+import org.jchern.file.ContentTypes;
+import org.jchern.file.FileContentCache;
+import org.jchern.file.GzipCache;
+import org.jchern.file.MappedFiles;
+import org.jchern.file.StaticFiles;
+import org.jchern.file.StaticFiles.FileInfo;
+import org.jchern.http.ByteRange;
+import org.jchern.http.HttpMethod;
+import org.jchern.http.HttpRequest;
+import org.jchern.http.HttpResponse;
+import org.jchern.http.KnownHeader;
+import org.jchern.http.ResponseCode;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
+import org.jchern.utils.SingleLogger;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Decides how to respond to a parsed request: which file, index file, generated listing, or error to send.
+ * Doesn't do any socket I/O itself, so it can be shared by all connections of any engine.
+ * @author Jeff Chern
+ */
+public class RequestDispatcher {
+
+	private static final ILogger logger = SingleLogger.instance();
+	private static final String VARY_BY_ENCODING = "Accept-Encoding";
+
+	private final StaticFiles fileRoot;
+	private final FileContentCache contentCache; // null if disabled
+	private final MappedFiles mappedFiles; // null if disabled
+	private final IIndexBuilder indexBuilder;
+	private final GzipCache gzipCache; // null if disabled
+	private final boolean streamListings;
+	private final int maxRequestsPerConnection;
+
+	public RequestDispatcher(final StaticFiles fileRoot, final ServerConfig config) {
+		this(fileRoot, null, null, new IndexBuilder(), null, config);
+	}
+
+	/**
+	 * @param contentCache where to keep popular small files in memory, or null to always send files from disk
+	 * @param mappedFiles where to share mappings of large files, or null to always send files from disk
+	 * @param indexBuilder generates (or remembers) listings of directories without an index file
+	 * @param gzipCache where to gzip (and remember) compressible content on the fly, or null to never compress it
+	 */
+	public RequestDispatcher(final StaticFiles fileRoot, final FileContentCache contentCache, final MappedFiles mappedFiles,
+			final IIndexBuilder indexBuilder, final GzipCache gzipCache, final ServerConfig config) {
+		this.fileRoot = fileRoot;
+		this.contentCache = contentCache;
+		this.mappedFiles = mappedFiles;
+		this.indexBuilder = indexBuilder;
+		this.gzipCache = gzipCache;
+		this.streamListings = config.isStreamListings();
+		this.maxRequestsPerConnection = config.getMaxRequestsPerConnection();
+	}
+
+	/**
+	 * @param request
+	 * @param remoteName the client's address, for logging
+	 * @return the response to send
+	 * @throws UnsupportedEncodingException
+	 */
+	public PreparedResponse dispatch(final HttpRequest request, final String remoteName) throws UnsupportedEncodingException {
+		// Get the URL, but discard any query params (after '?'), and convert escaped chars.
+		final String requestedUrl = URLDecoder.decode(discardUrlParams(request.getUrl()), "UTF-8");
+
+		switch (request.getMethod()) {
+		case HEAD:
+			// Look for the URL, see if it's there.
+			// just send a response Header with info.
+			logRequest(HttpMethod.HEAD, requestedUrl, remoteName);
+			return fulfillRequestedUrl(request, requestedUrl, false, remoteName);
+
+		case GET:
+			// Then write it to output stream.
+			logRequest(HttpMethod.GET, requestedUrl, remoteName);
+			return fulfillRequestedUrl(request, requestedUrl, true, remoteName);
+
+		case PUT:
+		case POST:
+		case DELETE:
+			// We don't support methods other than GET and HEAD.
+			return respondWithError(ResponseCode.ERROR_405, requestedUrl, remoteName);
+
+		default:
+			// No other methods recognized.
+			return respondWithError(ResponseCode.SERVER_501, requestedUrl, remoteName);
+		}
+	}
+
+	/**
+	 * Prepares a response with no content, for the given error code.
+	 */
+	public PreparedResponse respondWithError(final ResponseCode code, final String requestUrlForLogging, final String remoteName) {
+		final HttpResponse headers = new HttpResponse(code);
+		logResponse(code, requestUrlForLogging, remoteName);
+		return PreparedResponse.headersOnly(headers, requestUrlForLogging);
+	}
+
+	/**
+	 * Decides whether the connection may stay open after responding to this request,
+	 * and sets the response's Connection field to match.
+	 * @param request
+	 * @param response the response prepared for request
+	 * @param requestsServed how many requests the connection has made so far, including this one
+	 * @return true if the connection should be kept open for another request
+	 */
+	public boolean decideKeepAlive(final HttpRequest request, final PreparedResponse response, final int requestsServed) {
+		// We never read request bodies, so a request that may have one leaves the connection in an unknown state:
+		// its body would be parsed as the next request (which, behind a proxy, could be another client's).
+		final boolean bodiless = (request.getMethod() == HttpMethod.GET || request.getMethod() == HttpMethod.HEAD)
+				&& !request.declaresBody();
+		final boolean keepAlive = bodiless && request.isKeepAlive() && requestsServed < maxRequestsPerConnection;
+		response.getHeaders().setKeepAlive(keepAlive);
+		return keepAlive;
+	}
+
+	private String discardUrlParams(final String url) {
+		int index = url.indexOf('?', 0);
+		return (index > 0) ? url.substring(0, index) : url;
+	}
+
+	/**
+	 * Generates a complete HTTP response to the request for url.
+	 * @param request for its conditional fields, and whether the client accepts chunked transfer encoding
+	 * @param requestUrl
+	 * @param sendContent false for HEAD request
+	 * @return
+	 */
+	private PreparedResponse fulfillRequestedUrl(final HttpRequest request, final String requestUrl, final boolean sendContent,
+			final String remoteName) {
+		final FileInfo requestedUrl = fileRoot.getInfoForUrl(requestUrl);
+
+		if (requestedUrl.found()) {
+			if (requestedUrl.isDir()) {
+				// Search for index.htm or index.html: send file or generate an index listing
+				if (requestedUrl.hasIndexFile()) {
+					if (logger.isEnabled(LogLevel.DEBUG)) {
+						logger.debug("Sending index file: " + requestedUrl.getIndexFile().getPath());
+					}
+					return respondWithFile(request, requestedUrl.getIndexFile(), sendContent, remoteName);
+				} else {
+					if (logger.isEnabled(LogLevel.DEBUG)) {
+						logger.debug("Generating index file: " + requestedUrl.getPath());
+					}
+					if (streamListings && request.acceptsChunked()) {
+						return respondWithStreamingIndex(request, requestedUrl, sendContent, remoteName);
+					}
+					return respondWithGeneratedIndex(request, requestedUrl, sendContent, remoteName);
+				}
+			} else {
+				// Send file
+				if (logger.isEnabled(LogLevel.DEBUG)) {
+					logger.debug("Sending file: " + requestedUrl.getPath());
+				}
+				return respondWithFile(request, requestedUrl, sendContent, remoteName);
+			}
+		} else {
+			if (logger.isEnabled(LogLevel.DEBUG)) {
+				logger.debug("Url NOT found " + requestUrl);
+			}
+			return respondWithError(ResponseCode.ERROR_404, requestUrl, remoteName);
+		}
+	}
+
+	/**
+	 * Prepares a 304 (Not Modified) response, telling the client its cached copy is still current. Never has content.
+	 */
+	private PreparedResponse respondNotModified(final String etag, final boolean variesByEncoding, final String contentName,
+			final String remoteName) {
+		final HttpResponse headers = new HttpResponse(ResponseCode.REDIRECTION_304);
+		if (variesByEncoding) {
+			headers.setVary(VARY_BY_ENCODING);
+		}
+		if (etag != null) {
+			headers.setETag(etag);
+		}
+		logResponse(ResponseCode.REDIRECTION_304, contentName, remoteName);
+		return PreparedResponse.headersOnly(headers, contentName);
+	}
+
+	/**
+	 * @param fileToSend info for a valid FILE that exists
+	 * @param sendFileContent
+	 */
+	private PreparedResponse respondWithFile(final HttpRequest request, final FileInfo fileToSend, final boolean sendFileContent,
+			final String remoteName) {
+		// Typed by the original file's extension, even when sending a precompressed copy of it.
+		final String contentType = ContentTypes.getMimeTypeForExtension(fileToSend.getExtension());
+
+		// Files without precompressed copies may be gzipped on the fly instead, if they're of a compressible type.
+		final boolean gzippable = gzipCache != null && !fileToSend.hasPrecompressed()
+				&& gzipCache.isCandidate(fileToSend.getLength()) && ContentTypes.isCompressible(contentType);
+		final boolean variesByEncoding = fileToSend.hasPrecompressed() || gzippable;
+
+		// Byte ranges always refer to the file as stored, so they're never taken from a compressed copy.
+		final String range = request.getHeaderField(KnownHeader.RANGE);
+		if (gzippable && range == null && request.acceptsEncoding(ContentCoding.GZIP.token)) {
+			final String gzippedETag = gzippedETag(fileToSend.getETag());
+			final String gzippedName = fileToSend.getPath().getAbsolutePath();
+			// Checked before compressing: the entity tag doesn't depend on the compressed bytes.
+			if (request.isNotModified(gzippedETag, fileToSend.getLastModified())) {
+				return respondNotModified(gzippedETag, true, gzippedName, remoteName);
+			}
+			final ByteBuffer gzipped = gzipCache.getGzipped(fileToSend.getPath(), fileToSend.getLength(),
+					fileToSend.getLastModified());
+			if (gzipped != null) {
+				return respondWithGzipped(gzipped, gzippedETag, contentType, fileToSend.getLastModified(), sendFileContent,
+						gzippedName, remoteName);
+			}
+		}
+		final ContentCoding coding = (range == null) ? chooseCoding(request, fileToSend) : null;
+		final FileInfo representation = (coding == null) ? fileToSend : fileToSend.getPrecompressed(coding);
+
+		final ResponseCode code = ResponseCode.SUCCESS_200;
+		final File path = representation.getPath();
+		final String contentName = path.getAbsolutePath();
+		final long contentLen = representation.getLength(); // as of when the file was looked up, along with its other attributes
+		final long modifiedMs = representation.getLastModified();
+		final String etag = representation.getETag();
+		final boolean allowCache = true;
+
+		if (request.isNotModified(etag, modifiedMs)) {
+			return respondNotModified(etag, variesByEncoding, contentName, remoteName);
+		}
+
+		// Range requests only apply to GET, and only while the client's partial copy is current.
+		if (sendFileContent && range != null && request.isRangeCurrent(etag, modifiedMs)) {
+			final List<ByteRange> ranges = ByteRange.parse(range, contentLen);
+			if (ranges != null) {
+				return respondWithRanges(fileToSend, ranges, contentType, variesByEncoding, remoteName);
+			}
+		}
+
+		final HttpResponse headers = new HttpResponse(code, contentType, contentLen, modifiedMs, allowCache);
+		if (coding != null) {
+			headers.setContentEncoding(coding.token);
+		}
+		if (variesByEncoding) {
+			headers.setVary(VARY_BY_ENCODING);
+		}
+		headers.setAcceptRanges();
+		headers.setETag(etag);
+		logResponse(code, contentName, remoteName);
+
+		// Don't need to open the file if we're not going to send content
+		if (!sendFileContent) {
+			return PreparedResponse.headersOnly(headers, contentName);
+		}
+		final ByteBuffer inMemory = getInMemoryContent(representation);
+		if (inMemory != null) {
+			return PreparedResponse.withBuffer(headers, inMemory, contentName);
+		}
+		return PreparedResponse.withFile(headers, path, contentLen, contentName);
+	}
+
+	/**
+	 * The gzipped content is a different representation, so it needs an entity tag of its own.
+	 */
+	private static String gzippedETag(final String etag) {
+		return etag.substring(0, etag.length() - 1) + "-gzip\"";
+	}
+
+	/**
+	 * Sends content gzipped on the fly. Callers check for a 304 first, so as not to compress for nothing.
+	 * @param gzipped the compressed content, owned by this response
+	 */
+	private PreparedResponse respondWithGzipped(final ByteBuffer gzipped, final String etag, final String contentType,
+			final long modifiedMs, final boolean sendContent, final String contentName, final String remoteName) {
+		final ResponseCode code = ResponseCode.SUCCESS_200;
+		final HttpResponse headers = new HttpResponse(code, contentType, gzipped.remaining(), modifiedMs, true);
+		headers.setContentEncoding(ContentCoding.GZIP.token);
+		headers.setVary(VARY_BY_ENCODING);
+		headers.setETag(etag);
+		logResponse(code, contentName + " (gzipped)", remoteName);
+
+		if (sendContent) {
+			return PreparedResponse.withBuffer(headers, gzipped, contentName);
+		}
+		return PreparedResponse.headersOnly(headers, contentName);
+	}
+
+	/**
+	 * Picks the most preferred precompressed copy of the file that the client accepts.
+	 * @return its coding, or null to send the file itself
+	 */
+	private static ContentCoding chooseCoding(final HttpRequest request, final FileInfo file) {
+		if (!file.hasPrecompressed()) {
+			return null;
+		}
+		for (ContentCoding coding : ContentCoding.values()) {
+			if (file.getPrecompressed(coding) != null && request.acceptsEncoding(coding.token)) {
+				return coding;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends only the requested parts of a file: a 206 with just the bytes of a single range, or a multipart/byteranges
+	 * body for several, or a 416 if none of them are within the file.
+	 * @param fileToSend info for a valid FILE that exists
+	 * @param ranges as parsed from the request's Range field
+	 * @param variesByEncoding whether a request for the whole file could have been answered with a compressed copy
+	 */
+	private PreparedResponse respondWithRanges(final FileInfo fileToSend, final List<ByteRange> ranges, final String contentType,
+			final boolean variesByEncoding, final String remoteName) {
+		final File path = fileToSend.getPath();
+		final String contentName = path.getAbsolutePath();
+		final long fileLen = fileToSend.getLength();
+
+		if (ranges.isEmpty()) {
+			final HttpResponse headers = new HttpResponse(ResponseCode.ERROR_416);
+			headers.setUnsatisfiedRange(fileLen);
+			logResponse(ResponseCode.ERROR_416, contentName, remoteName);
+			return PreparedResponse.headersOnly(headers, contentName);
+		}
+
+		final ResponseCode code = ResponseCode.SUCCESS_206;
+		final long modifiedMs = fileToSend.getLastModified();
+		final boolean allowCache = true;
+		if (logger.isEnabled(LogLevel.INFO)) {
+			logResponse(code, String.format("%s, bytes %s", contentName, Joiner.on(',').join(ranges)), remoteName);
+		}
+
+		if (ranges.size() > 1) {
+			final MultipartRanges body = new MultipartRanges(path, ranges, contentType, fileLen);
+			final HttpResponse headers = new HttpResponse(code, body.getContentType(), body.getLength(), modifiedMs, allowCache);
+			if (variesByEncoding) {
+				headers.setVary(VARY_BY_ENCODING);
+			}
+			headers.setETag(fileToSend.getETag());
+			return PreparedResponse.withContent(headers, body, body.getLength(), contentName);
+		}
+
+		final ByteRange range = ranges.get(0);
+		final HttpResponse headers = new HttpResponse(code, contentType, range.length(), modifiedMs, allowCache);
+		headers.setContentRange(range, fileLen);
+		if (variesByEncoding) {
+			headers.setVary(VARY_BY_ENCODING);
+		}
+		headers.setETag(fileToSend.getETag());
+
+		final ByteBuffer inMemory = getInMemoryContent(fileToSend);
+		if (inMemory != null) {
+			inMemory.limit((int) range.last + 1).position((int) range.first); // this response's own view, so safe to narrow
+			return PreparedResponse.withBuffer(headers, inMemory, contentName);
+		}
+		return PreparedResponse.withFileRange(headers, path, range.first, range.length(), contentName);
+	}
+
+	/**
+	 * The file's content from the content cache, or else mapped into memory, or null if it's to be sent from disk.
+	 * Either way, a view of its own that the response may consume.
+	 */
+	private ByteBuffer getInMemoryContent(final FileInfo file) {
+		if (contentCache != null) {
+			final ByteBuffer cached = contentCache.getContent(file.getPath(), file.getLength(), file.getLastModified());
+			if (cached != null) {
+				return cached;
+			}
+		}
+		if (mappedFiles != null) {
+			return mappedFiles.getMapping(file.getPath(), file.getLength(), file.getLastModified());
+		}
+		return null;
+	}
+
+	/**
+	 * Generates an HTML listing of all files and subdirs, to be sent to the client.
+	 * @param dirToList a valid DIR that exists
+	 * @param sendContent
+	 */
+	private PreparedResponse respondWithGeneratedIndex(final HttpRequest request, final FileInfo dirToList, final boolean sendContent,
+			final String remoteName) {
+		final IGeneratedIndex indexInfo = indexBuilder.buildIndexForDir(dirToList.getPath());
+		final String contentName = String.format("Directory Listing for %s", dirToList.getOriginalUrl());
+
+		// Construct response params
+		final ResponseCode code = ResponseCode.SUCCESS_200;
+		final String contentType = ContentTypes.DEFAULT_HTML_TYPE + "; charset=" + indexInfo.getEncoding();
+		final long contentLen = indexInfo.getContentLength();
+		final long modTime = indexInfo.getModifiedTime();
+		final boolean allowCache = true; // because we have a sensible mod-time for the dir listing.
+
+		final boolean gzippable = gzipCache != null && gzipCache.isGeneratedCandidate(contentLen)
+				&& ContentTypes.isCompressible(contentType);
+		if (gzippable && request.acceptsEncoding(ContentCoding.GZIP.token)) {
+			final String gzippedETag = gzippedETag(indexInfo.getETag());
+			if (request.isNotModified(gzippedETag, modTime)) {
+				return respondNotModified(gzippedETag, true, contentName, remoteName);
+			}
+			final ByteBuffer gzipped = gzipCache.getGzipped(dirToList.getPath(), indexInfo.getETag(), indexInfo.getContent(),
+					contentLen);
+			if (gzipped != null) {
+				return respondWithGzipped(gzipped, gzippedETag, contentType, modTime, sendContent, contentName, remoteName);
+			}
+		}
+
+		if (request.isNotModified(indexInfo.getETag(), modTime)) {
+			return respondNotModified(indexInfo.getETag(), gzippable, contentName, remoteName);
+		}
+
+		// Construct response and data
+		final HttpResponse headers = new HttpResponse(code, contentType, contentLen, modTime, allowCache);
+		if (gzippable) {
+			headers.setVary(VARY_BY_ENCODING);
+		}
+		headers.setETag(indexInfo.getETag());
+		logResponse(code, contentName, remoteName);
+
+		if (sendContent) {
+			final InputStream contents = indexInfo.getContent();
+			return PreparedResponse.withContent(headers, contents, contentLen, contentName);
+		}
+		return PreparedResponse.headersOnly(headers, contentName);
+	}
+
+	/**
+	 * Lists the directory as the response body is sent, in chunks, without ever holding the whole listing in memory.
+	 * Never gzipped: that would need the whole listing first.
+	 *
+	 * Validated by the directory itself, since the listing's content isn't known up front: its entity tag is weak,
+	 * because the directory changes when entries are added, removed or renamed, but not when a listed file changes size.
+	 * @param dirToList a valid DIR that exists
+	 * @param sendContent
+	 */
+	private PreparedResponse respondWithStreamingIndex(final HttpRequest request, final FileInfo dirToList,
+			final boolean sendContent, final String remoteName) {
+		final ResponseCode code = ResponseCode.SUCCESS_200;
+		final String contentType = ContentTypes.DEFAULT_HTML_TYPE + "; charset=" + IndexBuilder.ENCODING.name();
+		final long modTime = dirToList.getLastModified(); // the newest entry isn't known until it's all been listed
+		final String etag = "W/" + dirToList.getETag();
+		final boolean allowCache = true;
+		final String contentName = String.format("Directory Listing for %s", dirToList.getOriginalUrl());
+
+		if (request.isNotModified(etag, modTime)) {
+			return respondNotModified(etag, false, contentName, remoteName);
+		}
+
+		final HttpResponse headers = new HttpResponse(code, contentType, 0L, modTime, allowCache);
+		headers.setChunked();
+		headers.setETag(etag);
+
+		if (sendContent) {
+			try {
+				final InputStream contents = new StreamingListing(dirToList.getPath());
+				logResponse(code, contentName, remoteName);
+				return PreparedResponse.withContent(headers, contents, -1L, contentName);
+			} catch (IOException e) {
+				logger.error(e);
+				return respondWithError(ResponseCode.SERVER_500, contentName, remoteName);
+			}
+		}
+		logResponse(code, contentName, remoteName);
+		return PreparedResponse.headersOnly(headers, contentName);
+	}
+
+	private void logRequest(final HttpMethod method, final String url, final String remoteName) {
+		if (logger.isEnabled(LogLevel.DEBUG)) {
+			logger.debug(String.format("(%s) %s %s", remoteName, method.name(), url));
+		}
+	}
+
+	private void logResponse(final ResponseCode status, final String contentDesc, final String remoteName) {
+		if (logger.isEnabled(LogLevel.INFO)) {
+			logger.info(String.format("(%s) %s for %s", remoteName, status, contentDesc));
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package org.jchern.webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import org.jchern.accesslog.AccessLog;
+import org.jchern.http.HttpRequest;
+import org.jchern.http.HttpRequestParser;
+import org.jchern.http.ParsingException;
+import org.jchern.http.ResponseCode;
+import org.jchern.strings.Strings;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Services one connection of the SELECTOR engine, as a series of non-blocking state transitions:
+ * each readiness event advances the connection as far as it can go without blocking, then returns to the event loop.
+ *
+ * Clients may send several requests without waiting for responses (pipelining).
+ * Every complete request in the read buffer is parsed and dispatched right away, and its response queued;
+ * responses are written strictly in request order. The headers of consecutive queued responses are gathered
+ * into a single write, so a burst of header-only responses (HEAD, 304, 404...) costs one system call instead of one each;
+ * an in-memory body is gathered into the same write as its headers.
+ * Queued headers are written side by side into one header buffer,
+ * which (like the other buffers) is only held while responses are queued.
+ *
+ * File bodies are sent with FileChannel.transferTo (sendfile, on Linux), which never touches the Java heap;
+ * files held in the content cache, or shared memory mappings, are written straight from their (direct) buffers;
+ * only generated bodies are copied through a buffer.
+ *
+ * Its ConnectionDeadlines close it if it idles too long, or its client is too slow to send a request or take a response.
+ *
+ * Only ever touched by the one event-loop thread that owns its selector (and its timer wheel), so it is NOT threadsafe.
+ * @author Jeff Chern
+ */
+/*package*/ class SelectorConnection implements Closeable {
+
+	private static final ILogger logger = SingleLogger.instance();
+	private static final int BODY_BUFFER_SIZE = 8192;
+	private static final int HEADER_BUFFER_SIZE = 4096;
+
+	// How many responses may wait to be written. Further pipelined requests wait, unparsed, in the request buffer.
+	private static final int MAX_QUEUED_RESPONSES = 16;
+
+	/**
+	 * A response waiting its turn to be written.
+	 */
+	private static class QueuedResponse {
+		final HttpRequest request; // null if it couldn't be parsed
+		final PreparedResponse response;
+		final ByteBuffer headers;
+		final boolean keepAlive;
+		final long startMs, startNs; // when the request was parsed, for the access log
+		ReadableByteChannel body; // opened when it's this response's turn
+		long bodyPosition = 0; // for file bodies: how much has been transferred so far
+
+		QueuedResponse(final HttpRequest request, final PreparedResponse response, final ByteBuffer headers,
+				final boolean keepAlive, final long startMs, final long startNs) {
+			this.request = request;
+			this.response = response;
+			this.headers = headers;
+			this.keepAlive = keepAlive;
+			this.startMs = startMs;
+			this.startNs = startNs;
+		}
+	}
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final RequestDispatcher dispatcher;
+	private final AccessLog accessLog; // null if disabled
+	private final AdmissionController admission; // released when closed
+	private final ConnectionDeadlines deadlines;
+	private final HttpRequestParser parser;
+	private final String remoteName;
+	private final InetAddress remote; // null if unknown
+	private final byte[] remoteAddress; // for the access log
+
+	private final Queue<QueuedResponse> responses = new ArrayDeque<QueuedResponse>();
+	private final ByteBuffer[] gathered = new ByteBuffer[MAX_QUEUED_RESPONSES + 1]; // headers, and maybe one body
+
+	private int requestsServed = 0;
+	private boolean closing = false; // no more requests will be read; close once the queued responses are written
+	private boolean inputEnded = false; // the client closed its side; close once the buffered requests are answered
+	private boolean closed = false;
+	private boolean moreRequestsBuffered = false; // parsing stopped because the response queue was full
+
+	// Allocated only while requests are arriving or waiting, so idle connections stay cheap.
+	private ByteBuffer requestBuffer;
+	private ByteBuffer headerBuffer;
+	private ByteBuffer bodyBuffer;
+
+	public SelectorConnection(final SocketChannel channel, final SelectionKey key, final RequestDispatcher dispatcher,
+			final AccessLog accessLog, final AdmissionController admission, final TimerWheel wheel, final ServerConfig config) {
+		this.channel = channel;
+		this.key = key;
+		this.dispatcher = dispatcher;
+		this.accessLog = accessLog;
+		this.admission = admission;
+		this.parser = new HttpRequestParser();
+		this.remoteName = String.valueOf(channel.socket().getRemoteSocketAddress());
+		this.remote = channel.socket().getInetAddress();
+		this.remoteAddress = (remote == null) ? null : remote.getAddress();
+		this.deadlines = new ConnectionDeadlines(config);
+		key.interestOps(SelectionKey.OP_READ);
+		deadlines.watch(this, remoteName, wheel);
+	}
+
+	public void onReadable() {
+		if (closing || inputEnded || closed) return;
+		try {
+			if (requestBuffer == null) {
+				requestBuffer = ByteBuffer.allocate(HttpRequestParser.MAX_HEAD_LENGTH);
+			}
+			final int readLen = channel.read(requestBuffer);
+			if (readLen == -1) {
+				// Client closed its side: finish writing any responses it's still waiting for, then close.
+				inputEnded = true;
+			} else {
+				deadlines.received(System.currentTimeMillis(), readLen);
+			}
+			serve();
+
+		} catch (IOException e) {
+			logger.error(Strings.get(Strings.SOCKET_IN_ERROR, remoteName));
+			logger.error(e);
+			close();
+		}
+	}
+
+	public void onWritable() {
+		if (closed) return;
+		try {
+			serve();
+		} catch (IOException e) {
+			logger.error(Strings.get(Strings.ERROR_IN_OUTPUT_STREAM, remoteName));
+			logger.error(e);
+			close();
+		}
+	}
+
+	/**
+	 * Alternates between parsing buffered requests and writing their responses, until it has to wait for the socket.
+	 */
+	private void serve() throws IOException {
+		do {
+			parseRequests();
+			if (!writeResponses()) {
+				// socket send buffer is full, or the connection was closed
+				if (!closed) updateInterest();
+				return;
+			}
+		} while (moreRequestsBuffered);
+
+		if (closing || inputEnded) {
+			close();
+			return;
+		}
+		updateInterest();
+	}
+
+	/**
+	 * Parses and dispatches every complete request in the request buffer, queueing their responses in order.
+	 */
+	private void parseRequests() throws IOException {
+		moreRequestsBuffered = false;
+		if (requestBuffer == null || closing) return;
+
+		requestBuffer.flip();
+		try {
+			while (!closing) {
+				if (responses.size() == MAX_QUEUED_RESPONSES) {
+					moreRequestsBuffered = requestBuffer.hasRemaining();
+					break;
+				}
+
+				final HttpRequest request;
+				try {
+					request = parser.parseNext(requestBuffer);
+				} catch (ParsingException e) {
+					// TODO: log the problematic request, if needed for auditing
+					logger.error(e.getMessage());
+					queueError(dispatcher.respondWithError(ResponseCode.ERROR_400, "a request rejected by parser", remoteName));
+					break;
+				}
+
+				if (request == null) {
+					if (requestBuffer.remaining() == requestBuffer.capacity()) {
+						// The buffer is full, but still doesn't hold a whole request head.
+						logger.error(Strings.get(Strings.SECURITY_REQUEST_LENGTH_EXCEEDED));
+						queueError(dispatcher.respondWithError(ResponseCode.ERROR_400, "a request rejected by parser", remoteName));
+					}
+					break;
+				}
+
+				requestsServed++;
+				final long startMs = System.currentTimeMillis();
+				final long startNs = System.nanoTime();
+				if (requestsServed > 1 && !admission.tryRequest(remote)) {
+					final PreparedResponse limited = dispatcher.respondWithError(ResponseCode.ERROR_429, request.getUrl(), remoteName);
+					admission.tooManyRequests(limited.getHeaders());
+					queue(request, limited, false, startMs, startNs);
+					break;
+				}
+				final PreparedResponse response = dispatcher.dispatch(request, remoteName);
+				queue(request, response, dispatcher.decideKeepAlive(request, response, requestsServed), startMs, startNs);
+			}
+		} finally {
+			// Keep any bytes of requests that haven't been completely received yet.
+			requestBuffer.compact();
+			if (requestBuffer.position() == 0 || closing) {
+				requestBuffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Queues the response to a request that couldn't be parsed, after which the connection is closed.
+	 */
+	private void queueError(final PreparedResponse response) {
+		queue(null, response, false, System.currentTimeMillis(), System.nanoTime());
+	}
+
+	/**
+	 * @param request null if it couldn't be parsed
+	 * @param startMs when the request was parsed (for the access log), also as startNs from System.nanoTime()
+	 */
+	private void queue(final HttpRequest request, final PreparedResponse response, final boolean keepAlive,
+			final long startMs, final long startNs) {
+		final QueuedResponse queued = new QueuedResponse(request, response, writeHeaders(response), keepAlive, startMs, startNs);
+		responses.add(queued);
+		final long bodyLength = response.getBodyLength();
+		deadlines.responding(startMs, (bodyLength < 0) ? -1 : queued.headers.remaining() + bodyLength);
+		if (!keepAlive) {
+			closing = true; // any requests after this one are ignored
+		}
+	}
+
+	/**
+	 * Writes the response's header block after those already in the header buffer.
+	 * @return a view of just this response's headers, ready to be written
+	 */
+	private ByteBuffer writeHeaders(final PreparedResponse response) {
+		final int length = response.getHeaders().getHeaderLength();
+		if (headerBuffer == null) {
+			headerBuffer = ByteBuffer.allocate(Math.max(HEADER_BUFFER_SIZE, length));
+		}
+		if (headerBuffer.remaining() < length) {
+			// Full of headers still queued: this one gets its own
+			final ByteBuffer headers = ByteBuffer.allocate(length);
+			response.getHeaders().writeTo(headers);
+			headers.flip();
+			return headers;
+		}
+		final ByteBuffer headers = headerBuffer.duplicate();
+		response.getHeaders().writeTo(headerBuffer);
+		headers.limit(headerBuffer.position());
+		return headers;
+	}
+
+	/**
+	 * Writes as much of the queued responses as the socket will take.
+	 * @return true if every queued response was written
+	 */
+	private boolean writeResponses() throws IOException {
+		if (responses.isEmpty()) return true; // nothing was being sent: the connection is idle, or receiving a request
+		while (!responses.isEmpty()) {
+			final QueuedResponse first = responses.peek();
+
+			if (first.headers.hasRemaining()) {
+				writeGatheredHeaders();
+				if (first.headers.hasRemaining()) return false; // socket send buffer is full, wait until writable again
+			}
+			if (first.response.hasContent() && !writeBody(first)) {
+				return false; // socket send buffer is full, wait until writable again
+			}
+
+			// This response is complete
+			responses.remove();
+			closeQuietly(first.body);
+			if (accessLog != null) {
+				accessLog.record(remoteAddress, first.request, first.response.getHeaders(), first.response.getBodyLength(),
+						first.response.isFromMemory(), first.startMs, first.startNs);
+			}
+			if (!first.keepAlive) {
+				close();
+				return false;
+			}
+		}
+
+		deadlines.idle(System.currentTimeMillis());
+		bodyBuffer = null;
+		headerBuffer = null;
+		return true;
+	}
+
+	/**
+	 * Writes the unwritten headers of the queued responses, in order, with one gathering write:
+	 * up to and including the first response that has a body (which must be written before any later headers),
+	 * followed by that body too if it's already in memory.
+	 */
+	private void writeGatheredHeaders() throws IOException {
+		int count = 0;
+		for (QueuedResponse queued : responses) {
+			gathered[count++] = queued.headers;
+			if (queued.response.hasContent()) {
+				if (queued.response.getBuffer() != null) {
+					gathered[count++] = queued.response.getBuffer(); // writeBody carries on from wherever this stops
+				}
+				break;
+			}
+		}
+		try {
+			channel.write(gathered, 0, count);
+		} finally {
+			Arrays.fill(gathered, 0, count, null);
+		}
+	}
+
+	/**
+	 * @return true if the whole body was written
+	 */
+	private boolean writeBody(final QueuedResponse queued) throws IOException {
+		final ByteBuffer buffer = queued.response.getBuffer();
+		if (buffer != null) {
+			channel.write(buffer); // this response's own view of the cached or mapped file, so its position tracks progress
+			return !buffer.hasRemaining();
+		}
+		if (queued.response.getFile() != null) {
+			return transferFile(queued);
+		}
+
+		if (queued.body == null) {
+			queued.body = Channels.newChannel(queued.response.openContent());
+		}
+		if (bodyBuffer == null) {
+			bodyBuffer = ByteBuffer.allocate(BODY_BUFFER_SIZE);
+			bodyBuffer.flip(); // start out empty
+		}
+
+		while (true) {
+			if (!bodyBuffer.hasRemaining()) {
+				bodyBuffer.clear();
+				final int readLen = readBody(queued);
+				bodyBuffer.flip();
+				if (readLen == -1) return true; // end of content
+			}
+			channel.write(bodyBuffer);
+			if (bodyBuffer.hasRemaining()) return false;
+		}
+	}
+
+	/**
+	 * Sends as much of a file body as the socket will take, directly from the file system.
+	 * @return true if the whole file was sent
+	 */
+	private boolean transferFile(final QueuedResponse queued) throws IOException {
+		if (queued.body == null) {
+			queued.body = FileChannel.open(queued.response.getFile().toPath(), StandardOpenOption.READ);
+		}
+		final FileChannel file = (FileChannel) queued.body;
+		final long offset = queued.response.getFileOffset();
+		final long length = queued.response.getContentLength();
+
+		while (queued.bodyPosition < length) {
+			final long sent = file.transferTo(offset + queued.bodyPosition, length - queued.bodyPosition, channel);
+			if (sent <= 0) {
+				if (offset + queued.bodyPosition >= file.size()) {
+					// The promised Content-Length can't be delivered, so the connection can't be reused.
+					logger.error(Strings.get(Strings.ERROR_COPYING_FILE, queued.response.getContentName(), remoteName));
+					throw new IOException("File shrank while being sent");
+				}
+				return false; // socket send buffer is full, wait until writable again
+			}
+			queued.bodyPosition += sent;
+		}
+		return true;
+	}
+
+	private int readBody(final QueuedResponse queued) throws IOException {
+		try {
+			return queued.body.read(bodyBuffer);
+		} catch (IOException e) {
+			// The promised Content-Length can't be delivered, so the connection can't be reused.
+			logger.error(Strings.get(Strings.ERROR_COPYING_FILE, queued.response.getContentName(), remoteName));
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits to write while responses are queued, and to read while there's room to queue more.
+	 */
+	private void updateInterest() {
+		int ops = 0;
+		if (!responses.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		if (!closing && !inputEnded && responses.size() < MAX_QUEUED_RESPONSES) {
+			ops |= SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Closes the channel and releases everything held by this connection. Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closing = closed = true;
+		admission.release(remote);
+		deadlines.closed();
+		key.cancel();
+		for (QueuedResponse queued : responses) {
+			closeQuietly(queued.body);
+		}
+		responses.clear();
+		closeQuietly(channel);
+		bodyBuffer = null;
+		headerBuffer = null;
+		requestBuffer = null;
+	}
+
+	private static void closeQuietly(final Channel c) {
+		try {
+			if (c != null) {
+				c.close();
+			}
+		} catch (IOException e) {
+			// silence...
+		}
+	}
+}
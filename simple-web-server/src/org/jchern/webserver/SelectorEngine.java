@@ -0,0 +1,213 @@
+package org.jchern.webserver;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jchern.accesslog.AccessLog;
+import org.jchern.utils.ILogger;
+import org.jchern.utils.ILogger.LogLevel;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Services all connections with a few event-loop threads, each multiplexing many non-blocking channels with a Selector.
+ * Slow or idle clients don't tie up a thread: they only cost a registered key, a timer in their loop's TimerWheel
+ * (which closes them once they're too slow, or idle too long), and whatever buffers their
+ * SelectorConnection holds at the moment.
+ *
+ * Connections beyond what the AdmissionController allows in flight are answered at once with a 503, and closed.
+ *
+ * The first event loop also accepts new connections, and deals them out round-robin to all the loops.
+ * With more than one acceptor configured, and SO_REUSEPORT available, every loop instead listens on a socket of its own,
+ * and keeps the connections it accepts: the kernel spreads them across the loops, and none are handed between threads.
+ * @author Jeff Chern
+ */
+public class SelectorEngine implements IConnectionEngine {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	private final int port;
+	private final RequestDispatcher dispatcher;
+	private final AccessLog accessLog; // null if disabled
+	private final AdmissionController admission;
+	private final EventLoop[] eventLoops;
+	private final ServerConfig config;
+	private final int acceptors;
+
+	private ServerSocketChannel[] serverChannels;
+	private volatile boolean running = false;
+	private int nextLoop = 0; // only used by the accepting loop, if there's just one
+
+	public SelectorEngine(final int port, final RequestDispatcher dispatcher, final AccessLog accessLog,
+			final AdmissionController admission, final ServerConfig config) {
+		this.port = port;
+		this.dispatcher = dispatcher;
+		this.accessLog = accessLog;
+		this.admission = admission;
+		this.eventLoops = new EventLoop[Math.max(1, config.getEventLoops())];
+		this.config = config;
+		this.acceptors = config.getAcceptors();
+	}
+
+	@Override
+	public void start() throws IOException {
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new EventLoop(Selector.open());
+		}
+
+		// Listen on this port: with one socket per loop if they can share the port, otherwise with one for the first loop
+		serverChannels = ServerChannels.open(port, (acceptors > 1) ? eventLoops.length : 1);
+		for (int i = 0; i < serverChannels.length; i++) {
+			serverChannels[i].configureBlocking(false);
+			serverChannels[i].register(eventLoops[i].selector, SelectionKey.OP_ACCEPT, serverChannels[i]);
+		}
+
+		running = true;
+		for (int i = 0; i < eventLoops.length; i++) {
+			final Thread loopThread = new Thread(eventLoops[i], "selector-" + i);
+			loopThread.start();
+		}
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		ServerChannels.closeAll(serverChannels);
+		for (EventLoop loop : eventLoops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Accepts every pending connection, and hands each one to an event loop: the accepting loop itself, if every loop
+	 * has its own socket, otherwise the next one in turn.
+	 */
+	private void acceptConnections(final ServerSocketChannel serverChannel, final EventLoop acceptingLoop) {
+		final boolean keep = (serverChannels.length == eventLoops.length);
+		try {
+			SocketChannel connection;
+			while ((connection = serverChannel.accept()) != null) {
+				connection.configureBlocking(false);
+
+				if (logger.isEnabled(LogLevel.DEBUG)) {
+					logger.debug("Connected socket to: " + connection.socket().getRemoteSocketAddress().toString());
+				}
+				if (!admission.admit(connection)) {
+					continue;
+				}
+				if (keep) {
+					acceptingLoop.register(connection);
+				} else {
+					eventLoops[nextLoop].assign(connection);
+					nextLoop = (nextLoop + 1) % eventLoops.length;
+				}
+			}
+		} catch (IOException e) {
+			logger.error("HttpServer: Error accepting incoming connection.");
+			logger.error(e);
+		}
+	}
+
+	/**
+	 * One selector, and the thread that waits on it.
+	 * Connections are handed over through a queue, since only the loop's own thread may safely register channels with its selector.
+	 */
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<SocketChannel> newConnections = new ConcurrentLinkedQueue<SocketChannel>();
+		private final TimerWheel wheel = ConnectionDeadlines.newTimerWheel(); // for the loop's connections
+
+		EventLoop(final Selector selector) {
+			this.selector = selector;
+		}
+
+		void assign(final SocketChannel connection) {
+			newConnections.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select(wheel.getTickMs());
+					registerNewConnections();
+
+					final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						handle(key);
+					}
+					wheel.advance(System.currentTimeMillis());
+				} catch (IOException e) {
+					logger.error(e);
+				}
+			}
+			closeAll();
+		}
+
+		private void registerNewConnections() {
+			SocketChannel connection;
+			while ((connection = newConnections.poll()) != null) {
+				register(connection);
+			}
+		}
+
+		/**
+		 * Only to be called on this loop's own thread.
+		 */
+		void register(final SocketChannel connection) {
+			try {
+				final SelectionKey key = connection.register(selector, 0);
+				key.attach(new SelectorConnection(connection, key, dispatcher, accessLog, admission, wheel, config));
+			} catch (IOException e) {
+				logger.error(e);
+				admission.release(connection.socket().getInetAddress());
+				try {
+					connection.close();
+				} catch (IOException e2) {
+					// silence...
+				}
+			}
+		}
+
+		private void handle(final SelectionKey key) {
+			try {
+				if (key.isAcceptable()) {
+					acceptConnections((ServerSocketChannel) key.attachment(), this);
+					return;
+				}
+				final SelectorConnection connection = (SelectorConnection) key.attachment();
+				if (key.isWritable()) {
+					connection.onWritable();
+				}
+				if (key.isValid() && key.isReadable()) {
+					connection.onReadable();
+				}
+			} catch (CancelledKeyException e) {
+				// connection was closed while handling an earlier event
+			}
+		}
+
+		private void closeAll() {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof SelectorConnection) {
+					((SelectorConnection) key.attachment()).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+}
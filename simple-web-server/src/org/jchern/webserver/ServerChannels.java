@@ -0,0 +1,82 @@
+package org.jchern.webserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import org.jchern.utils.ILogger;
+import org.jchern.utils.SingleLogger;
+
+/**
+ * Opens the listening channels for an engine.
+ *
+ * Several accepting threads can each have a listening socket of their own on the same port, with SO_REUSEPORT
+ * (Linux 3.9+, Java 9+): the kernel then spreads new connections across them, instead of every accepting thread
+ * contending for one socket. Where that isn't supported, a single channel is opened, for the threads to share.
+ * @author Jeff Chern
+ */
+/*package*/ class ServerChannels {
+
+	private static final ILogger logger = SingleLogger.instance();
+
+	// Looked up reflectively, so the server still builds for, and runs on, JVMs that don't have it; null if missing.
+	private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+
+	/**
+	 * @param count how many listening channels are wanted
+	 * @return count (blocking) channels bound to the port, or just one if they can't share it
+	 */
+	public static ServerSocketChannel[] open(final int port, final int count) throws IOException {
+		final ServerSocketChannel first = ServerSocketChannel.open();
+		if (count <= 1 || !supportsReusePort(first)) {
+			if (count > 1) {
+				logger.warn("HttpServer: SO_REUSEPORT isn't supported here; accepting threads will share one socket.");
+			}
+			first.socket().bind(new InetSocketAddress(port));
+			return new ServerSocketChannel[] { first };
+		}
+
+		final ServerSocketChannel[] channels = new ServerSocketChannel[count];
+		channels[0] = first;
+		try {
+			for (int i = 0; i < count; i++) {
+				if (channels[i] == null) {
+					channels[i] = ServerSocketChannel.open();
+				}
+				channels[i].setOption(SO_REUSEPORT, true);
+				channels[i].socket().bind(new InetSocketAddress(port));
+			}
+		} catch (IOException e) {
+			closeAll(channels);
+			throw e;
+		}
+		return channels;
+	}
+
+	public static void closeAll(final ServerSocketChannel[] channels) {
+		for (ServerSocketChannel channel : channels) {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+	}
+
+	private static boolean supportsReusePort(final ServerSocketChannel channel) {
+		return SO_REUSEPORT != null && channel.supportedOptions().contains(SO_REUSEPORT);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> findReusePort() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
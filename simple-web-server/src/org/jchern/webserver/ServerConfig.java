@@ -0,0 +1,440 @@
+package org.jchern.webserver;
+
+/**
+ * Tunable settings for an HttpFileServer.
+ * Configure an instance before passing it to the server; the server reads it once, when it starts.
+ * @author Jeff Chern
+ */
+public class ServerConfig {
+
+	/**
+	 * How connections are accepted and serviced.
+	 */
+	public enum Engine {
+		BLOCKING, // one pooled worker thread per connection, using blocking socket streams
+		VIRTUAL, // a new virtual thread per connection (Java 21+), running the same blocking code
+		SELECTOR; // a few event-loop threads multiplexing non-blocking channels
+	}
+
+	public static final Engine DEFAULT_ENGINE = Engine.SELECTOR;
+	public static final int DEFAULT_THREADPOOL_SIZE = 5;
+	public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_IDLE_TIMEOUT_MS = 5000;
+	public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+	public static final long DEFAULT_CONTENT_CACHE_BYTES = 64L * 1024 * 1024;
+	public static final long DEFAULT_CONTENT_CACHE_MAX_FILE_SIZE = 1024 * 1024;
+	public static final long DEFAULT_MAPPED_FILES_BYTES = 0; // off: large files are sent with sendfile (transferTo)
+	public static final long DEFAULT_FILE_INFO_TTL_MS = 1000;
+	public static final long DEFAULT_INDEX_CACHE_BYTES = 16L * 1024 * 1024;
+	public static final boolean DEFAULT_STREAM_LISTINGS = false;
+	public static final boolean DEFAULT_WATCH_FILES = true;
+	public static final boolean DEFAULT_SERVE_PRECOMPRESSED = true;
+	public static final long DEFAULT_GZIP_CACHE_BYTES = 32L * 1024 * 1024;
+	public static final long DEFAULT_GZIP_MIN_LENGTH = 1024;
+	public static final String DEFAULT_ACCESS_LOG_DIR = null;
+	public static final int DEFAULT_ACCESS_LOG_SEGMENT_BYTES = 64 * 1024 * 1024;
+	public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+	public static final int DEFAULT_ACCEPTORS = 1;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 10000;
+	public static final int DEFAULT_MAX_QUEUED_CONNECTIONS = 100;
+	public static final int DEFAULT_QUEUE_DEADLINE_MS = 10000;
+	public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_CLIENT = 0; // no limit
+	public static final int DEFAULT_MAX_REQUESTS_PER_SECOND_PER_CLIENT = 0; // no limit
+	public static final int DEFAULT_HEADER_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_REQUEST_TIMEOUT_MS = 0; // no limit: the minimum rate bounds each response's time
+	public static final int DEFAULT_MIN_BYTES_PER_SECOND = 512;
+
+	private Engine engine;
+	private int threadPoolSize;
+	private int eventLoops;
+	private int idleTimeoutMs;
+	private int maxRequestsPerConnection;
+	private long contentCacheBytes;
+	private long contentCacheMaxFileSize;
+	private long mappedFilesBytes;
+	private long fileInfoTtlMs;
+	private long indexCacheBytes;
+	private boolean streamListings;
+	private boolean watchFiles;
+	private boolean servePrecompressed;
+	private long gzipCacheBytes;
+	private long gzipMinLength;
+	private String accessLogDir;
+	private int accessLogSegmentBytes;
+	private int maxConnections;
+	private int acceptors;
+	private int maxInFlight;
+	private int maxQueuedConnections;
+	private int queueDeadlineMs;
+	private int retryAfterSeconds;
+	private int maxConnectionsPerClient;
+	private int maxRequestsPerSecondPerClient;
+	private int headerTimeoutMs;
+	private int requestTimeoutMs;
+	private int minBytesPerSecond;
+
+	public ServerConfig() {
+		engine = DEFAULT_ENGINE;
+		threadPoolSize = DEFAULT_THREADPOOL_SIZE;
+		eventLoops = DEFAULT_EVENT_LOOPS;
+		idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+		maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+		contentCacheBytes = DEFAULT_CONTENT_CACHE_BYTES;
+		contentCacheMaxFileSize = DEFAULT_CONTENT_CACHE_MAX_FILE_SIZE;
+		mappedFilesBytes = DEFAULT_MAPPED_FILES_BYTES;
+		fileInfoTtlMs = DEFAULT_FILE_INFO_TTL_MS;
+		indexCacheBytes = DEFAULT_INDEX_CACHE_BYTES;
+		streamListings = DEFAULT_STREAM_LISTINGS;
+		watchFiles = DEFAULT_WATCH_FILES;
+		servePrecompressed = DEFAULT_SERVE_PRECOMPRESSED;
+		gzipCacheBytes = DEFAULT_GZIP_CACHE_BYTES;
+		gzipMinLength = DEFAULT_GZIP_MIN_LENGTH;
+		accessLogDir = DEFAULT_ACCESS_LOG_DIR;
+		accessLogSegmentBytes = DEFAULT_ACCESS_LOG_SEGMENT_BYTES;
+		maxConnections = DEFAULT_MAX_CONNECTIONS;
+		acceptors = DEFAULT_ACCEPTORS;
+		maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		maxQueuedConnections = DEFAULT_MAX_QUEUED_CONNECTIONS;
+		queueDeadlineMs = DEFAULT_QUEUE_DEADLINE_MS;
+		retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+		maxConnectionsPerClient = DEFAULT_MAX_CONNECTIONS_PER_CLIENT;
+		maxRequestsPerSecondPerClient = DEFAULT_MAX_REQUESTS_PER_SECOND_PER_CLIENT;
+		headerTimeoutMs = DEFAULT_HEADER_TIMEOUT_MS;
+		requestTimeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+		minBytesPerSecond = DEFAULT_MIN_BYTES_PER_SECOND;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public void setEngine(final Engine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Number of worker threads handling connections, in BLOCKING mode.
+	 */
+	public int getThreadPoolSize() {
+		return threadPoolSize;
+	}
+
+	public void setThreadPoolSize(final int threadPoolSize) {
+		this.threadPoolSize = threadPoolSize;
+	}
+
+	/**
+	 * Number of selector threads sharing the connections, in SELECTOR mode.
+	 */
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public void setEventLoops(final int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * How long a persistent connection may wait for its next request, before the server closes it.
+	 */
+	public int getIdleTimeoutMs() {
+		return idleTimeoutMs;
+	}
+
+	public void setIdleTimeoutMs(final int idleTimeoutMs) {
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	/**
+	 * How many requests a persistent connection may make, before the server closes it.
+	 * Set to 1 to disable persistent connections.
+	 */
+	public int getMaxRequestsPerConnection() {
+		return maxRequestsPerConnection;
+	}
+
+	public void setMaxRequestsPerConnection(final int maxRequestsPerConnection) {
+		this.maxRequestsPerConnection = maxRequestsPerConnection;
+	}
+
+	/**
+	 * Memory budget for keeping the contents of popular small files in memory.
+	 * Set to 0 to disable the content cache.
+	 */
+	public long getContentCacheBytes() {
+		return contentCacheBytes;
+	}
+
+	public void setContentCacheBytes(final long contentCacheBytes) {
+		this.contentCacheBytes = contentCacheBytes;
+	}
+
+	/**
+	 * Files larger than this are never kept in the content cache.
+	 */
+	public long getContentCacheMaxFileSize() {
+		return contentCacheMaxFileSize;
+	}
+
+	public void setContentCacheMaxFileSize(final long contentCacheMaxFileSize) {
+		this.contentCacheMaxFileSize = contentCacheMaxFileSize;
+	}
+
+	/**
+	 * Total size of the files too large for the content cache, that may be kept memory-mapped for sharing among responses.
+	 * 0 (the default) always sends them from their files, with sendfile (transferTo), which is usually better for
+	 * large files. Only worth turning on when a few large files are downloaded by many clients at once; note that
+	 * mappings dropped to stay within this budget are only unmapped once garbage collected, so it's not a hard limit.
+	 */
+	public long getMappedFilesBytes() {
+		return mappedFilesBytes;
+	}
+
+	public void setMappedFilesBytes(final long mappedFilesBytes) {
+		this.mappedFilesBytes = mappedFilesBytes;
+	}
+
+	/**
+	 * How long to remember what each requested URL resolved to (whether it exists, its length, modified time...),
+	 * before looking at the file system again. Set to 0 to look for every request.
+	 * While watching files, this can safely be much longer, since changes are noticed right away.
+	 */
+	public long getFileInfoTtlMs() {
+		return fileInfoTtlMs;
+	}
+
+	public void setFileInfoTtlMs(final long fileInfoTtlMs) {
+		this.fileInfoTtlMs = fileInfoTtlMs;
+	}
+
+	/**
+	 * Memory budget for remembering generated directory listings.
+	 * Set to 0 to generate a listing for every request.
+	 */
+	public long getIndexCacheBytes() {
+		return indexCacheBytes;
+	}
+
+	public void setIndexCacheBytes(final long indexCacheBytes) {
+		this.indexCacheBytes = indexCacheBytes;
+	}
+
+	/**
+	 * Whether to send directory listings as they're generated, with chunked transfer encoding (to HTTP/1.1 clients),
+	 * instead of generating (and caching) each listing whole. Keeps memory use flat for huge directories,
+	 * but lists entries unsorted, and never caches them.
+	 */
+	public boolean isStreamListings() {
+		return streamListings;
+	}
+
+	public void setStreamListings(final boolean streamListings) {
+		this.streamListings = streamListings;
+	}
+
+	/**
+	 * Whether to watch the served directory tree, so that all caches forget changed files right away.
+	 */
+	public boolean isWatchFiles() {
+		return watchFiles;
+	}
+
+	public void setWatchFiles(final boolean watchFiles) {
+		this.watchFiles = watchFiles;
+	}
+
+	/**
+	 * Whether to look for precompressed copies of files (e.g. style.css.br and style.css.gz next to style.css),
+	 * and send them instead to clients that accept their encoding. Costs a stat per sidecar when a file is looked up.
+	 */
+	public boolean isServePrecompressed() {
+		return servePrecompressed;
+	}
+
+	public void setServePrecompressed(final boolean servePrecompressed) {
+		this.servePrecompressed = servePrecompressed;
+	}
+
+	/**
+	 * Memory budget for remembering content gzipped on the fly: files (and directory listings) of the types flagged
+	 * "compress" in the MIME types file, that have no precompressed copy, up to the content cache's max file size.
+	 * Set to 0 to never compress on the fly.
+	 */
+	public long getGzipCacheBytes() {
+		return gzipCacheBytes;
+	}
+
+	public void setGzipCacheBytes(final long gzipCacheBytes) {
+		this.gzipCacheBytes = gzipCacheBytes;
+	}
+
+	/**
+	 * Content shorter than this is never gzipped on the fly: it would hardly get smaller.
+	 */
+	public long getGzipMinLength() {
+		return gzipMinLength;
+	}
+
+	public void setGzipMinLength(final long gzipMinLength) {
+		this.gzipMinLength = gzipMinLength;
+	}
+
+	/**
+	 * Where to keep the binary access log (a record of every response, see AccessLogTool), or null for none.
+	 */
+	public String getAccessLogDir() {
+		return accessLogDir;
+	}
+
+	public void setAccessLogDir(final String accessLogDir) {
+		this.accessLogDir = accessLogDir;
+	}
+
+	/**
+	 * Size of each access log segment file. Each one is mapped into memory while it's being filled.
+	 */
+	public int getAccessLogSegmentBytes() {
+		return accessLogSegmentBytes;
+	}
+
+	public void setAccessLogSegmentBytes(final int accessLogSegmentBytes) {
+		this.accessLogSegmentBytes = accessLogSegmentBytes;
+	}
+
+	/**
+	 * Most connections serviced at once, in VIRTUAL mode: threads cost next to nothing there, so this is what bounds
+	 * the load (open files, buffers, bandwidth...). Further connections wait to be accepted until one closes.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(final int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Threads accepting connections. Where the OS supports SO_REUSEPORT, each has its own listening socket on the port,
+	 * and the kernel spreads new connections across them; otherwise they share one.
+	 * In BLOCKING and VIRTUAL modes, each acceptor hands its connections to a worker group of its own
+	 * (in BLOCKING mode, the thread pool is split evenly between them).
+	 * In SELECTOR mode, any value above 1 has every event loop accept its own connections, instead of the first loop
+	 * accepting for all of them.
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public void setAcceptors(final int acceptors) {
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * Most connections admitted at once, in any mode: being serviced, kept open between requests, or waiting for a worker.
+	 * Further connections are turned away as soon as they're accepted, with a 503 (Service Unavailable).
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(final int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Most connections waiting for a worker thread, in BLOCKING mode (split evenly between the acceptors' worker groups).
+	 * Further connections are turned away with a 503, instead of piling up where they'd be serviced too late.
+	 */
+	public int getMaxQueuedConnections() {
+		return maxQueuedConnections;
+	}
+
+	public void setMaxQueuedConnections(final int maxQueuedConnections) {
+		this.maxQueuedConnections = maxQueuedConnections;
+	}
+
+	/**
+	 * Longest a connection may wait for a worker thread. One that waited longer is answered with a 503 when its turn
+	 * comes, rather than serviced after its client has likely given up.
+	 */
+	public int getQueueDeadlineMs() {
+		return queueDeadlineMs;
+	}
+
+	public void setQueueDeadlineMs(final int queueDeadlineMs) {
+		this.queueDeadlineMs = queueDeadlineMs;
+	}
+
+	/**
+	 * Sent in the Retry-After field of 503 responses: how long clients are asked to wait before trying again.
+	 */
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public void setRetryAfterSeconds(final int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * Most connections one client (remote IP address) may have open at once, or 0 for no limit.
+	 * Further connections from it are turned away as soon as they're accepted, with a 429 (Too Many Requests).
+	 */
+	public int getMaxConnectionsPerClient() {
+		return maxConnectionsPerClient;
+	}
+
+	public void setMaxConnectionsPerClient(final int maxConnectionsPerClient) {
+		this.maxConnectionsPerClient = maxConnectionsPerClient;
+	}
+
+	/**
+	 * Most requests per second one client (remote IP address) may make, on average, or 0 for no limit.
+	 * A client that has been quiet may make up to a second's worth at once. Beyond that, new connections from it are
+	 * turned away as soon as they're accepted, and further requests on open ones are answered with a 429 and closed.
+	 */
+	public int getMaxRequestsPerSecondPerClient() {
+		return maxRequestsPerSecondPerClient;
+	}
+
+	public void setMaxRequestsPerSecondPerClient(final int maxRequestsPerSecondPerClient) {
+		this.maxRequestsPerSecondPerClient = maxRequestsPerSecondPerClient;
+	}
+
+	/**
+	 * Longest a client may take to send a request's head, from its first bytes; the connection is closed after that.
+	 * Keeps clients that trickle in a request (e.g. "slowloris") from holding connections, or 0 for no limit.
+	 */
+	public int getHeaderTimeoutMs() {
+		return headerTimeoutMs;
+	}
+
+	public void setHeaderTimeoutMs(final int headerTimeoutMs) {
+		this.headerTimeoutMs = headerTimeoutMs;
+	}
+
+	/**
+	 * Longest a request may take, from its first bytes being received to its response being completely sent;
+	 * the connection is closed after that. 0 for no limit.
+	 */
+	public int getRequestTimeoutMs() {
+		return requestTimeoutMs;
+	}
+
+	public void setRequestTimeoutMs(final int requestTimeoutMs) {
+		this.requestTimeoutMs = requestTimeoutMs;
+	}
+
+	/**
+	 * Slowest a client may send a request, or take a response, on average (after a short grace period);
+	 * the connection is closed if it falls behind. 0 for no limit.
+	 */
+	public int getMinBytesPerSecond() {
+		return minBytesPerSecond;
+	}
+
+	public void setMinBytesPerSecond(final int minBytesPerSecond) {
+		this.minBytesPerSecond = minBytesPerSecond;
+	}
+}
@@ -0,0 +1,125 @@
+package org.jchern.webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * A directory listing, generated a few rows at a time as it's read, and already framed with chunked transfer encoding.
+ * Only one chunk's worth of rows is ever held in memory, however many entries the directory has,
+ * so even directories with hundreds of thousands of files can be listed with flat memory use.
+ *
+ * The price is that entries are listed in the order the file system returns them, not sorted,
+ * and the length (and newest modified time) of the listing can't be known until it has all been sent.
+ *
+ * Reading it to the end, and closing it, must both happen on the same connection.
+ * @author Jeff Chern
+ */
+/*package*/ class StreamingListing extends InputStream {
+
+	private static final int ROWS_PER_CHUNK = 64;
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] CRLF = "\r\n".getBytes(ASCII);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ASCII);
+
+	private final String dirName;
+	private final DirectoryStream<Path> dirStream;
+	private final Iterator<Path> entries;
+
+	private boolean headerSent = false;
+	private boolean footerSent = false;
+	private boolean finished = false;
+	private byte[] chunk = new byte[0];
+	private int chunkPosition = 0;
+
+	/**
+	 * Opens the directory, ready to list it.
+	 * @throws IOException if the directory can't be opened
+	 */
+	public StreamingListing(final File dir) throws IOException {
+		this.dirName = dir.getName();
+		this.dirStream = Files.newDirectoryStream(dir.toPath());
+		this.entries = dirStream.iterator();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureAvailable()) return -1;
+		return chunk[chunkPosition++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) return 0;
+		if (!ensureAvailable()) return -1;
+		final int readLen = Math.min(len, chunk.length - chunkPosition);
+		System.arraycopy(chunk, chunkPosition, b, off, readLen);
+		chunkPosition += readLen;
+		return readLen;
+	}
+
+	@Override
+	public void close() throws IOException {
+		dirStream.close();
+	}
+
+	/**
+	 * @return false at the end of the listing
+	 */
+	private boolean ensureAvailable() throws IOException {
+		if (chunkPosition < chunk.length) return true;
+		if (finished) return false;
+		chunk = nextChunk();
+		chunkPosition = 0;
+		return true;
+	}
+
+	/**
+	 * Renders the next few rows (plus the header before the first, and the footer after the last),
+	 * framed as one chunk. After the footer, returns the last (empty) chunk.
+	 */
+	private byte[] nextChunk() throws IOException {
+		if (footerSent) {
+			finished = true;
+			return LAST_CHUNK;
+		}
+
+		final StringBuilder rows = new StringBuilder();
+		if (!headerSent) {
+			IndexBuilder.appendHeader(rows);
+			headerSent = true;
+		}
+
+		try {
+			int rowCount = 0;
+			while (rowCount < ROWS_PER_CHUNK && entries.hasNext()) {
+				final IndexBuilder.Entry entry = IndexBuilder.Entry.of(entries.next().toFile());
+				if (entry != null) { // else it was deleted since it was listed
+					IndexBuilder.appendRow(rows, dirName, entry);
+					rowCount++;
+				}
+			}
+			if (!entries.hasNext()) {
+				IndexBuilder.appendFooter(rows);
+				footerSent = true;
+			}
+		} catch (DirectoryIteratorException e) {
+			throw e.getCause();
+		}
+
+		final byte[] data = rows.toString().getBytes(IndexBuilder.ENCODING);
+		final byte[] size = (Integer.toHexString(data.length) + "\r\n").getBytes(ASCII);
+
+		final byte[] framed = new byte[size.length + data.length + CRLF.length];
+		System.arraycopy(size, 0, framed, 0, size.length);
+		System.arraycopy(data, 0, framed, size.length, data.length);
+		System.arraycopy(CRLF, 0, framed, size.length + data.length, CRLF.length);
+		return framed;
+	}
+}
@@ -0,0 +1,127 @@
+package org.jchern.webserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps many timeouts cheaply: a hashed wheel of slots, one per tick, each holding the timers due in that tick
+ * (or in that tick of a later turn of the wheel). Scheduling is a lock-free queue add, and advancing the wheel only
+ * looks at the slots of the ticks that have passed, so a timer costs nothing until it's due.
+ *
+ * Timers are never cancelled or moved: when one is due, it's checked, and it tells the wheel when to check it again
+ * (e.g. if the connection it watches has made progress since), or that it's done. So the owner of a timer can
+ * change its deadlines as often as it likes, with plain field writes.
+ *
+ * schedule() may be called from any thread; advance() only from the one thread that drives the wheel.
+ * @author Jeff Chern
+ */
+public class TimerWheel {
+
+	/**
+	 * Something with deadlines, checked by the wheel when due.
+	 */
+	public interface ITimer {
+		/**
+		 * @param nowMs as System.currentTimeMillis()
+		 * @return when to be checked next, or 0 to be forgotten
+		 */
+		long check(long nowMs);
+	}
+
+	private static class Entry {
+		final ITimer timer;
+		long dueMs;
+
+		Entry(final ITimer timer, final long dueMs) {
+			this.timer = timer;
+			this.dueMs = dueMs;
+		}
+	}
+
+	/**
+	 * The timers due in one tick (of this turn of the wheel, or a later one).
+	 */
+	private static class Slot {
+		final List<Entry> entries = new ArrayList<Entry>();
+	}
+
+	private final long tickMs;
+	private final Slot[] slots;
+	private final int mask;
+	private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<Entry>();
+	private final List<Entry> due = new ArrayList<Entry>();
+	private long lastTick; // the last tick whose slot has been checked
+
+	/**
+	 * @param tickMs how precisely timers fire: up to a tick late
+	 * @param slots rounded up to a power of 2; timers due more than a turn of the wheel ahead wait for later turns
+	 */
+	public TimerWheel(final long tickMs, final int slots) {
+		this.tickMs = tickMs;
+		final int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			this.slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.lastTick = System.currentTimeMillis() / tickMs;
+	}
+
+	public long getTickMs() {
+		return tickMs;
+	}
+
+	/**
+	 * Has the timer checked at (or up to a tick after) dueMs.
+	 */
+	public void schedule(final ITimer timer, final long dueMs) {
+		scheduled.add(new Entry(timer, dueMs));
+	}
+
+	/**
+	 * Checks the timers that are due by now.
+	 */
+	public void advance(final long nowMs) {
+		Entry entry;
+		while ((entry = scheduled.poll()) != null) {
+			place(entry);
+		}
+
+		final long nowTick = nowMs / tickMs;
+		// Past a whole turn, every slot has been looked at once.
+		final long fromTick = Math.max(lastTick + 1, nowTick - mask);
+		for (long tick = fromTick; tick <= nowTick; tick++) {
+			final List<Entry> slot = slots[(int) (tick & mask)].entries;
+			int kept = 0;
+			for (int i = 0; i < slot.size(); i++) {
+				final Entry e = slot.get(i);
+				if (e.dueMs <= nowMs) {
+					due.add(e);
+				} else {
+					slot.set(kept++, e); // due in a later turn
+				}
+			}
+			slot.subList(kept, slot.size()).clear();
+		}
+		lastTick = Math.max(lastTick, nowTick);
+
+		for (int i = 0; i < due.size(); i++) {
+			final Entry e = due.get(i);
+			final long nextMs = e.timer.check(nowMs);
+			if (nextMs > 0) {
+				e.dueMs = nextMs;
+				place(e);
+			}
+		}
+		due.clear();
+	}
+
+	private void place(final Entry entry) {
+		// The tick after it's due, so it is due when its slot is checked; but never into a slot already checked
+		// for this turn, or it would wait a whole turn.
+		final long tick = Math.max(entry.dueMs / tickMs + 1, lastTick + 1);
+		slots[(int) (tick & mask)].entries.add(entry);
+	}
+}